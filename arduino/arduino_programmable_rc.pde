@@ -19,7 +19,8 @@
 //    along with Programmable RC Car Controller.  If not, see <http://www.gnu.org/licenses/>.
 ////////////////////////////////////////////////////////////////////////////////////////////////
 
-#define DEBUG (1)
+// If enabled, the car reports back with binary status frames
+#define TELEMETRY (1)
 
 // Pin Functions
 #define FORWARD_PIN   (9)
@@ -46,9 +47,93 @@ struct Command
 enum COMMAND_IDS
 {
     INVALID_CMD = 0,
-    DRIVE = 10
+    DRIVE = 10,
+    DRIVE_SEQ = 11,  // DATA1 = sequence number << 4 | direction bits, DATA2 = speed
+    SEQ_RESET = 12,  // Forget the last sequence number, acked (host retries it, also after losing a frame)
+    SET_BAUD = 13,   // DATA1 = index into baudRates
+    PING = 14,       // DATA1, DATA2 are echoed back in STATUS_PONG
+    UPLOAD_BEGIN = 15, // DATA1, DATA2 = number of routine steps that follow (low byte first)
+    UPLOAD_STEP = 16,  // DATA1 = direction bits, DATA2 = speed of the next routine step
+    UPLOAD_TIME = 17,  // DATA1, DATA2 = duration of that step in ms (low byte first)
+    RUN_ROUTINE = 18,  // Start the uploaded routine
+    ABORT_ROUTINE = 19, // Stop the routine and the car
+    HEARTBEAT = 20     // DATA1, DATA2 = failsafe window in ms (low byte first), 0 turns the failsafe off
 };
 
+// Status frames sent back to the host use the same layout as a Command:
+// ID, DATA1, DATA2, CHECKSUM (ID + DATA1 + DATA2)
+enum STATUS_IDS
+{
+    STATUS_ACK = 100,          // DATA1 = command id
+    STATUS_BAD_CHECKSUM = 101, // DATA1 = command id, DATA2 = received checksum
+    STATUS_INVALID_CMD = 102,  // DATA1 = command id
+    STATUS_STATE = 103,        // DATA1 = applied direction bits, DATA2 = speed
+    STATUS_ACK_SEQ = 104,      // DATA1 = sequence number of a DRIVE_SEQ command
+    STATUS_PONG = 105,         // DATA1, DATA2 = echoed from the PING command
+    STATUS_PROGRESS = 106,     // DATA1 = routine step that just started, DATA2 = its direction bits
+    STATUS_DONE = 107,         // DATA1 = 1 if the routine was aborted, 0 if it finished
+    STATUS_UPLOADED = 108,     // DATA1, DATA2 = routine steps stored (low byte first)
+    STATUS_FAILSAFE = 109      // The host went quiet and the car was stopped
+};
+
+// An uploaded routine step
+struct RoutineStep
+{
+    byte direction;
+    byte speed;
+    unsigned int durationMs;
+};
+
+// Routine storage, 4 bytes per step
+#define MAX_ROUTINE_STEPS (150)
+RoutineStep routine[MAX_ROUTINE_STEPS];
+unsigned int routineLength = 0;   // Steps expected by the current upload
+unsigned int routineReceived = 0; // Steps received so far
+
+// Routine playback state
+bool routineRunning = false;
+unsigned int routineStep = 0;
+unsigned long routineStart = 0;
+unsigned long routineNextStepMs = 0; // Offset of the next step from routineStart
+
+// Sequence numbers are 4 bits, the host keeps at most 8 frames in flight
+#define SEQ_MODULO  (16)
+#define SEQ_WINDOW   (8)
+
+// Sequence number of the last DRIVE_SEQ command that was applied
+byte lastSeq = 0;
+bool haveSeq = false;
+
+// Rates that can be selected with SET_BAUD, must match BaudNegotiator.RATES on the host
+const long baudRates[] = { 9600, 19200, 38400, 57600, 115200, 250000, 500000, 1000000 };
+#define NUM_BAUD_RATES  (sizeof(baudRates) / sizeof(baudRates[0]))
+#define BASE_BAUD_INDEX (0)
+
+// After a switch, go back to the previous rate if no valid frame arrives within this time
+#define BAUD_REVERT_MS  (1000)
+
+// Consecutive bad frames after which we drop back to the base rate
+#define MAX_BAD_FRAMES  (8)
+#define MAX_SKIPPED_BYTES (MAX_BAD_FRAMES * sizeof(Command))
+
+byte baudIndex = BASE_BAUD_INDEX;
+byte previousBaudIndex = BASE_BAUD_INDEX;
+bool baudOnProbation = false;
+unsigned long baudSwitchTime = 0;
+
+// The frame being received.  After a bad frame the first byte is dropped and the
+// rest is checked again, so the car finds the frame boundary again after garbage
+// of any length (e.g. bytes sent during a rate switch).
+byte frame[sizeof(Command)];
+byte frameLength = 0;
+unsigned int skippedBytes = 0; // Bytes dropped since the last valid frame
+
+// Stop the car if no valid frame arrives within failsafeMs.
+// Off until the host sends its first HEARTBEAT, which sets the window.
+unsigned int failsafeMs = 0;
+unsigned long lastValidFrameTime = 0;
+bool failsafeTripped = false;
+
 void setup()
 {
     // Setup Pin I/O Functions
@@ -57,15 +142,30 @@ void setup()
     pinMode(LEFT_PIN, OUTPUT);
     pinMode(RIGHT_PIN, OUTPUT);
     
-    // Initialize Serial
-    Serial.begin(9600);
+    // Initialize Serial, the host always starts at the base rate
+    Serial.begin(baudRates[BASE_BAUD_INDEX]);
+}
+
+// Switch the serial port to baudRates[index]
+void changeBaud(byte index)
+{
+    Serial.flush(); // Let the outgoing status frames finish at the old rate
+    Serial.end();
+    Serial.begin(baudRates[index]);
+    baudIndex = index;
+    frameLength = 0; // Bytes received at the old rate
 }
 
-// If DEBUG is enabled, this function writes a string to the serial port
-void dbg_print(const char * s)
+// If TELEMETRY is enabled, this function writes a 4 byte status frame to the serial port
+void sendStatus(byte id, byte data1, byte data2)
 {
-#if DEBUG
-    Serial.write(s);
+#if TELEMETRY
+    byte frame[4];
+    frame[0] = id;
+    frame[1] = data1;
+    frame[2] = data2;
+    frame[3] = id + data1 + data2;
+    Serial.write(frame, sizeof(frame));
 #endif
 }
 
@@ -110,6 +210,67 @@ void driveCar(struct Command &newCmd)
     } else {
         digitalWrite(RIGHT_PIN, LOW);
     }
+    
+    // Report the state that was actually applied to the pins
+    sendStatus(STATUS_STATE, newCmd.data1, newCmd.data2);
+}
+
+// Handles a DRIVE_SEQ command
+// Every frame is acknowledged, but only frames newer than the last applied one drive the car.
+// A retransmitted frame that arrives after a newer one must not undo the newer state.
+void driveCarSequenced(struct Command &newCmd)
+{
+    byte seq = newCmd.data1 >> 4;
+    byte distance = (seq - lastSeq) & (SEQ_MODULO - 1);
+    
+    if (!haveSeq || (distance > 0 && distance < SEQ_WINDOW)) {
+        lastSeq = seq;
+        haveSeq = true;
+        newCmd.data1 &= 0x0F;
+        driveCar(newCmd);
+    }
+    sendStatus(STATUS_ACK_SEQ, seq, 0);
+}
+
+// Drive the car with a direction and speed (used by the routine player)
+void driveDirect(byte direction, byte speed)
+{
+    Command cmd;
+    cmd.id = DRIVE;
+    cmd.data1 = direction;
+    cmd.data2 = speed;
+    driveCar(cmd);
+}
+
+// Stop the routine and the car
+void stopRoutine(bool aborted)
+{
+    if (routineRunning) {
+        routineRunning = false;
+        driveDirect(0, 0);
+        sendStatus(STATUS_DONE, aborted ? 1 : 0, 0);
+    }
+}
+
+// Start the next routine step once it is due
+// Each step is due at routineStart + the sum of the earlier durations, so time spent
+// handling serial data never pushes the following steps back
+void runRoutine()
+{
+    if (!routineRunning || millis() - routineStart < routineNextStepMs) {
+        return;
+    }
+    
+    if (routineStep >= routineReceived) {
+        stopRoutine(false);
+        return;
+    }
+    
+    RoutineStep &step = routine[routineStep];
+    driveDirect(step.direction, step.speed);
+    sendStatus(STATUS_PROGRESS, routineStep, step.direction);
+    routineNextStepMs += step.durationMs;
+    routineStep++;
 }
 
 void processCommand(struct Command &newCmd)
@@ -117,38 +278,153 @@ void processCommand(struct Command &newCmd)
     switch (newCmd.id)
     {
         case DRIVE:
-            dbg_print("Drive...");
+            // Manual driving takes over from a running routine
+            stopRoutine(true);
             driveCar(newCmd);
+            sendStatus(STATUS_ACK, newCmd.id, 0);
+            break;
+        case DRIVE_SEQ:
+            stopRoutine(true);
+            driveCarSequenced(newCmd);
+            break;
+        case SEQ_RESET:
+            haveSeq = false;
+            sendStatus(STATUS_ACK, newCmd.id, 0);
+            break;
+        case SET_BAUD:
+            if (newCmd.data1 < NUM_BAUD_RATES) {
+                // Ack at the old rate, then switch.  The switch is on probation
+                // until a valid frame arrives at the new rate.
+                sendStatus(STATUS_ACK, newCmd.id, newCmd.data1);
+                previousBaudIndex = baudIndex;
+                changeBaud(newCmd.data1);
+                baudOnProbation = true;
+                baudSwitchTime = millis();
+            } else {
+                sendStatus(STATUS_INVALID_CMD, newCmd.id, 0);
+            }
+            break;
+        case PING:
+            sendStatus(STATUS_PONG, newCmd.data1, newCmd.data2);
+            break;
+        case HEARTBEAT:
+            // Not acknowledged, receiving it is all that matters
+            failsafeMs = newCmd.data1 | (newCmd.data2 << 8);
+            break;
+        case UPLOAD_BEGIN:
+            stopRoutine(true);
+            routineLength = newCmd.data1 | (newCmd.data2 << 8);
+            routineReceived = 0;
+            if (routineLength > MAX_ROUTINE_STEPS) {
+                routineLength = 0;
+                sendStatus(STATUS_INVALID_CMD, newCmd.id, 0);
+            }
+            break;
+        case UPLOAD_STEP:
+            if (routineReceived < routineLength) {
+                routine[routineReceived].direction = newCmd.data1;
+                routine[routineReceived].speed = newCmd.data2;
+            }
+            break;
+        case UPLOAD_TIME:
+            if (routineReceived < routineLength) {
+                routine[routineReceived].durationMs = newCmd.data1 | (newCmd.data2 << 8);
+                routineReceived++;
+                if (routineReceived == routineLength) {
+                    sendStatus(STATUS_UPLOADED, routineReceived & 0xFF, routineReceived >> 8);
+                }
+            }
+            break;
+        case RUN_ROUTINE:
+            if (routineReceived > 0 && routineReceived == routineLength) {
+                routineRunning = true;
+                routineStep = 0;
+                routineNextStepMs = 0;
+                routineStart = millis();
+                sendStatus(STATUS_ACK, newCmd.id, 0);
+                runRoutine();
+            } else {
+                sendStatus(STATUS_INVALID_CMD, newCmd.id, 0);
+            }
+            break;
+        case ABORT_ROUTINE:
+            stopRoutine(true);
+            sendStatus(STATUS_ACK, newCmd.id, 0);
             break;
         default:
             // Unknown Command, do nothing
-            dbg_print("Invalid cmd received...");
+            sendStatus(STATUS_INVALID_CMD, newCmd.id, 0);
             break;
     }
 }
 
+// Stop the car once if nothing valid has arrived within the failsafe window
+void checkFailsafe()
+{
+    if (failsafeMs == 0 || failsafeTripped || millis() - lastValidFrameTime <= failsafeMs) {
+        return;
+    }
+    failsafeTripped = true;
+    stopRoutine(true);
+    driveDirect(0, 0);
+    sendStatus(STATUS_FAILSAFE, 0, 0);
+}
+
 // Main control loop
 // Receives data from the serial port and sends it to be processed
 void loop()
 {
-    Command incomingCmd;
-    if (Serial.available() >= sizeof(Command)) {
-        // read the incoming data:
-        Command * mem = &incomingCmd;
-        unsigned char * p = (unsigned char *)mem;
-        for (int i = 0; i < sizeof(Command); i++) {
-            unsigned int data = Serial.read();
-            p[i] = data;
-        }
+    // read the incoming data:
+    while (frameLength < sizeof(Command) && Serial.available() > 0) {
+        frame[frameLength++] = Serial.read();
+    }
+    
+    if (frameLength == sizeof(Command)) {
+        Command incomingCmd;
+        memcpy(&incomingCmd, frame, sizeof(Command));
         
-        // Verify checksum
+        // Verify checksum, the host never sends INVALID_CMD so it can't start a frame either
         byte received_sum = incomingCmd.id + incomingCmd.data1 + incomingCmd.data2;
         if (incomingCmd.id != INVALID_CMD && received_sum == incomingCmd.checksum) {
+            frameLength = 0;
+            
+            // A valid frame at this rate confirms any pending rate switch
+            if (incomingCmd.id != SET_BAUD) {
+                baudOnProbation = false;
+            }
+            skippedBytes = 0;
+            lastValidFrameTime = millis();
+            failsafeTripped = false;
             processCommand(incomingCmd);
-            dbg_print("Good Cmd - checksum matched");
         } else {
             //Checksum didn't match, don't process the command
-            dbg_print("Bad Cmd - invalid cmd or checksum didn't match");
+            // Report once per frame's worth of dropped bytes, not for every byte
+            if (skippedBytes % sizeof(Command) == 0) {
+                sendStatus(STATUS_BAD_CHECKSUM, incomingCmd.id, incomingCmd.checksum);
+            }
+            
+            // The frame may start at the next byte
+            memmove(frame, frame + 1, sizeof(Command) - 1);
+            frameLength--;
+            
+            // A run of garbage usually means host and car disagree on the rate
+            if (++skippedBytes >= MAX_SKIPPED_BYTES && baudIndex != BASE_BAUD_INDEX) {
+                changeBaud(BASE_BAUD_INDEX);
+                baudOnProbation = false;
+                skippedBytes = 0;
+            }
         }
     }
+    
+    // Advance the uploaded routine, timed locally
+    runRoutine();
+    
+    // The host stopped talking to us, don't keep driving
+    checkFailsafe();
+    
+    // Nothing valid arrived after a rate switch, go back to the old rate
+    if (baudOnProbation && millis() - baudSwitchTime > BAUD_REVERT_MS) {
+        changeBaud(previousBaudIndex);
+        baudOnProbation = false;
+    }
 }
@@ -0,0 +1,323 @@
+////////////////////////////////////////////////////////////////////////////////////////////////
+//    Copyright (C) 2012 Jon Bennett
+//
+//    This file is part of Programmable RC Car Controller.
+//
+//    http://www.jbprojects.net/articles/programmable-rc/
+//
+//    Programmable RC Car Controller is free software: you can redistribute it and/or modify
+//    it under the terms of the GNU General Public License as published by
+//    the Free Software Foundation, either version 3 of the License, or
+//    (at your option) any later version.
+//
+//    Programmable RC Car Controller is distributed in the hope that it will be useful,
+//    but WITHOUT ANY WARRANTY; without even the implied warranty of
+//    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+//    GNU General Public License for more details.
+//
+//    You should have received a copy of the GNU General Public License
+//    along with Programmable RC Car Controller.  If not, see <http://www.gnu.org/licenses/>.
+////////////////////////////////////////////////////////////////////////////////////////////////
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Arrays;
+
+// Microbenchmarks of the controller hot paths, so regressions and improvements show up as numbers.
+// Each case is warmed up, then timed over several iterations and reported in ns per operation.
+// End to end latency against the emulated car is measured by EmulatorBenchmark instead.
+//
+// Usage: java ControllerBenchmark [name filter]
+public class ControllerBenchmark {
+    private static final int WARMUP_ITERATIONS = 5;
+    private static final int MEASURED_ITERATIONS = 10;
+
+    // Target length of one iteration
+    private static final long ITERATION_NS = 200000000L; // 200 ms
+
+    private static final int SMALL_FILE_STEPS = 20;
+    private static final int LARGE_FILE_STEPS = 200000;
+
+    private static final String[] DIRECTIONS = { "FF", "FR", "RR", "BR", "BB", "BL", "LL", "FL", "SS" };
+
+    // Results are folded in here so the JIT can't remove the work
+    private static volatile long s_sink;
+
+    // One thing to measure
+    private abstract static class Case {
+        final String m_name;
+
+        Case(String name) {
+            m_name = name;
+        }
+
+        void setUp() throws Exception {
+        }
+
+        void tearDown() throws Exception {
+        }
+
+        // Perform ops operations and return something derived from them
+        abstract long run(int ops) throws Exception;
+    }
+
+    public static void main(String[] args) throws Exception {
+        String filter = args.length > 0 ? args[0] : "";
+
+        final File smallFile = writeSequenceFile(SMALL_FILE_STEPS);
+        final File largeFile = writeSequenceFile(LARGE_FILE_STEPS);
+
+        final RCController controller = new RCController();
+        controller.getEventLog().setSink(EventLog.Sink.OFF, null);
+        final TextFileParser parser = new TextFileParser();
+        final SequenceTable table = SequenceTable.compile(controller, parser.getSequence(largeFile.getPath()));
+
+        Case[] cases = {
+            // TextFileParser.getSequence on a sequence.txt sized file
+            new Case("parseSmallFile") {
+                long run(int ops) {
+                    long sum = 0;
+                    for (int i = 0; i < ops; i++) {
+                        sum += parser.getSequence(smallFile.getPath()).length;
+                    }
+                    return sum;
+                }
+            },
+
+            // TextFileParser.getSequence on a large generated route, one op per file
+            new Case("parseLargeFile") {
+                long run(int ops) {
+                    long sum = 0;
+                    for (int i = 0; i < ops; i++) {
+                        sum += parser.getSequence(largeFile.getPath()).length;
+                    }
+                    return sum;
+                }
+            },
+
+            // SequenceStream over the same route, one op per file
+            new Case("streamLargeFile") {
+                long run(int ops) throws InterruptedException {
+                    long sum = 0;
+                    for (int i = 0; i < ops; i++) {
+                        SequenceStream stream = new SequenceStream(controller, largeFile.getPath());
+                        stream.start();
+                        SequenceTable chunk;
+                        while ((chunk = stream.take()) != null) {
+                            sum += chunk.getStepCount();
+                            stream.recycle(chunk);
+                        }
+                    }
+                    return sum;
+                }
+            },
+
+            // Opening the same route as a binary file, one op per file
+            new Case("loadBinaryFile") {
+                File m_binaryFile;
+
+                void setUp() throws IOException {
+                    m_binaryFile = File.createTempFile("sequence", SequenceFile.EXTENSION);
+                    m_binaryFile.deleteOnExit();
+                    SequenceFile.save(table, m_binaryFile.getPath());
+                }
+
+                void tearDown() {
+                    m_binaryFile.delete();
+                }
+
+                long run(int ops) {
+                    long sum = 0;
+                    for (int i = 0; i < ops; i++) {
+                        sum += SequenceFile.load(m_binaryFile.getPath()).getTotalDurationMs();
+                    }
+                    return sum;
+                }
+            },
+
+            // Turning parsed text into frames, one op per step
+            new Case("compileSequenceStep") {
+                final String[] m_cmds = parser.getSequence(smallFile.getPath());
+
+                long run(int ops) {
+                    long sum = 0;
+                    for (int i = 0; i < ops; i += SMALL_FILE_STEPS) {
+                        sum += SequenceTable.compile(controller, m_cmds).getTotalDurationMs();
+                    }
+                    return sum;
+                }
+            },
+
+            // Frame encoding as done for every drive command
+            new Case("encodeDriveCommand") {
+                final byte[] m_frame = new byte[SequenceTable.FRAME_SIZE];
+
+                long run(int ops) {
+                    long sum = 0;
+                    for (int i = 0; i < ops; i++) {
+                        controller.encodeDriveCommand(m_frame, 0, (byte) (i & 0x0F), (byte) i);
+                        sum += m_frame[3];
+                    }
+                    return sum;
+                }
+            },
+
+            // Status frames from the car through RCCom's receive path
+            new Case("receiveTelemetryFrame") {
+                final RCCom m_rcCom = new RCCom();
+                final byte[] m_input = new byte[64 * TelemetryParser.FRAME_SIZE];
+                final long[] m_frames = new long[1];
+
+                void setUp() {
+                    for (int i = 0; i < m_input.length; i += TelemetryParser.FRAME_SIZE) {
+                        m_input[i] = (byte) TelemetryParser.STATUS_STATE;
+                        m_input[i + 1] = (byte) (i & 0x0F);
+                        m_input[i + 2] = (byte) 200;
+                        m_input[i + 3] = (byte) (m_input[i] + m_input[i + 1] + m_input[i + 2]);
+                    }
+                    m_rcCom.addTelemetryListener(new TelemetryAdapter() {
+                        public void stateApplied(int keyState, int speed) {
+                            m_frames[0]++;
+                        }
+                    });
+                }
+
+                long run(int ops) {
+                    // Deliver in serial-port-sized chunks of 16 frames
+                    int chunk = 16 * TelemetryParser.FRAME_SIZE;
+                    for (int i = 0; i < ops; i += 16) {
+                        int offset = (i * TelemetryParser.FRAME_SIZE) % m_input.length;
+                        m_rcCom.received(m_input, offset, chunk);
+                    }
+                    return m_frames[0];
+                }
+            },
+
+            // RCController.sendDirectionCommand until the bytes come out of a loopback link
+            new LoopbackCase("sendDirectionCommand") {
+                long send(int i) {
+                    m_controller.sendDirectionCommand((i & 1) == 0 ? m_controller.FORWARD_BIT : m_controller.BACKWARD_BIT);
+                    return SequenceTable.FRAME_SIZE;
+                }
+            },
+
+            // Playing precompiled sequence steps until the bytes come out of a loopback link
+            new LoopbackCase("sendSequenceStep") {
+                long send(int i) {
+                    m_controller.sendSequenceStep(table, i % table.getStepCount());
+                    return SequenceTable.FRAME_SIZE;
+                }
+            },
+        };
+
+        System.out.println(String.format("%-24s %12s %12s %12s %12s", "Benchmark", "ns/op", "error", "min", "max"));
+        for (Case c : cases) {
+            if (c.m_name.toLowerCase().contains(filter.toLowerCase())) {
+                measure(c);
+            }
+        }
+
+        smallFile.delete();
+        largeFile.delete();
+        System.out.println("(sink " + s_sink + ")");
+        System.exit(0);
+    }
+
+    // Sends through a controller connected to one end of a loopback pair
+    // and waits for everything to arrive at the other end
+    private abstract static class LoopbackCase extends Case {
+        final RCController m_controller = new RCController();
+        private volatile long m_bytesReceived;
+
+        LoopbackCase(String name) {
+            super(name);
+        }
+
+        void setUp() {
+            LoopbackTransport[] pair = LoopbackTransport.createPair();
+            pair[1].open(new Transport.Receiver() {
+                public void received(byte[] data, int offset, int length) {
+                    m_bytesReceived += length;
+                }
+            });
+            m_controller.getEventLog().setSink(EventLog.Sink.OFF, null);
+            m_controller.connect(pair[0]);
+        }
+
+        abstract long send(int i);
+
+        long run(int ops) {
+            long expected = m_bytesReceived;
+            for (int i = 0; i < ops; i++) {
+                expected += send(i);
+            }
+            // Consecutive frames never repeat a direction, so none are coalesced and every byte arrives
+            while (m_bytesReceived < expected) {
+                Thread.yield();
+            }
+            return m_bytesReceived;
+        }
+    }
+
+    private static void measure(Case c) throws Exception {
+        c.setUp();
+
+        // Find how many ops fill one iteration
+        int ops = 1;
+        while (true) {
+            long start = System.nanoTime();
+            s_sink += c.run(ops);
+            long elapsed = System.nanoTime() - start;
+            if (elapsed > ITERATION_NS / 10 || ops >= (1 << 28)) {
+                ops = (int) Math.max(1, Math.min(1L << 28, ops * ITERATION_NS / Math.max(1, elapsed)));
+                break;
+            }
+            ops *= 2;
+        }
+
+        for (int i = 0; i < WARMUP_ITERATIONS; i++) {
+            s_sink += c.run(ops);
+        }
+
+        double[] nsPerOp = new double[MEASURED_ITERATIONS];
+        for (int i = 0; i < MEASURED_ITERATIONS; i++) {
+            long start = System.nanoTime();
+            s_sink += c.run(ops);
+            nsPerOp[i] = (double) (System.nanoTime() - start) / ops;
+        }
+        c.tearDown();
+
+        double mean = 0;
+        for (double v : nsPerOp) {
+            mean += v;
+        }
+        mean /= nsPerOp.length;
+        double variance = 0;
+        for (double v : nsPerOp) {
+            variance += (v - mean) * (v - mean);
+        }
+        // 99.9% confidence interval half-width, t-distribution with 9 degrees of freedom
+        double error = 4.781 * Math.sqrt(variance / (nsPerOp.length - 1)) / Math.sqrt(nsPerOp.length);
+        Arrays.sort(nsPerOp);
+        System.out.println(String.format("%-24s %12.1f %12.1f %12.1f %12.1f",
+                c.m_name, mean, error, nsPerOp[0], nsPerOp[nsPerOp.length - 1]));
+    }
+
+    // Write a sequence file with the given number of steps
+    private static File writeSequenceFile(int steps) throws IOException {
+        File file = File.createTempFile("sequence", ".txt");
+        file.deleteOnExit();
+        Writer out = new FileWriter(file);
+        try {
+            out.write("# Generated by ControllerBenchmark\n");
+            for (int i = 0; i < steps; i++) {
+                out.write(DIRECTIONS[i % DIRECTIONS.length] + ", " + (100 + i % 156) + ", " + (10 + i % 90) + "\n");
+            }
+        } finally {
+            out.close();
+        }
+        return file;
+    }
+}
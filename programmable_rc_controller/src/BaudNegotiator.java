@@ -0,0 +1,380 @@
+////////////////////////////////////////////////////////////////////////////////////////////////
+//    Copyright (C) 2012 Jon Bennett
+//
+//    This file is part of Programmable RC Car Controller.
+//
+//    http://www.jbprojects.net/articles/programmable-rc/
+//
+//    Programmable RC Car Controller is free software: you can redistribute it and/or modify
+//    it under the terms of the GNU General Public License as published by
+//    the Free Software Foundation, either version 3 of the License, or
+//    (at your option) any later version.
+//
+//    Programmable RC Car Controller is distributed in the hope that it will be useful,
+//    but WITHOUT ANY WARRANTY; without even the implied warranty of
+//    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+//    GNU General Public License for more details.
+//
+//    You should have received a copy of the GNU General Public License
+//    along with Programmable RC Car Controller.  If not, see <http://www.gnu.org/licenses/>.
+////////////////////////////////////////////////////////////////////////////////////////////////
+
+// This class moves the host and the car to the fastest data rate that works.
+// Both sides start at RCCom.DATA_RATE.  The host then asks the car to switch to
+// each faster rate in turn (SET_BAUD), switches itself, and checks the link with a
+// burst of PING commands.  The first rate that loses pings is abandoned and the
+// last good one is kept.  The car goes back to the old rate on its own if it hears
+// nothing valid after a switch, so a failed attempt can't strand the link.
+// While running, checkLinkQuality() steps the rate down again if errors rise.
+// Only one rate change runs at a time, and while host and car may be on different
+// rates the host's other frames are held in the send queue (RCCom.pauseSending).
+public class BaudNegotiator extends TelemetryAdapter {
+    // Command ids, see arduino code for more info
+    public static final byte SET_BAUD_CMD = 13;
+    public static final byte PING_CMD = 14;
+
+    // Rates the car knows about, indexed by the SET_BAUD data byte
+    public static final int[] RATES = { 9600, 19200, 38400, 57600, 115200, 250000, 500000, 1000000 };
+
+    private static final int FRAME_SIZE = 4;
+
+    // Pings sent to test each rate
+    private static final int PINGS_PER_TEST = 32;
+
+    // How long to wait for an ack or for the last pong
+    private static final long REPLY_TIMEOUT_MS = 500;
+
+    // How long the car waits for a valid frame before reverting a switch (see arduino code)
+    private static final long CAR_REVERT_MS = 1000;
+
+    // Error rate above which checkLinkQuality() steps the rate down
+    private static final double MAX_ERROR_RATE = 0.05;
+
+    // Frames needed in a quality window before the error rate is trusted
+    private static final int MIN_QUALITY_SAMPLES = 20;
+
+    // Time between link quality checks of the background monitor
+    private static final long QUALITY_INTERVAL_MS = 1000;
+
+    private final RCCom m_rcCom;
+    private final int m_maxRate;
+    private final byte[] m_frame = new byte[FRAME_SIZE];
+
+    // Held by negotiate() and checkLinkQuality(), so only one of them changes the rate
+    // The lock on this object only guards the reply counters, listeners take it
+    private final Object m_negotiationLock = new Object();
+
+    // Index into RATES that both sides are using
+    private int m_rateIndex;
+
+    // Replies seen since the last reset
+    private int m_acks;
+    private int m_pongs;
+
+    // Link quality counters since the last checkLinkQuality()
+    private int m_goodFrames;
+    private int m_badFrames;
+    private long m_lastBytesSkipped;
+
+    private String m_report = "Data rate not negotiated";
+
+    private Thread m_monitorThread;
+
+    // maxRate limits how fast the negotiation may go
+    public BaudNegotiator(RCCom rcCom, int maxRate) {
+        m_rcCom = rcCom;
+        m_maxRate = maxRate;
+    }
+
+    // Find the fastest rate that works.  Blocks for up to a few seconds.
+    // Returns a report of the negotiated rate and the throughput it achieved.
+    public String negotiate() {
+        synchronized (m_negotiationLock) {
+            return negotiateLocked();
+        }
+    }
+
+    private String negotiateLocked() {
+        m_rateIndex = indexOf(m_rcCom.getDataRate());
+        if (m_rateIndex < 0) {
+            return m_report = "Unknown starting rate " + m_rcCom.getDataRate();
+        }
+
+        double throughput = testLink();
+        if (throughput < 0) {
+            return m_report = "Car did not answer pings, staying at " + RATES[m_rateIndex] + " baud";
+        }
+
+        StringBuilder tried = new StringBuilder();
+        for (int next = m_rateIndex + 1; next < RATES.length && RATES[next] <= m_maxRate; next++) {
+            double result = trySwitch(next);
+            tried.append(' ').append(RATES[next]).append(result >= 0 ? ":ok" : ":failed");
+            if (result < 0) {
+                break;
+            }
+            throughput = result;
+        }
+
+        m_lastBytesSkipped = m_rcCom.getTelemetryBytesSkipped();
+        synchronized (this) {
+            m_goodFrames = 0;
+            m_badFrames = 0;
+        }
+        return m_report = String.format("Negotiated %d baud (tried%s), ping throughput %.0f frames/s",
+                RATES[m_rateIndex], tried, throughput);
+    }
+
+    // Report from the last negotiation
+    public String getReport() {
+        return m_report;
+    }
+
+    // Switch both sides to RATES[index] and test the link
+    // Returns the measured throughput, or -1 after falling back to the previous rate
+    private double trySwitch(int index) {
+        int previous = m_rateIndex;
+
+        if (!switchRate(index, false)) {
+            return -1; // The car didn't accept the switch, it is still on the old rate
+        }
+        if (m_rcCom.getDataRate() != RATES[index]) {
+            revertAfterCarTimeout(previous);
+            return -1;
+        }
+        m_rateIndex = index;
+
+        double throughput = testLink();
+        if (throughput < 0) {
+            revertAfterCarTimeout(previous);
+            return -1;
+        }
+        return throughput;
+    }
+
+    // Ask the car to switch to RATES[index], then switch the host once it has acknowledged
+    // Sending is paused in between, so no queued frame goes out at a rate the car has left
+    // Returns false if there was no ack, the host then only switches if follow is set
+    private boolean switchRate(int index, boolean follow) {
+        m_rcCom.pauseSending();
+        try {
+            resetReplies();
+            synchronized (m_frame) {
+                encode(SET_BAUD_CMD, (byte) index, (byte) 0);
+                m_rcCom.writeNow(m_frame);
+            }
+            boolean acked = awaitAcks(1);
+            if (acked || follow) {
+                m_rcCom.setDataRate(RATES[index]);
+            }
+            return acked;
+        } finally {
+            m_rcCom.resumeSending();
+        }
+    }
+
+    // The car reverts on its own when it hears nothing valid, wait for that and follow it
+    // Nothing is sent meanwhile, a valid frame at the new rate would keep the car there
+    private void revertAfterCarTimeout(int previous) {
+        m_rcCom.pauseSending();
+        try {
+            sleep(CAR_REVERT_MS + 200);
+            m_rcCom.setDataRate(RATES[previous]);
+        } finally {
+            m_rcCom.resumeSending();
+        }
+        m_rateIndex = previous;
+
+        // If the car did hear us at the new rate it stayed there.  The pings we just sent
+        // look like a run of bad frames to it, which sends it back to the base rate.
+        if (testLink() < 0) {
+            m_rcCom.setDataRate(RATES[0]);
+            m_rateIndex = 0;
+        }
+    }
+
+    // Send a burst of pings and count the answers
+    // Returns frames per second, or -1 if any ping was lost
+    private double testLink() {
+        resetReplies();
+        long start = System.nanoTime();
+        for (int i = 0; i < PINGS_PER_TEST; i++) {
+            sendCommand(PING_CMD, (byte) i, (byte) ~i);
+        }
+
+        long deadline = System.currentTimeMillis() + REPLY_TIMEOUT_MS + estimateBurstMs();
+        synchronized (this) {
+            while (m_pongs < PINGS_PER_TEST) {
+                long remaining = deadline - System.currentTimeMillis();
+                if (remaining <= 0) {
+                    return -1;
+                }
+                waitQuietly(remaining);
+            }
+        }
+        double seconds = (System.nanoTime() - start) / 1e9;
+        // A ping and its pong are one frame each way
+        return PINGS_PER_TEST / seconds;
+    }
+
+    // Time to send a ping burst at the current rate (10 bits per byte on the wire)
+    private long estimateBurstMs() {
+        return PINGS_PER_TEST * FRAME_SIZE * 10L * 1000 / RATES[m_rateIndex];
+    }
+
+    // Step down one rate if the error rate has risen since the last call
+    // Returns true if the rate was changed
+    public boolean checkLinkQuality() {
+        synchronized (m_negotiationLock) {
+            return checkLinkQualityLocked();
+        }
+    }
+
+    private boolean checkLinkQualityLocked() {
+        long skipped = m_rcCom.getTelemetryBytesSkipped();
+        int good;
+        int bad;
+        synchronized (this) {
+            good = m_goodFrames;
+            bad = m_badFrames + (int) ((skipped - m_lastBytesSkipped) / FRAME_SIZE);
+            m_goodFrames = 0;
+            m_badFrames = 0;
+        }
+        m_lastBytesSkipped = skipped;
+
+        int total = good + bad;
+        if (m_rateIndex == 0 || total < MIN_QUALITY_SAMPLES || bad / (double) total <= MAX_ERROR_RATE) {
+            return false;
+        }
+
+        int lower = m_rateIndex - 1;
+        System.out.println("Link error rate " + (bad * 100 / total) + "% at " + RATES[m_rateIndex]
+                + " baud, falling back to " + RATES[lower]);
+
+        // Ask the car to step down and follow it.  If the request is lost, the car
+        // falls back to the base rate after a run of bad frames, so follow it there.
+        switchRate(lower, true);
+        m_rateIndex = lower;
+        if (testLink() < 0) {
+            m_rcCom.setDataRate(RATES[0]);
+            m_rateIndex = 0;
+        }
+        m_report = "Fell back to " + RATES[m_rateIndex] + " baud";
+        return true;
+    }
+
+    // Check the link quality once a second in the background
+    public synchronized void startQualityMonitor() {
+        if (m_monitorThread != null) {
+            return;
+        }
+        m_monitorThread = new Thread(new Runnable() {
+            public void run() {
+                while (awaitNextCheck()) {
+                    checkLinkQuality();
+                }
+            }
+        }, "BaudNegotiator-Monitor");
+        m_monitorThread.setDaemon(true);
+        m_monitorThread.start();
+    }
+
+    // A check that is already running finishes its rate change first
+    public synchronized void stopQualityMonitor() {
+        m_monitorThread = null;
+        notifyAll();
+    }
+
+    // Called on the monitor thread, returns false once the monitor was stopped
+    private synchronized boolean awaitNextCheck() {
+        long deadline = System.currentTimeMillis() + QUALITY_INTERVAL_MS;
+        long remaining;
+        while (m_monitorThread == Thread.currentThread()
+                && (remaining = deadline - System.currentTimeMillis()) > 0) {
+            waitQuietly(remaining); // Replies wake this too
+        }
+        return m_monitorThread == Thread.currentThread();
+    }
+
+    private void sendCommand(byte commandId, byte data1, byte data2) {
+        synchronized (m_frame) {
+            encode(commandId, data1, data2);
+            m_rcCom.sendData(m_frame);
+        }
+    }
+
+    // Callers must hold the lock on m_frame
+    private void encode(byte commandId, byte data1, byte data2) {
+        m_frame[0] = commandId;
+        m_frame[1] = data1;
+        m_frame[2] = data2;
+        m_frame[3] = (byte) (commandId + data1 + data2);
+    }
+
+    private synchronized void resetReplies() {
+        m_acks = 0;
+        m_pongs = 0;
+    }
+
+    private synchronized boolean awaitAcks(int count) {
+        long deadline = System.currentTimeMillis() + REPLY_TIMEOUT_MS;
+        while (m_acks < count) {
+            long remaining = deadline - System.currentTimeMillis();
+            if (remaining <= 0) {
+                return false;
+            }
+            waitQuietly(remaining);
+        }
+        return true;
+    }
+
+    private void waitQuietly(long ms) {
+        try {
+            wait(ms);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static void sleep(long ms) {
+        try {
+            Thread.sleep(ms);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static int indexOf(int rate) {
+        for (int i = 0; i < RATES.length; i++) {
+            if (RATES[i] == rate) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    @Override
+    public synchronized void commandAcknowledged(int commandId) {
+        m_goodFrames++;
+        if (commandId == SET_BAUD_CMD) {
+            m_acks++;
+            notifyAll();
+        }
+    }
+
+    @Override
+    public synchronized void pongReceived(int data1, int data2) {
+        m_goodFrames++;
+        m_pongs++;
+        notifyAll();
+    }
+
+    @Override
+    public synchronized void sequenceAcknowledged(int seq) {
+        m_goodFrames++;
+    }
+
+    @Override
+    public synchronized void checksumFailed(int commandId, int checksum) {
+        m_badFrames++;
+    }
+}
@@ -0,0 +1,585 @@
+////////////////////////////////////////////////////////////////////////////////////////////////
+//    Copyright (C) 2012 Jon Bennett
+//
+//    This file is part of Programmable RC Car Controller.
+//
+//    http://www.jbprojects.net/articles/programmable-rc/
+//
+//    Programmable RC Car Controller is free software: you can redistribute it and/or modify
+//    it under the terms of the GNU General Public License as published by
+//    the Free Software Foundation, either version 3 of the License, or
+//    (at your option) any later version.
+//
+//    Programmable RC Car Controller is distributed in the hope that it will be useful,
+//    but WITHOUT ANY WARRANTY; without even the implied warranty of
+//    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+//    GNU General Public License for more details.
+//
+//    You should have received a copy of the GNU General Public License
+//    along with Programmable RC Car Controller.  If not, see <http://www.gnu.org/licenses/>.
+////////////////////////////////////////////////////////////////////////////////////////////////
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+// This class emulates the car running arduino_programmable_rc.pde, in process.
+// It copies the sketch's loop(): 4 byte framing, the checksum check, driveCar's bit
+// masking (forward beats backward, left beats right), the status frames it sends back,
+// data rate switching, sequence numbers and uploaded routines.
+// The serial link is modelled byte by byte: every byte takes 10 bit times at the
+// sender's data rate, the car has the Arduino's 64 byte receive buffer, and bytes sent
+// at a different rate than the receiver is using arrive garbled, with bytes missing or
+// extra ones in between, so the receiver loses track of where frames start.
+// RCCom.attach() connects to it in place of a real serial port.
+public class CarEmulator {
+    // Receives every change of the emulated output pins
+    public interface PinListener {
+        // keyState is what driveCar applied, speed is the PWM value
+        void pinsChanged(int keyState, int speed, long timeNs);
+    }
+
+    // Command ids, see arduino code
+    private static final int INVALID_CMD = 0;
+    private static final int DRIVE = 10;
+    private static final int DRIVE_SEQ = 11;
+    private static final int SEQ_RESET = 12;
+    private static final int SET_BAUD = 13;
+    private static final int PING = 14;
+    private static final int UPLOAD_BEGIN = 15;
+    private static final int UPLOAD_STEP = 16;
+    private static final int UPLOAD_TIME = 17;
+    private static final int RUN_ROUTINE = 18;
+    private static final int ABORT_ROUTINE = 19;
+    private static final int HEARTBEAT = 20;
+
+    private static final int FORWARD_BIT = 1;
+    private static final int BACKWARD_BIT = 2;
+    private static final int LEFT_BIT = 4;
+    private static final int RIGHT_BIT = 8;
+
+    // Same limits as the sketch
+    private static final int RX_BUFFER_SIZE = 64;
+    private static final int SEQ_MODULO = 16;
+    private static final int SEQ_WINDOW = 8;
+    private static final int MAX_ROUTINE_STEPS = 150;
+    private static final long BAUD_REVERT_MS = 1000;
+    private static final int MAX_BAD_FRAMES = 8;
+    private static final int FRAME_SIZE = 4;
+
+    // Bytes the host's serial driver buffers before write() blocks
+    private static final int HOST_TX_BUFFER = 64;
+
+    private final Wire m_hostToCar = new Wire();
+    private final Wire m_carToHost = new Wire();
+
+    private volatile int m_hostRate = RCCom.DATA_RATE;
+    private volatile int m_carRate = RCCom.DATA_RATE;
+
+    // Car receive buffer (like Serial.available()/read())
+    private final byte[] m_rx = new byte[RX_BUFFER_SIZE];
+    private int m_rxCount;
+    private long m_rxOverflows;
+
+    // The frame being received, see the sketch's loop()
+    private final byte[] m_frame = new byte[FRAME_SIZE];
+    private int m_frameLength;
+
+    // Pin state
+    private volatile int m_appliedKeyState;
+    private volatile int m_appliedSpeed;
+    private volatile PinListener m_pinListener;
+
+    // Sketch state
+    private boolean m_telemetry = true;
+    private int m_lastSeq;
+    private boolean m_haveSeq;
+    private int m_baudIndex;
+    private int m_previousBaudIndex;
+    private boolean m_baudOnProbation;
+    private long m_baudSwitchTime;
+    private int m_skippedBytes;
+    private int m_failsafeMs;
+    private long m_lastValidFrameTime;
+    private boolean m_failsafeTripped;
+    private volatile long m_failsafeStops;
+
+    private final int[] m_routineDirection = new int[MAX_ROUTINE_STEPS];
+    private final int[] m_routineSpeed = new int[MAX_ROUTINE_STEPS];
+    private final int[] m_routineDuration = new int[MAX_ROUTINE_STEPS];
+    private int m_routineLength;
+    private int m_routineReceived;
+    private boolean m_routineRunning;
+    private int m_routineStep;
+    private long m_routineStart;
+    private long m_routineNextStepMs;
+
+    // Counters
+    private volatile long m_framesReceived;
+    private volatile long m_badChecksums;
+
+    private final long m_startNs = System.nanoTime();
+    private Thread m_loopThread;
+
+    // Start running the emulated sketch
+    public synchronized void start() {
+        if (m_loopThread == null) {
+            m_loopThread = new Thread(new Runnable() {
+                public void run() {
+                    runLoop();
+                }
+            }, "CarEmulator");
+            m_loopThread.setDaemon(true);
+            m_loopThread.start();
+        }
+    }
+
+    public synchronized void stop() {
+        if (m_loopThread != null) {
+            m_loopThread.interrupt();
+            m_loopThread = null;
+        }
+    }
+
+    // Equivalent of the sketch's TELEMETRY define
+    public void setTelemetry(boolean telemetry) {
+        m_telemetry = telemetry;
+    }
+
+    public void setPinListener(PinListener listener) {
+        m_pinListener = listener;
+    }
+
+    // Data rate the host side is using (RCCom.setDataRate)
+    public void setHostDataRate(int rate) {
+        m_hostRate = rate;
+        m_carToHost.setReceiverRate(rate);
+    }
+
+    public int getHostDataRate() {
+        return m_hostRate;
+    }
+
+    // Data rate the emulated car is using
+    public int getCarDataRate() {
+        return m_carRate;
+    }
+
+    // Stream the host writes commands to
+    public OutputStream getHostOutputStream() {
+        return new OutputStream() {
+            @Override
+            public void write(int b) throws IOException {
+                m_hostToCar.write((byte) b, m_hostRate, HOST_TX_BUFFER);
+            }
+        };
+    }
+
+    // Stream the host reads status frames from
+    public InputStream getHostInputStream() {
+        return new InputStream() {
+            @Override
+            public int read() throws IOException {
+                byte[] b = new byte[1];
+                return read(b, 0, 1) < 0 ? -1 : b[0] & 0xFF;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                try {
+                    return m_carToHost.read(b, off, len);
+                } catch (InterruptedException e) {
+                    throw new IOException("Interrupted");
+                }
+            }
+
+            @Override
+            public int available() {
+                return m_carToHost.available();
+            }
+        };
+    }
+
+    // Direction bits currently applied to the pins
+    public int getAppliedKeyState() {
+        return m_appliedKeyState;
+    }
+
+    // PWM value currently applied to the drive pin
+    public int getAppliedSpeed() {
+        return m_appliedSpeed;
+    }
+
+    public long getFramesReceived() {
+        return m_framesReceived;
+    }
+
+    public long getBadChecksums() {
+        return m_badChecksums;
+    }
+
+    // Bytes lost because the 64 byte receive buffer was full
+    public synchronized long getRxOverflows() {
+        return m_rxOverflows;
+    }
+
+    // Number of times the failsafe stopped the car
+    public long getFailsafeStops() {
+        return m_failsafeStops;
+    }
+
+    // Milliseconds since the emulator was created, like millis()
+    private long millis() {
+        return (System.nanoTime() - m_startNs) / 1000000L;
+    }
+
+    // The sketch's main loop, woken by incoming bytes or routine deadlines
+    private void runLoop() {
+        byte[] one = new byte[1];
+        try {
+            while (!Thread.currentThread().isInterrupted()) {
+                // Wait at most a millisecond so routine steps and the baud probation run on time
+                int n = m_hostToCar.poll(one, 0, 1, 1000000L);
+                if (n > 0) {
+                    receiveByte(one[0]);
+                }
+                loopOnce();
+            }
+        } catch (InterruptedException e) {
+            // Stopped
+        }
+    }
+
+    private synchronized void receiveByte(byte b) {
+        if (m_rxCount == RX_BUFFER_SIZE) {
+            m_rxOverflows++;
+            return;
+        }
+        m_rx[m_rxCount++] = b;
+    }
+
+    private synchronized void loopOnce() {
+        int n = Math.min(FRAME_SIZE - m_frameLength, m_rxCount);
+        if (n > 0) {
+            System.arraycopy(m_rx, 0, m_frame, m_frameLength, n);
+            System.arraycopy(m_rx, n, m_rx, 0, m_rxCount - n);
+            m_rxCount -= n;
+            m_frameLength += n;
+        }
+
+        if (m_frameLength == FRAME_SIZE) {
+            int id = m_frame[0] & 0xFF;
+            int data1 = m_frame[1] & 0xFF;
+            int data2 = m_frame[2] & 0xFF;
+            int checksum = m_frame[3] & 0xFF;
+            m_framesReceived++;
+
+            int receivedSum = (id + data1 + data2) & 0xFF;
+            if (id != INVALID_CMD && receivedSum == checksum) {
+                m_frameLength = 0;
+                if (id != SET_BAUD) {
+                    m_baudOnProbation = false;
+                }
+                m_skippedBytes = 0;
+                m_lastValidFrameTime = millis();
+                m_failsafeTripped = false;
+                processCommand(id, data1, data2);
+            } else {
+                m_badChecksums++;
+                if (m_skippedBytes % FRAME_SIZE == 0) {
+                    sendStatus(TelemetryParser.STATUS_BAD_CHECKSUM, id, checksum);
+                }
+                // Drop one byte and look for a frame starting at the next
+                System.arraycopy(m_frame, 1, m_frame, 0, FRAME_SIZE - 1);
+                m_frameLength--;
+                if (++m_skippedBytes >= MAX_BAD_FRAMES * FRAME_SIZE && m_baudIndex != 0) {
+                    changeBaud(0);
+                    m_baudOnProbation = false;
+                    m_skippedBytes = 0;
+                }
+            }
+        }
+
+        runRoutine();
+        checkFailsafe();
+
+        if (m_baudOnProbation && millis() - m_baudSwitchTime > BAUD_REVERT_MS) {
+            changeBaud(m_previousBaudIndex);
+            m_baudOnProbation = false;
+        }
+    }
+
+    private void processCommand(int id, int data1, int data2) {
+        switch (id) {
+        case DRIVE:
+            stopRoutine(true);
+            driveCar(data1, data2);
+            sendStatus(TelemetryParser.STATUS_ACK, id, 0);
+            break;
+        case DRIVE_SEQ:
+            stopRoutine(true);
+            int seq = data1 >> 4;
+            int distance = (seq - m_lastSeq) & (SEQ_MODULO - 1);
+            if (!m_haveSeq || (distance > 0 && distance < SEQ_WINDOW)) {
+                m_lastSeq = seq;
+                m_haveSeq = true;
+                driveCar(data1 & 0x0F, data2);
+            }
+            sendStatus(TelemetryParser.STATUS_ACK_SEQ, seq, 0);
+            break;
+        case SEQ_RESET:
+            m_haveSeq = false;
+            sendStatus(TelemetryParser.STATUS_ACK, id, 0);
+            break;
+        case SET_BAUD:
+            if (data1 < BaudNegotiator.RATES.length) {
+                sendStatus(TelemetryParser.STATUS_ACK, id, data1);
+                m_previousBaudIndex = m_baudIndex;
+                changeBaud(data1);
+                m_baudOnProbation = true;
+                m_baudSwitchTime = millis();
+            } else {
+                sendStatus(TelemetryParser.STATUS_INVALID_CMD, id, 0);
+            }
+            break;
+        case PING:
+            sendStatus(TelemetryParser.STATUS_PONG, data1, data2);
+            break;
+        case HEARTBEAT:
+            m_failsafeMs = data1 | (data2 << 8);
+            break;
+        case UPLOAD_BEGIN:
+            stopRoutine(true);
+            m_routineLength = data1 | (data2 << 8);
+            m_routineReceived = 0;
+            if (m_routineLength > MAX_ROUTINE_STEPS) {
+                m_routineLength = 0;
+                sendStatus(TelemetryParser.STATUS_INVALID_CMD, id, 0);
+            }
+            break;
+        case UPLOAD_STEP:
+            if (m_routineReceived < m_routineLength) {
+                m_routineDirection[m_routineReceived] = data1;
+                m_routineSpeed[m_routineReceived] = data2;
+            }
+            break;
+        case UPLOAD_TIME:
+            if (m_routineReceived < m_routineLength) {
+                m_routineDuration[m_routineReceived] = data1 | (data2 << 8);
+                m_routineReceived++;
+                if (m_routineReceived == m_routineLength) {
+                    sendStatus(TelemetryParser.STATUS_UPLOADED, m_routineReceived & 0xFF, m_routineReceived >> 8);
+                }
+            }
+            break;
+        case RUN_ROUTINE:
+            if (m_routineReceived > 0 && m_routineReceived == m_routineLength) {
+                m_routineRunning = true;
+                m_routineStep = 0;
+                m_routineNextStepMs = 0;
+                m_routineStart = millis();
+                sendStatus(TelemetryParser.STATUS_ACK, id, 0);
+                runRoutine();
+            } else {
+                sendStatus(TelemetryParser.STATUS_INVALID_CMD, id, 0);
+            }
+            break;
+        case ABORT_ROUTINE:
+            stopRoutine(true);
+            sendStatus(TelemetryParser.STATUS_ACK, id, 0);
+            break;
+        default:
+            sendStatus(TelemetryParser.STATUS_INVALID_CMD, id, 0);
+            break;
+        }
+    }
+
+    // Same masking as the sketch's driveCar
+    private void driveCar(int keyState, int speed) {
+        if ((keyState & FORWARD_BIT) != 0 && (keyState & BACKWARD_BIT) != 0) {
+            keyState -= BACKWARD_BIT;
+        }
+        if ((keyState & LEFT_BIT) != 0 && (keyState & RIGHT_BIT) != 0) {
+            keyState -= RIGHT_BIT;
+        }
+
+        m_appliedKeyState = keyState;
+        m_appliedSpeed = speed;
+        PinListener listener = m_pinListener;
+        if (listener != null) {
+            listener.pinsChanged(keyState, speed, System.nanoTime());
+        }
+
+        sendStatus(TelemetryParser.STATUS_STATE, keyState, speed);
+    }
+
+    private void stopRoutine(boolean aborted) {
+        if (m_routineRunning) {
+            m_routineRunning = false;
+            driveCar(0, 0);
+            sendStatus(TelemetryParser.STATUS_DONE, aborted ? 1 : 0, 0);
+        }
+    }
+
+    private void runRoutine() {
+        if (!m_routineRunning || millis() - m_routineStart < m_routineNextStepMs) {
+            return;
+        }
+        if (m_routineStep >= m_routineReceived) {
+            stopRoutine(false);
+            return;
+        }
+        driveCar(m_routineDirection[m_routineStep], m_routineSpeed[m_routineStep]);
+        sendStatus(TelemetryParser.STATUS_PROGRESS, m_routineStep, m_routineDirection[m_routineStep]);
+        m_routineNextStepMs += m_routineDuration[m_routineStep];
+        m_routineStep++;
+    }
+
+    // Same as the sketch's checkFailsafe
+    private void checkFailsafe() {
+        if (m_failsafeMs == 0 || m_failsafeTripped || millis() - m_lastValidFrameTime <= m_failsafeMs) {
+            return;
+        }
+        m_failsafeTripped = true;
+        m_failsafeStops++;
+        stopRoutine(true);
+        driveCar(0, 0);
+        sendStatus(TelemetryParser.STATUS_FAILSAFE, 0, 0);
+    }
+
+    private void changeBaud(int index) {
+        // Serial.flush() then Serial.begin(): status frames already queued go out at the old rate
+        m_carRate = BaudNegotiator.RATES[index];
+        m_hostToCar.setReceiverRate(m_carRate);
+        m_baudIndex = index;
+        m_frameLength = 0;
+    }
+
+    private void sendStatus(int id, int data1, int data2) {
+        if (!m_telemetry) {
+            return;
+        }
+        int rate = m_carRate;
+        m_carToHost.write((byte) id, rate, Integer.MAX_VALUE);
+        m_carToHost.write((byte) data1, rate, Integer.MAX_VALUE);
+        m_carToHost.write((byte) data2, rate, Integer.MAX_VALUE);
+        m_carToHost.write((byte) (id + data1 + data2), rate, Integer.MAX_VALUE);
+    }
+
+    // One direction of the serial link.  Each byte is delivered 10 bit times after the
+    // previous one finished, at the rate it was sent with.
+    private static class Wire {
+        private static final int CAPACITY = 8192;
+
+        private final byte[] m_data = new byte[CAPACITY];
+        private final long[] m_arrivalNs = new long[CAPACITY];
+        private final int[] m_rates = new int[CAPACITY];
+        private int m_head;
+        private int m_count;
+        private long m_lastArrivalNs;
+
+        // Bytes read at the wrong rate so far, picks which ones are lost or doubled
+        private int m_garbled;
+        // A byte the receiver saw in addition to the one sent, delivered next
+        private int m_extra = -1;
+
+        // Rate the receiving side is sampling at when a byte arrives
+        private volatile int m_receiverRate = RCCom.DATA_RATE;
+
+        void setReceiverRate(int rate) {
+            m_receiverRate = rate;
+        }
+
+        // Queue a byte; blocks while more than maxPending bytes are still on the wire
+        synchronized void write(byte b, int rate, int maxPending) {
+            while (m_count >= Math.min(maxPending, CAPACITY)) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+            long now = System.nanoTime();
+            long arrival = Math.max(now, m_lastArrivalNs) + 10L * 1000000000L / rate;
+            int slot = (m_head + m_count) % CAPACITY;
+            m_data[slot] = b;
+            m_arrivalNs[slot] = arrival;
+            m_rates[slot] = rate;
+            m_count++;
+            m_lastArrivalNs = arrival;
+            notifyAll();
+        }
+
+        // Number of bytes that have arrived
+        synchronized int available() {
+            long now = System.nanoTime();
+            int n = 0;
+            while (n < m_count && m_arrivalNs[(m_head + n) % CAPACITY] <= now) {
+                n++;
+            }
+            return n;
+        }
+
+        // Block until at least one byte has arrived, then read what's there
+        int read(byte[] b, int off, int len) throws InterruptedException {
+            int n;
+            while ((n = poll(b, off, len, Long.MAX_VALUE)) == 0) {
+                // Keep waiting
+            }
+            return n;
+        }
+
+        // Read bytes that have arrived, waiting up to timeoutNs for the first one
+        synchronized int poll(byte[] b, int off, int len, long timeoutNs)
+                throws InterruptedException {
+            long deadline = timeoutNs == Long.MAX_VALUE ? Long.MAX_VALUE : System.nanoTime() + timeoutNs;
+            for (;;) {
+                long now = System.nanoTime();
+                if (m_extra >= 0 || (m_count > 0 && m_arrivalNs[m_head] <= now)) {
+                    break;
+                }
+                long waitUntil = m_count > 0 ? Math.min(deadline, m_arrivalNs[m_head]) : deadline;
+                long waitNs = waitUntil - now;
+                if (waitNs <= 0) {
+                    if (now - deadline >= 0) {
+                        return 0;
+                    }
+                    continue;
+                }
+                wait(waitNs / 1000000L, (int) (waitNs % 1000000L));
+            }
+
+            long now = System.nanoTime();
+            int receiverRate = m_receiverRate;
+            int n = 0;
+            while (n < len && (m_extra >= 0 || (m_count > 0 && m_arrivalNs[m_head] <= now))) {
+                if (m_extra >= 0) {
+                    b[off + n++] = (byte) m_extra;
+                    m_extra = -1;
+                    continue;
+                }
+                byte value = m_data[m_head];
+                int rate = m_rates[m_head];
+                m_head = (m_head + 1) % CAPACITY;
+                m_count--;
+                if (rate != receiverRate) {
+                    // Receiver sampling at the wrong rate sees garbage.  Its start bits don't
+                    // line up with the sender's: sampling slower it misses bytes, faster it
+                    // sees more bytes than were sent.
+                    value = (byte) (value ^ 0x5A ^ (rate >> 3));
+                    m_garbled++;
+                    if (receiverRate < rate && m_garbled % 3 == 0) {
+                        continue;
+                    }
+                    if (receiverRate > rate && m_garbled % 3 == 0) {
+                        m_extra = (value ^ 0xFF) & 0xFF;
+                    }
+                }
+                b[off + n++] = value;
+            }
+            notifyAll(); // Room for blocked writers
+            return n;
+        }
+    }
+}
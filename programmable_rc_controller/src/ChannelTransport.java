@@ -0,0 +1,126 @@
+////////////////////////////////////////////////////////////////////////////////////////////////
+//    Copyright (C) 2012 Jon Bennett
+//
+//    This file is part of Programmable RC Car Controller.
+//
+//    http://www.jbprojects.net/articles/programmable-rc/
+//
+//    Programmable RC Car Controller is free software: you can redistribute it and/or modify
+//    it under the terms of the GNU General Public License as published by
+//    the Free Software Foundation, either version 3 of the License, or
+//    (at your option) any later version.
+//
+//    Programmable RC Car Controller is distributed in the hope that it will be useful,
+//    but WITHOUT ANY WARRANTY; without even the implied warranty of
+//    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+//    GNU General Public License for more details.
+//
+//    You should have received a copy of the GNU General Public License
+//    along with Programmable RC Car Controller.  If not, see <http://www.gnu.org/licenses/>.
+////////////////////////////////////////////////////////////////////////////////////////////////
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+
+// Base class for transports built on NIO channels (tty, socket, emulator).
+// Subclasses open the channels; this class runs the reader thread and
+// measures the writes.
+public abstract class ChannelTransport implements Transport {
+    private final TransportStats m_stats = new TransportStats();
+
+    private volatile ReadableByteChannel m_in;
+    private volatile WritableByteChannel m_out;
+    private Thread m_readerThread;
+
+    // Reused for every write, only touched by the writer thread
+    private ByteBuffer m_writeBuffer = ByteBuffer.allocate(64);
+
+    // Open the channels.  May return the same object for both directions.
+    protected abstract ReadableByteChannel openInput() throws IOException;
+
+    protected abstract WritableByteChannel openOutput() throws IOException;
+
+    public synchronized String open(final Receiver receiver) {
+        try {
+            m_in = openInput();
+            m_out = openOutput();
+        } catch (IOException e) {
+            closeChannels();
+            return e.toString();
+        }
+        m_stats.reset();
+
+        final ReadableByteChannel in = m_in;
+        m_readerThread = new Thread(new Runnable() {
+            public void run() {
+                ByteBuffer buffer = ByteBuffer.allocate(256);
+                try {
+                    while (!Thread.currentThread().isInterrupted()) {
+                        buffer.clear();
+                        int n = in.read(buffer);
+                        if (n < 0) {
+                            break;
+                        }
+                        if (n > 0) {
+                            m_stats.recordRead(n);
+                            receiver.received(buffer.array(), 0, n);
+                        }
+                    }
+                } catch (IOException e) {
+                    // Closed
+                }
+            }
+        }, getName() + "-Reader");
+        m_readerThread.setDaemon(true);
+        m_readerThread.start();
+        return null;
+    }
+
+    public synchronized void close() {
+        if (m_readerThread != null) {
+            m_readerThread.interrupt();
+            m_readerThread = null;
+        }
+        closeChannels();
+    }
+
+    private void closeChannels() {
+        try {
+            if (m_in != null) {
+                m_in.close();
+            }
+            if (m_out != null && m_out != m_in) {
+                m_out.close();
+            }
+        } catch (IOException e) {
+            // Nothing more we can do
+        }
+        m_in = null;
+        m_out = null;
+    }
+
+    public void write(byte[] data, int offset, int length) throws IOException {
+        WritableByteChannel out = m_out;
+        if (out == null) {
+            throw new IOException(getName() + " is not open");
+        }
+        if (m_writeBuffer.capacity() < length) {
+            m_writeBuffer = ByteBuffer.allocate(length);
+        }
+        m_writeBuffer.clear();
+        m_writeBuffer.put(data, offset, length);
+        m_writeBuffer.flip();
+
+        long start = System.nanoTime();
+        while (m_writeBuffer.hasRemaining()) {
+            out.write(m_writeBuffer);
+        }
+        m_stats.recordWrite(length, System.nanoTime() - start);
+    }
+
+    public TransportStats getStats() {
+        return m_stats;
+    }
+}
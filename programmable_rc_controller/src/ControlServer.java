@@ -0,0 +1,555 @@
+////////////////////////////////////////////////////////////////////////////////////////////////
+//    Copyright (C) 2012 Jon Bennett
+//
+//    This file is part of Programmable RC Car Controller.
+//
+//    http://www.jbprojects.net/articles/programmable-rc/
+//
+//    Programmable RC Car Controller is free software: you can redistribute it and/or modify
+//    it under the terms of the GNU General Public License as published by
+//    the Free Software Foundation, either version 3 of the License, or
+//    (at your option) any later version.
+//
+//    Programmable RC Car Controller is distributed in the hope that it will be useful,
+//    but WITHOUT ANY WARRANTY; without even the implied warranty of
+//    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+//    GNU General Public License for more details.
+//
+//    You should have received a copy of the GNU General Public License
+//    along with Programmable RC Car Controller.  If not, see <http://www.gnu.org/licenses/>.
+////////////////////////////////////////////////////////////////////////////////////////////////
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+// Lets test rigs and remote operators drive the car over TCP.
+// One thread serves every client with a Selector and only does I/O, so nothing ever
+// blocks it: calls into RCController, which may wait for room in the send queue or
+// compile a sequence, are handed to a worker thread in the order they arrived.
+//
+// Clients send 4 byte frames in the car's format (ID, DATA1, DATA2, CHECKSUM):
+//   30 DRIVE           keyState, speed           Owner only, sent like a key press
+//   31 SEQUENCE_START  -                         Owner only, plays the configured sequence
+//   32 SEQUENCE_STOP   -                         Owner only
+//   33 ACQUIRE         -                         Become the owner if nobody is
+//   34 RELEASE         -                         Stop being the owner, the car is stopped
+//   35 SUBSCRIBE       1 = on, 0 = off           Receive the car's status frames
+//   36 PING            any, any                  Echoed back in a PONG
+//
+// The server answers with:
+//   120 ACK            command id, sent once the command is accepted
+//   121 NAK            command id, reason (see NAK_*)
+//   122 OWNER          1 if this client now owns the car, 0 if it doesn't
+//   123 PONG           the PING's data bytes
+// and sends subscribers the car's own status frames (100 - 109, see TelemetryParser).
+//
+// Only one client owns the car at a time, any number may watch.  When the owner
+// releases control or disconnects the car is stopped.
+// Commands go through the same RCController methods as the keyboard, so they are
+// logged, recorded and coalesced the same way.  While the worker is busy, a drive
+// command replaces the one queued before it if both have the same direction.
+public class ControlServer implements Runnable {
+    // Client commands
+    static final byte DRIVE = 30;
+    static final byte SEQUENCE_START = 31;
+    static final byte SEQUENCE_STOP = 32;
+    static final byte ACQUIRE = 33;
+    static final byte RELEASE = 34;
+    static final byte SUBSCRIBE = 35;
+    static final byte PING = 36;
+
+    // Server replies
+    static final byte REPLY_ACK = 120;
+    static final byte REPLY_NAK = 121;
+    static final byte REPLY_OWNER = 122;
+    static final byte REPLY_PONG = 123;
+
+    // Reasons a command was refused
+    static final byte NAK_NOT_OWNER = 1;
+    static final byte NAK_BAD_CHECKSUM = 2;
+    static final byte NAK_UNKNOWN_COMMAND = 3;
+    static final byte NAK_OWNED = 4;
+    static final byte NAK_BUSY = 5;
+
+    public static final int DEFAULT_MAX_CLIENTS = 512;
+
+    private static final int FRAME_SIZE = 4;
+
+    // Unsent bytes a client may have before its telemetry is dropped.
+    // A client that doesn't even read the replies to its commands is disconnected.
+    private static final int OUTPUT_CAPACITY = 4096;
+
+    // Work for the worker thread: { WORK_*, data1, data2, System.nanoTime the command was read }
+    private static final int WORK_DRIVE = 0;
+    private static final int WORK_SEQUENCE_START = 1;
+    private static final int WORK_SEQUENCE_STOP = 2;
+    private static final int WORK_QUIT = 3;
+
+    // Commands that may wait for the worker before new ones are refused
+    private static final int MAX_QUEUED_WORK = 256;
+
+    private final RCController m_controller;
+    private final RCControllerGUI m_gui;
+    private final int m_maxClients;
+
+    private Selector m_selector;
+    private ServerSocketChannel m_serverChannel;
+    private Thread m_thread;
+    private volatile boolean m_running;
+
+    // Commands for the worker, a new queue for every start().  Guarded by the lock on itself.
+    private ArrayDeque<long[]> m_work;
+
+    // Everything below is only touched by the server thread
+    private final List<Client> m_clients = new ArrayList<Client>();
+    private Client m_owner;
+
+    // Status frames from the car, queued by the transport's receiving thread
+    private final ConcurrentLinkedQueue<byte[]> m_telemetry = new ConcurrentLinkedQueue<byte[]>();
+    private final AtomicBoolean m_wakeupPending = new AtomicBoolean();
+    private final TelemetryListener m_telemetryListener = new Forwarder();
+
+    // Time from reading a command to the worker having handed it to the controller
+    private final LatencyHistogram m_commandLatency = new LatencyHistogram();
+    private volatile long m_commands;
+    private volatile long m_refused;
+    private volatile long m_telemetryDropped;
+    private volatile int m_numClients;
+
+    // gui may be null, then sequences can't be started and remote commands aren't shown
+    public ControlServer(RCController controller, RCControllerGUI gui, int maxClients) {
+        m_controller = controller;
+        m_gui = gui;
+        m_maxClients = maxClients;
+    }
+
+    // Listen on host:port and start the server thread, port 0 picks a free port
+    // Returns an error message on failure, null on success
+    public synchronized String start(String host, int port) {
+        if (m_running) {
+            return "The control server is already running.";
+        }
+        try {
+            m_selector = Selector.open();
+            m_serverChannel = ServerSocketChannel.open();
+            m_serverChannel.socket().setReuseAddress(true);
+            m_serverChannel.socket().bind(new InetSocketAddress(host, port));
+            m_serverChannel.configureBlocking(false);
+            m_serverChannel.register(m_selector, SelectionKey.OP_ACCEPT);
+        } catch (IOException e) {
+            closeQuietly();
+            return "Could not listen on " + host + ":" + port + ": " + e.getMessage();
+        }
+        m_controller.addTelemetryListener(m_telemetryListener);
+        m_running = true;
+        m_work = new ArrayDeque<long[]>();
+        Thread worker = new Thread(new Worker(m_work), "ControlServer-Worker");
+        worker.setDaemon(true);
+        worker.start();
+        m_thread = new Thread(this, "ControlServer");
+        m_thread.setDaemon(true);
+        m_thread.start();
+        return null;
+    }
+
+    // Disconnect every client and stop listening, the car is stopped if someone owned it
+    public void stop() {
+        Thread thread;
+        synchronized (this) {
+            if (!m_running) {
+                return;
+            }
+            m_running = false;
+            thread = m_thread;
+            m_controller.removeTelemetryListener(m_telemetryListener);
+            m_selector.wakeup();
+        }
+        try {
+            thread.join(1000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    // The port the server listens on, -1 when it isn't running
+    public synchronized int getLocalPort() {
+        return m_running ? m_serverChannel.socket().getLocalPort() : -1;
+    }
+
+    public String getSummary() {
+        return String.format("Control server: clients=%d commands=%d refused=%d telemetryDropped=%d commandUs p50=%.1f p99=%.1f max=%.1f",
+                m_numClients, m_commands, m_refused, m_telemetryDropped,
+                m_commandLatency.getPercentileNs(50) / 1e3, m_commandLatency.getPercentileNs(99) / 1e3,
+                m_commandLatency.getMaxNs() / 1e3);
+    }
+
+    // Server thread body
+    public void run() {
+        try {
+            while (m_running) {
+                m_selector.select();
+                m_wakeupPending.set(false);
+                forwardTelemetry();
+
+                Iterator<SelectionKey> keys = m_selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    if (!key.isValid()) {
+                        continue;
+                    }
+                    if (key.isAcceptable()) {
+                        accept();
+                        continue;
+                    }
+                    Client client = (Client) key.attachment();
+                    if (key.isReadable()) {
+                        read(client);
+                    }
+                    if (key.isValid() && key.isWritable()) {
+                        flush(client);
+                    }
+                }
+            }
+        } catch (IOException e) {
+            System.err.println("Error: control server stopped: " + e.getMessage());
+        } finally {
+            m_running = false;
+            while (!m_clients.isEmpty()) {
+                disconnect(m_clients.get(m_clients.size() - 1));
+            }
+            submit(WORK_QUIT, (byte) 0, (byte) 0, System.nanoTime());
+            closeQuietly();
+        }
+    }
+
+    private void accept() throws IOException {
+        SocketChannel channel;
+        while ((channel = m_serverChannel.accept()) != null) {
+            if (m_clients.size() >= m_maxClients) {
+                channel.close();
+                continue;
+            }
+            channel.configureBlocking(false);
+            // Frames are tiny, send them right away
+            channel.socket().setTcpNoDelay(true);
+            Client client = new Client(channel);
+            client.m_key = channel.register(m_selector, SelectionKey.OP_READ, client);
+            m_clients.add(client);
+            m_numClients = m_clients.size();
+        }
+    }
+
+    // Read what the client sent and run every complete frame
+    private void read(Client client) {
+        int count;
+        try {
+            count = client.m_channel.read(client.m_input);
+        } catch (IOException e) {
+            count = -1;
+        }
+        if (count < 0) {
+            disconnect(client);
+            return;
+        }
+        long receivedNs = System.nanoTime();
+        ByteBuffer input = client.m_input;
+        input.flip();
+        while (input.remaining() >= FRAME_SIZE && client.m_key.isValid()) {
+            byte id = input.get();
+            byte data1 = input.get();
+            byte data2 = input.get();
+            byte checksum = input.get();
+            if (checksum != (byte) (id + data1 + data2)) {
+                refuse(client, id, NAK_BAD_CHECKSUM);
+                continue;
+            }
+            execute(client, id, data1, data2, receivedNs);
+        }
+        input.compact();
+        if (client.m_key.isValid()) {
+            flush(client);
+        }
+    }
+
+    private void execute(Client client, byte id, byte data1, byte data2, long receivedNs) {
+        m_commands++;
+        switch (id) {
+        case DRIVE:
+        case SEQUENCE_START:
+        case SEQUENCE_STOP:
+            if (client != m_owner || (id == SEQUENCE_START && m_gui == null)) {
+                refuse(client, id, NAK_NOT_OWNER);
+                return;
+            }
+            int work = id == DRIVE ? WORK_DRIVE : id == SEQUENCE_START ? WORK_SEQUENCE_START : WORK_SEQUENCE_STOP;
+            if (!submit(work, data1, data2, receivedNs)) {
+                refuse(client, id, NAK_BUSY);
+                return;
+            }
+            break;
+        case ACQUIRE:
+            if (m_owner != null && m_owner != client) {
+                refuse(client, id, NAK_OWNED);
+                return;
+            }
+            m_owner = client;
+            reply(client, REPLY_OWNER, (byte) 1, (byte) 0);
+            break;
+        case RELEASE:
+            if (client == m_owner) {
+                releaseOwner();
+                reply(client, REPLY_OWNER, (byte) 0, (byte) 0);
+            }
+            break;
+        case SUBSCRIBE:
+            client.m_subscribed = data1 != 0;
+            break;
+        case PING:
+            reply(client, REPLY_PONG, data1, data2);
+            return;
+        default:
+            refuse(client, id, NAK_UNKNOWN_COMMAND);
+            return;
+        }
+        reply(client, REPLY_ACK, id, (byte) 0);
+    }
+
+    // Nobody owns the car any more, so make sure it isn't left driving
+    private void releaseOwner() {
+        m_owner = null;
+        submit(WORK_DRIVE, m_controller.STOP, (byte) 0, System.nanoTime());
+    }
+
+    // Queue work for the worker thread, only holds the lock for as long as the worker does to take it
+    // Returns false if too much work is waiting
+    private boolean submit(int work, byte data1, byte data2, long receivedNs) {
+        synchronized (m_work) {
+            long[] last = m_work.peekLast();
+            if (work == WORK_DRIVE && last != null && last[0] == WORK_DRIVE && last[1] == data1) {
+                // Same direction, only the newest speed matters
+                last[2] = data2;
+                last[3] = receivedNs;
+                return true;
+            }
+            // Stopping the car and the worker is never refused
+            boolean stop = work == WORK_QUIT || (work == WORK_DRIVE && data1 == m_controller.STOP);
+            if (m_work.size() >= MAX_QUEUED_WORK && !stop) {
+                return false;
+            }
+            m_work.addLast(new long[] { work, data1, data2, receivedNs });
+            m_work.notifyAll();
+            return true;
+        }
+    }
+
+    private void refuse(Client client, byte id, byte reason) {
+        m_refused++;
+        reply(client, REPLY_NAK, id, reason);
+    }
+
+    // Queue a reply, a client too far behind to take it is disconnected
+    private void reply(Client client, byte id, byte data1, byte data2) {
+        if (client.m_output.remaining() < FRAME_SIZE) {
+            disconnect(client);
+            return;
+        }
+        client.m_output.put(id).put(data1).put(data2).put((byte) (id + data1 + data2));
+    }
+
+    // Send the queued status frames to every subscriber
+    private void forwardTelemetry() {
+        byte[] frame;
+        while ((frame = m_telemetry.poll()) != null) {
+            for (int i = m_clients.size() - 1; i >= 0; i--) {
+                Client client = m_clients.get(i);
+                if (!client.m_subscribed) {
+                    continue;
+                }
+                if (client.m_output.remaining() < FRAME_SIZE) {
+                    m_telemetryDropped++; // Slow watcher, the next state will catch it up
+                    continue;
+                }
+                client.m_output.put(frame);
+                client.m_telemetryPending = true;
+            }
+        }
+        for (int i = m_clients.size() - 1; i >= 0; i--) {
+            Client client = m_clients.get(i);
+            if (client.m_telemetryPending) {
+                client.m_telemetryPending = false;
+                flush(client);
+            }
+        }
+    }
+
+    // Write as much of the client's output as the socket takes, wait for OP_WRITE for the rest
+    private void flush(Client client) {
+        ByteBuffer output = client.m_output;
+        if (output.position() == 0) {
+            return;
+        }
+        output.flip();
+        try {
+            client.m_channel.write(output);
+        } catch (IOException e) {
+            output.compact();
+            disconnect(client);
+            return;
+        }
+        output.compact();
+        int ops = output.position() > 0 ? SelectionKey.OP_READ | SelectionKey.OP_WRITE : SelectionKey.OP_READ;
+        if (client.m_key.interestOps() != ops) {
+            client.m_key.interestOps(ops);
+        }
+    }
+
+    private void disconnect(Client client) {
+        if (!m_clients.remove(client)) {
+            return;
+        }
+        m_numClients = m_clients.size();
+        client.m_key.cancel();
+        try {
+            client.m_channel.close();
+        } catch (IOException e) {
+            // Nothing more we can do
+        }
+        if (client == m_owner) {
+            releaseOwner();
+        }
+    }
+
+    private void closeQuietly() {
+        try {
+            if (m_serverChannel != null) {
+                m_serverChannel.close();
+            }
+            if (m_selector != null) {
+                m_selector.close();
+            }
+        } catch (IOException e) {
+            // Nothing more we can do
+        }
+    }
+
+    // Called on the transport's receiving thread: queue the frame and wake the server thread once
+    private void queueTelemetry(int status, int data1, int data2) {
+        m_telemetry.add(new byte[] { (byte) status, (byte) data1, (byte) data2, (byte) (status + data1 + data2) });
+        if (m_wakeupPending.compareAndSet(false, true)) {
+            m_selector.wakeup();
+        }
+    }
+
+    // Runs the queued commands against the controller, may block without holding up the selector
+    private class Worker implements Runnable {
+        private final ArrayDeque<long[]> m_queue;
+
+        Worker(ArrayDeque<long[]> queue) {
+            m_queue = queue;
+        }
+
+        public void run() {
+            while (true) {
+                long[] work;
+                synchronized (m_queue) {
+                    while (m_queue.isEmpty()) {
+                        try {
+                            m_queue.wait();
+                        } catch (InterruptedException e) {
+                            // Only submit() wakes this thread
+                        }
+                    }
+                    work = m_queue.pollFirst();
+                }
+                switch ((int) work[0]) {
+                case WORK_DRIVE:
+                    byte keyState = (byte) work[1];
+                    m_controller.sendDirectionCommand(keyState, (byte) work[2]);
+                    if (m_gui != null) {
+                        m_gui.remoteUpdateGUI(keyState);
+                    }
+                    break;
+                case WORK_SEQUENCE_START:
+                    m_controller.processProgrammedSequence(m_gui);
+                    break;
+                case WORK_SEQUENCE_STOP:
+                    m_controller.getPlayer().cancel();
+                    m_controller.cancelTrajectory();
+                    m_controller.abortSequenceOnCar();
+                    break;
+                case WORK_QUIT:
+                    return;
+                }
+                m_commandLatency.record(System.nanoTime() - work[3]);
+            }
+        }
+    }
+
+    private static class Client {
+        final SocketChannel m_channel;
+        final ByteBuffer m_input = ByteBuffer.allocate(256);
+        final ByteBuffer m_output = ByteBuffer.allocate(OUTPUT_CAPACITY);
+        SelectionKey m_key;
+        boolean m_subscribed;
+        boolean m_telemetryPending;
+
+        Client(SocketChannel channel) {
+            m_channel = channel;
+        }
+    }
+
+    // Re-encodes what the car reports as its own status frames
+    private class Forwarder implements TelemetryListener {
+        public void commandAcknowledged(int commandId) {
+            queueTelemetry(TelemetryParser.STATUS_ACK, commandId, 0);
+        }
+
+        public void checksumFailed(int commandId, int checksum) {
+            queueTelemetry(TelemetryParser.STATUS_BAD_CHECKSUM, commandId, checksum);
+        }
+
+        public void invalidCommand(int commandId) {
+            queueTelemetry(TelemetryParser.STATUS_INVALID_CMD, commandId, 0);
+        }
+
+        public void stateApplied(int keyState, int speed) {
+            queueTelemetry(TelemetryParser.STATUS_STATE, keyState, speed);
+        }
+
+        public void sequenceAcknowledged(int seq) {
+            queueTelemetry(TelemetryParser.STATUS_ACK_SEQ, seq, 0);
+        }
+
+        public void pongReceived(int data1, int data2) {
+            queueTelemetry(TelemetryParser.STATUS_PONG, data1, data2);
+        }
+
+        public void routineStored(int steps) {
+            queueTelemetry(TelemetryParser.STATUS_UPLOADED, steps, steps >> 8);
+        }
+
+        public void routineProgress(int step, int keyState) {
+            queueTelemetry(TelemetryParser.STATUS_PROGRESS, step, keyState);
+        }
+
+        public void routineFinished(boolean aborted) {
+            queueTelemetry(TelemetryParser.STATUS_DONE, aborted ? 1 : 0, 0);
+        }
+
+        public void failsafeTriggered() {
+            queueTelemetry(TelemetryParser.STATUS_FAILSAFE, 0, 0);
+        }
+    }
+}
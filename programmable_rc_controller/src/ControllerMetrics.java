@@ -0,0 +1,323 @@
+////////////////////////////////////////////////////////////////////////////////////////////////
+//    Copyright (C) 2012 Jon Bennett
+//
+//    This file is part of Programmable RC Car Controller.
+//
+//    http://www.jbprojects.net/articles/programmable-rc/
+//
+//    Programmable RC Car Controller is free software: you can redistribute it and/or modify
+//    it under the terms of the GNU General Public License as published by
+//    the Free Software Foundation, either version 3 of the License, or
+//    (at your option) any later version.
+//
+//    Programmable RC Car Controller is distributed in the hope that it will be useful,
+//    but WITHOUT ANY WARRANTY; without even the implied warranty of
+//    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+//    GNU General Public License for more details.
+//
+//    You should have received a copy of the GNU General Public License
+//    along with Programmable RC Car Controller.  If not, see <http://www.gnu.org/licenses/>.
+////////////////////////////////////////////////////////////////////////////////////////////////
+
+import java.io.BufferedWriter;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+// Latency and throughput of one controller's send path.
+// Recording never locks or allocates, so it can be done on the key handler,
+// the player thread and the port writer thread without slowing them down.
+// The metrics are published as an MBean (see register()) and can be appended
+// to a file at a fixed interval (see startSnapshots()).
+//   -Drc.metrics.file=<file> turns on snapshots from RCController.main
+//   -Drc.metrics.intervalMs=<ms> how often a snapshot is written (default 10000)
+public class ControllerMetrics extends TelemetryAdapter implements ControllerMetricsMBean {
+    // Domain of the MBean names, e.g. net.jbprojects.rc:type=ControllerMetrics,name=COM3
+    public static final String DOMAIN = "net.jbprojects.rc";
+
+    private final LatencyHistogram m_keyToWire = new LatencyHistogram();
+    private final LatencyHistogram m_sendCall = new LatencyHistogram();
+    private final LatencyHistogram m_stepLateness = new LatencyHistogram();
+    private final LatencyHistogram m_recovery = new LatencyHistogram();
+
+    private final AtomicLong m_framesSent = new AtomicLong();
+    private final AtomicLong m_bytesSent = new AtomicLong();
+    private final AtomicLong m_writeErrors = new AtomicLong();
+    private final AtomicLong m_carChecksumFailures = new AtomicLong();
+    private final AtomicLong m_carInvalidCommands = new AtomicLong();
+    private final AtomicLong m_carFailsafeStops = new AtomicLong();
+    private final AtomicLong m_linkLosses = new AtomicLong();
+
+    private ObjectName m_objectName;
+    private volatile Thread m_snapshotThread;
+
+    // A key press was written to the port keyToWireNs after the key event
+    public void recordKeyToWire(long keyToWireNs) {
+        m_keyToWire.record(keyToWireNs);
+    }
+
+    // One call to RCCom.sendData took elapsedNs
+    public void recordSendCall(long elapsedNs) {
+        m_sendCall.record(elapsedNs);
+    }
+
+    // A sequence step was sent latenessNs after it was due
+    public void recordStepLateness(long latenessNs) {
+        m_stepLateness.record(latenessNs);
+    }
+
+    // A frame was written to the port
+    public void recordFrameSent(int bytes) {
+        m_framesSent.incrementAndGet();
+        m_bytesSent.addAndGet(bytes);
+    }
+
+    public void recordWriteError() {
+        m_writeErrors.incrementAndGet();
+    }
+
+    // The link to the car failed
+    public void recordLinkLost() {
+        m_linkLosses.incrementAndGet();
+    }
+
+    // The link was restored recoveryNs after it failed
+    public void recordRecovery(long recoveryNs) {
+        m_recovery.record(recoveryNs);
+    }
+
+    public LatencyHistogram getKeyToWire() {
+        return m_keyToWire;
+    }
+
+    public LatencyHistogram getSendCall() {
+        return m_sendCall;
+    }
+
+    public LatencyHistogram getStepLateness() {
+        return m_stepLateness;
+    }
+
+    public LatencyHistogram getRecovery() {
+        return m_recovery;
+    }
+
+    // Publish the metrics on the platform MBean server under a name for this car
+    // Returns an error message on failure, null on success
+    public synchronized String register(String name) {
+        unregister();
+        try {
+            ObjectName objectName = new ObjectName(DOMAIN + ":type=ControllerMetrics,name="
+                    + ObjectName.quote(name));
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this, objectName);
+            m_objectName = objectName;
+            return null;
+        } catch (Exception e) {
+            return e.getMessage();
+        }
+    }
+
+    public synchronized void unregister() {
+        if (m_objectName == null) {
+            return;
+        }
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            if (server.isRegistered(m_objectName)) {
+                server.unregisterMBean(m_objectName);
+            }
+        } catch (Exception e) {
+            // Already gone
+        }
+        m_objectName = null;
+    }
+
+    // Append a snapshot to fileName every intervalMs on a background thread
+    // Returns an error message on failure, null on success
+    public synchronized String startSnapshots(final String fileName, final long intervalMs) {
+        stopSnapshots();
+        final Writer writer;
+        try {
+            writer = new BufferedWriter(new FileWriter(fileName, true));
+        } catch (IOException e) {
+            return "Could not open " + fileName + ": " + e.getMessage();
+        }
+
+        Thread thread = new Thread(new Runnable() {
+            public void run() {
+                SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
+                try {
+                    while (!Thread.currentThread().isInterrupted()) {
+                        Thread.sleep(intervalMs);
+                        writer.write(format.format(new Date()) + " " + getSnapshot() + "\n");
+                        writer.flush();
+                    }
+                } catch (InterruptedException e) {
+                    // Stopped
+                } catch (IOException e) {
+                    System.err.println("Error: could not write metrics to " + fileName + ": " + e.getMessage());
+                } finally {
+                    try {
+                        writer.close();
+                    } catch (IOException e) {
+                        // Nothing more we can do
+                    }
+                }
+            }
+        }, "MetricsSnapshot");
+        thread.setDaemon(true);
+        thread.start();
+        m_snapshotThread = thread;
+        return null;
+    }
+
+    public synchronized void stopSnapshots() {
+        Thread thread = m_snapshotThread;
+        m_snapshotThread = null;
+        if (thread != null) {
+            thread.interrupt();
+        }
+    }
+
+    public long getKeyToWireCount() {
+        return m_keyToWire.getCount();
+    }
+
+    public double getKeyToWireMeanUs() {
+        return m_keyToWire.getMeanNs() / 1e3;
+    }
+
+    public double getKeyToWireP50Us() {
+        return m_keyToWire.getPercentileNs(50) / 1e3;
+    }
+
+    public double getKeyToWireP99Us() {
+        return m_keyToWire.getPercentileNs(99) / 1e3;
+    }
+
+    public double getKeyToWireMaxUs() {
+        return m_keyToWire.getMaxNs() / 1e3;
+    }
+
+    public long getSendCallCount() {
+        return m_sendCall.getCount();
+    }
+
+    public double getSendCallMeanUs() {
+        return m_sendCall.getMeanNs() / 1e3;
+    }
+
+    public double getSendCallP99Us() {
+        return m_sendCall.getPercentileNs(99) / 1e3;
+    }
+
+    public double getSendCallMaxUs() {
+        return m_sendCall.getMaxNs() / 1e3;
+    }
+
+    public long getStepLatenessCount() {
+        return m_stepLateness.getCount();
+    }
+
+    public double getStepLatenessMeanUs() {
+        return m_stepLateness.getMeanNs() / 1e3;
+    }
+
+    public double getStepLatenessP50Us() {
+        return m_stepLateness.getPercentileNs(50) / 1e3;
+    }
+
+    public double getStepLatenessP99Us() {
+        return m_stepLateness.getPercentileNs(99) / 1e3;
+    }
+
+    public double getStepLatenessMaxUs() {
+        return m_stepLateness.getMaxNs() / 1e3;
+    }
+
+    public long getFramesSent() {
+        return m_framesSent.get();
+    }
+
+    public long getBytesSent() {
+        return m_bytesSent.get();
+    }
+
+    public long getWriteErrors() {
+        return m_writeErrors.get();
+    }
+
+    public long getCarChecksumFailures() {
+        return m_carChecksumFailures.get();
+    }
+
+    public long getCarInvalidCommands() {
+        return m_carInvalidCommands.get();
+    }
+
+    public long getCarFailsafeStops() {
+        return m_carFailsafeStops.get();
+    }
+
+    public long getLinkLosses() {
+        return m_linkLosses.get();
+    }
+
+    public long getLinkRecoveries() {
+        return m_recovery.getCount();
+    }
+
+    public double getRecoveryMeanMs() {
+        return m_recovery.getMeanNs() / 1e6;
+    }
+
+    public double getRecoveryMaxMs() {
+        return m_recovery.getMaxNs() / 1e6;
+    }
+
+    public String getSnapshot() {
+        return "keyToWire[" + m_keyToWire + "] sendCall[" + m_sendCall
+                + "] stepLateness[" + m_stepLateness + "]"
+                + " framesSent=" + getFramesSent() + " bytesSent=" + getBytesSent()
+                + " writeErrors=" + getWriteErrors()
+                + " carBadChecksum=" + getCarChecksumFailures()
+                + " carInvalidCmd=" + getCarInvalidCommands()
+                + " carFailsafe=" + getCarFailsafeStops()
+                + " linkLosses=" + getLinkLosses()
+                + " recovery[" + m_recovery + "]";
+    }
+
+    public void reset() {
+        m_keyToWire.reset();
+        m_sendCall.reset();
+        m_stepLateness.reset();
+        m_recovery.reset();
+        m_framesSent.set(0);
+        m_bytesSent.set(0);
+        m_writeErrors.set(0);
+        m_carChecksumFailures.set(0);
+        m_carInvalidCommands.set(0);
+        m_carFailsafeStops.set(0);
+        m_linkLosses.set(0);
+    }
+
+    // Count the error reports sent back by the car
+    public void checksumFailed(int commandId, int checksum) {
+        m_carChecksumFailures.incrementAndGet();
+    }
+
+    public void invalidCommand(int commandId) {
+        m_carInvalidCommands.incrementAndGet();
+    }
+
+    public void failsafeTriggered() {
+        m_carFailsafeStops.incrementAndGet();
+    }
+}
@@ -0,0 +1,65 @@
+////////////////////////////////////////////////////////////////////////////////////////////////
+//    Copyright (C) 2012 Jon Bennett
+//
+//    This file is part of Programmable RC Car Controller.
+//
+//    http://www.jbprojects.net/articles/programmable-rc/
+//
+//    Programmable RC Car Controller is free software: you can redistribute it and/or modify
+//    it under the terms of the GNU General Public License as published by
+//    the Free Software Foundation, either version 3 of the License, or
+//    (at your option) any later version.
+//
+//    Programmable RC Car Controller is distributed in the hope that it will be useful,
+//    but WITHOUT ANY WARRANTY; without even the implied warranty of
+//    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+//    GNU General Public License for more details.
+//
+//    You should have received a copy of the GNU General Public License
+//    along with Programmable RC Car Controller.  If not, see <http://www.gnu.org/licenses/>.
+////////////////////////////////////////////////////////////////////////////////////////////////
+
+// Attributes and operations ControllerMetrics publishes over JMX.
+// Latencies are in microseconds.
+public interface ControllerMetricsMBean {
+    // Key press in the GUI until the drive frame was written to the port
+    long getKeyToWireCount();
+    double getKeyToWireMeanUs();
+    double getKeyToWireP50Us();
+    double getKeyToWireP99Us();
+    double getKeyToWireMaxUs();
+
+    // Time spent in RCCom.sendData queueing a frame
+    long getSendCallCount();
+    double getSendCallMeanUs();
+    double getSendCallP99Us();
+    double getSendCallMaxUs();
+
+    // How late sequence steps were sent after they were due
+    long getStepLatenessCount();
+    double getStepLatenessMeanUs();
+    double getStepLatenessP50Us();
+    double getStepLatenessP99Us();
+    double getStepLatenessMaxUs();
+
+    long getFramesSent();
+    long getBytesSent();
+    long getWriteErrors();
+
+    // Reports parsed from the car's status frames
+    long getCarChecksumFailures();
+    long getCarInvalidCommands();
+    long getCarFailsafeStops();
+
+    // Link outages and the time from the first failed write until the link was restored
+    long getLinkLosses();
+    long getLinkRecoveries();
+    double getRecoveryMeanMs();
+    double getRecoveryMaxMs();
+
+    // Every metric on one line, as written to the snapshot file
+    String getSnapshot();
+
+    // Start counting from zero
+    void reset();
+}
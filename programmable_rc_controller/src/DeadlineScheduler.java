@@ -0,0 +1,132 @@
+////////////////////////////////////////////////////////////////////////////////////////////////
+//    Copyright (C) 2012 Jon Bennett
+//
+//    This file is part of Programmable RC Car Controller.
+//
+//    http://www.jbprojects.net/articles/programmable-rc/
+//
+//    Programmable RC Car Controller is free software: you can redistribute it and/or modify
+//    it under the terms of the GNU General Public License as published by
+//    the Free Software Foundation, either version 3 of the License, or
+//    (at your option) any later version.
+//
+//    Programmable RC Car Controller is distributed in the hope that it will be useful,
+//    but WITHOUT ANY WARRANTY; without even the implied warranty of
+//    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+//    GNU General Public License for more details.
+//
+//    You should have received a copy of the GNU General Public License
+//    along with Programmable RC Car Controller.  If not, see <http://www.gnu.org/licenses/>.
+////////////////////////////////////////////////////////////////////////////////////////////////
+
+import java.util.Arrays;
+import java.util.concurrent.locks.LockSupport;
+
+// This class waits for absolute deadlines measured with System.nanoTime.
+// Deadlines are offsets from the time start() was called, so time spent sending
+// a step or updating the GUI never pushes the following steps back.
+// It also records how late each deadline was actually reached.
+public class DeadlineScheduler {
+    // Remaining time below which we spin instead of parking.
+    // Parking can overshoot by an OS scheduler quantum, spinning does not.
+    static final long SPIN_THRESHOLD_NS = 2000000L; // 2 ms
+
+    // Most lateness samples kept for the percentiles, so very long sequences use bounded memory.
+    // Beyond this the oldest samples are overwritten; min, mean and max stay exact.
+    private static final int MAX_SAMPLES = 65536;
+
+    private long m_startNs;
+    private long[] m_latenessNs;
+    private int m_numRecorded;
+    private long m_sumNs;
+    private long m_minNs;
+    private long m_maxNs;
+
+    // expectedDeadlines is the number of lateness samples to reserve room for
+    public DeadlineScheduler(int expectedDeadlines) {
+        m_latenessNs = new long[Math.min(Math.max(expectedDeadlines, 1), MAX_SAMPLES)];
+    }
+
+    // Mark time zero.  All deadlines are relative to this point.
+    public void start() {
+        start(System.nanoTime());
+    }
+
+    // Use startNs (a System.nanoTime value) as time zero, e.g. one shared by several cars
+    public void start(long startNs) {
+        m_startNs = startNs;
+        m_numRecorded = 0;
+        m_sumNs = 0;
+        m_minNs = Long.MAX_VALUE;
+        m_maxNs = Long.MIN_VALUE;
+    }
+
+    // Returns the time zero of the current run
+    public long getStartNs() {
+        return m_startNs;
+    }
+
+    // Block until offsetNs after start() and record the lateness
+    // Returns false if the thread was interrupted while waiting
+    public boolean awaitOffset(long offsetNs) {
+        long deadline = m_startNs + offsetNs;
+        if (!sleepUntil(deadline)) {
+            return false;
+        }
+        record(System.nanoTime() - deadline);
+        return true;
+    }
+
+    // Block until System.nanoTime() reaches deadlineNs
+    // Coarse parking first, then a short spin for the last couple of milliseconds
+    // Returns false if the thread was interrupted while waiting
+    public static boolean sleepUntil(long deadlineNs) {
+        long remaining;
+        while ((remaining = deadlineNs - System.nanoTime()) > SPIN_THRESHOLD_NS) {
+            LockSupport.parkNanos(remaining - SPIN_THRESHOLD_NS);
+            if (Thread.currentThread().isInterrupted()) {
+                return false;
+            }
+        }
+        while (deadlineNs - System.nanoTime() > 0) {
+            // Spin tail
+        }
+        return !Thread.currentThread().isInterrupted();
+    }
+
+    // Record the lateness of a deadline that was waited for elsewhere (see FleetController)
+    void record(long latenessNs) {
+        if (m_numRecorded == m_latenessNs.length && m_latenessNs.length < MAX_SAMPLES) {
+            m_latenessNs = Arrays.copyOf(m_latenessNs, Math.min(m_latenessNs.length * 2, MAX_SAMPLES));
+        }
+        m_latenessNs[m_numRecorded % m_latenessNs.length] = latenessNs;
+        m_numRecorded++;
+        m_sumNs += latenessNs;
+        m_minNs = Math.min(m_minNs, latenessNs);
+        m_maxNs = Math.max(m_maxNs, latenessNs);
+    }
+
+    // Number of deadlines reached since start()
+    public int getNumRecorded() {
+        return m_numRecorded;
+    }
+
+    // Returns a one line min/mean/p99/max summary of the lateness in milliseconds
+    public String getLatenessSummary() {
+        if (m_numRecorded == 0) {
+            return "Step lateness: no steps";
+        }
+
+        // p99 over the most recent MAX_SAMPLES steps
+        long[] sorted = Arrays.copyOf(m_latenessNs, Math.min(m_numRecorded, m_latenessNs.length));
+        Arrays.sort(sorted);
+        int p99Index = (int) Math.ceil(sorted.length * 0.99) - 1;
+
+        return String.format("Step lateness (ms) over %d steps: min=%.3f mean=%.3f p99=%.3f max=%.3f",
+                m_numRecorded,
+                m_minNs / 1e6,
+                (m_sumNs / (double) m_numRecorded) / 1e6,
+                sorted[Math.max(p99Index, 0)] / 1e6,
+                m_maxNs / 1e6);
+    }
+}
@@ -0,0 +1,147 @@
+////////////////////////////////////////////////////////////////////////////////////////////////
+//    Copyright (C) 2012 Jon Bennett
+//
+//    This file is part of Programmable RC Car Controller.
+//
+//    http://www.jbprojects.net/articles/programmable-rc/
+//
+//    Programmable RC Car Controller is free software: you can redistribute it and/or modify
+//    it under the terms of the GNU General Public License as published by
+//    the Free Software Foundation, either version 3 of the License, or
+//    (at your option) any later version.
+//
+//    Programmable RC Car Controller is distributed in the hope that it will be useful,
+//    but WITHOUT ANY WARRANTY; without even the implied warranty of
+//    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+//    GNU General Public License for more details.
+//
+//    You should have received a copy of the GNU General Public License
+//    along with Programmable RC Car Controller.  If not, see <http://www.gnu.org/licenses/>.
+////////////////////////////////////////////////////////////////////////////////////////////////
+
+import java.util.Arrays;
+
+// Measures the controller end to end against CarEmulator, no serial hardware needed.
+// Reports key-to-pin latency (sendDirectionCommand until the emulated pins change)
+// and sequence timing accuracy (when each step reached the pins compared to its schedule).
+//
+// Usage: java EmulatorBenchmark [maxBaud] [reliable]
+public class EmulatorBenchmark {
+    private static final int KEY_PRESSES = 200;
+    private static final int SEQUENCE_STEPS = 100;
+    private static final long STEP_MS = 20;
+
+    // Marks a sample whose pin change never arrived
+    private static final long LOST = Long.MIN_VALUE;
+
+    // Pin changes seen by the emulator
+    private static final long[] s_pinTimes = new long[SEQUENCE_STEPS * 2 + KEY_PRESSES + 16];
+    private static volatile int s_numPinChanges;
+
+    public static void main(String[] args) throws Exception {
+        int maxBaud = args.length > 0 ? Integer.parseInt(args[0]) : RCCom.DATA_RATE;
+        boolean reliable = args.length > 1 && args[1].equalsIgnoreCase("reliable");
+
+        CarEmulator emulator = new CarEmulator();
+        emulator.setPinListener(new CarEmulator.PinListener() {
+            public void pinsChanged(int keyState, int speed, long timeNs) {
+                int n = s_numPinChanges;
+                if (n < s_pinTimes.length) {
+                    s_pinTimes[n] = timeNs;
+                    s_numPinChanges = n + 1;
+                }
+            }
+        });
+        emulator.start();
+
+        RCController controller = new RCController();
+        controller.getEventLog().setSink(EventLog.Sink.OFF, null);
+        String error = controller.attachEmulator(emulator);
+        if (error != null) {
+            System.err.println("Error: could not attach the emulator: " + error);
+            return;
+        }
+
+        if (maxBaud > RCCom.DATA_RATE) {
+            System.out.println(controller.negotiateDataRate(maxBaud));
+        }
+        if (reliable) {
+            controller.setReliable(true);
+        }
+        System.out.println("Data rate: " + controller.getDataRate() + " baud" + (reliable ? ", reliable" : ""));
+
+        measureKeyToPin(controller);
+        measureSequence(controller);
+
+        System.out.println(controller.getLinkStats());
+        System.exit(0);
+    }
+
+    // Alternate forward / stop and time how long each takes to reach the pins
+    private static void measureKeyToPin(RCController controller) throws InterruptedException {
+        long[] latencies = new long[KEY_PRESSES];
+        for (int i = 0; i < KEY_PRESSES; i++) {
+            byte keyState = (i % 2 == 0) ? controller.FORWARD_BIT : controller.STOP;
+            int seen = s_numPinChanges;
+            long start = System.nanoTime();
+            controller.sendDirectionCommand(keyState);
+
+            long deadline = start + 1000000000L;
+            while (s_numPinChanges == seen && System.nanoTime() < deadline) {
+                Thread.yield();
+            }
+            latencies[i] = s_numPinChanges == seen ? LOST : s_pinTimes[seen] - start;
+            Thread.sleep(5);
+        }
+        System.out.println("Key to pin latency " + summarize(latencies));
+    }
+
+    // Play a compiled sequence and compare when each step hit the pins with its schedule
+    private static void measureSequence(RCController controller) throws InterruptedException {
+        String[] cmds = new String[SEQUENCE_STEPS * 3];
+        for (int i = 0; i < SEQUENCE_STEPS; i++) {
+            cmds[i * 3] = (i % 2 == 0) ? "FL" : "FR";
+            cmds[i * 3 + 1] = "255";
+            cmds[i * 3 + 2] = Long.toString(STEP_MS);
+        }
+        SequenceTable table = SequenceTable.compile(controller, cmds);
+
+        int first = s_numPinChanges;
+        controller.getPlayer().play(table, null);
+        controller.getPlayer().awaitIdle();
+        Thread.sleep(200);
+
+        // Step i should reach the pins i * STEP_MS after step 0 did (negative is early)
+        long[] errors = new long[SEQUENCE_STEPS];
+        long origin = s_pinTimes[first];
+        for (int i = 0; i < SEQUENCE_STEPS; i++) {
+            int index = first + i;
+            errors[i] = index < s_numPinChanges ? (s_pinTimes[index] - origin) - i * STEP_MS * 1000000L : LOST;
+        }
+        System.out.println("Sequence step timing error " + summarize(errors));
+    }
+
+    // min/mean/p99/max in milliseconds, LOST samples are counted separately
+    private static String summarize(long[] samples) {
+        long[] sorted = new long[samples.length];
+        int n = 0;
+        for (int i = 0; i < samples.length; i++) {
+            if (samples[i] != LOST) {
+                sorted[n++] = samples[i];
+            }
+        }
+        if (n == 0) {
+            return "(ms): no samples";
+        }
+        sorted = Arrays.copyOf(sorted, n);
+        Arrays.sort(sorted);
+        long sum = 0;
+        for (int i = 0; i < n; i++) {
+            sum += sorted[i];
+        }
+        return String.format("(ms) over %d samples: min=%.3f mean=%.3f p99=%.3f max=%.3f lost=%d",
+                n, sorted[0] / 1e6, sum / (double) n / 1e6,
+                sorted[Math.max(0, (int) Math.ceil(n * 0.99) - 1)] / 1e6, sorted[n - 1] / 1e6,
+                samples.length - n);
+    }
+}
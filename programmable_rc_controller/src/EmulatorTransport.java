@@ -0,0 +1,59 @@
+////////////////////////////////////////////////////////////////////////////////////////////////
+//    Copyright (C) 2012 Jon Bennett
+//
+//    This file is part of Programmable RC Car Controller.
+//
+//    http://www.jbprojects.net/articles/programmable-rc/
+//
+//    Programmable RC Car Controller is free software: you can redistribute it and/or modify
+//    it under the terms of the GNU General Public License as published by
+//    the Free Software Foundation, either version 3 of the License, or
+//    (at your option) any later version.
+//
+//    Programmable RC Car Controller is distributed in the hope that it will be useful,
+//    but WITHOUT ANY WARRANTY; without even the implied warranty of
+//    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+//    GNU General Public License for more details.
+//
+//    You should have received a copy of the GNU General Public License
+//    along with Programmable RC Car Controller.  If not, see <http://www.gnu.org/licenses/>.
+////////////////////////////////////////////////////////////////////////////////////////////////
+
+import java.io.IOException;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+
+// Connects RCCom to an in-process CarEmulator instead of a serial port
+public class EmulatorTransport extends ChannelTransport {
+    private final CarEmulator m_emulator;
+
+    public EmulatorTransport(CarEmulator emulator) {
+        m_emulator = emulator;
+    }
+
+    @Override
+    public synchronized String open(Receiver receiver) {
+        m_emulator.setHostDataRate(RCCom.DATA_RATE);
+        return super.open(receiver);
+    }
+
+    @Override
+    protected ReadableByteChannel openInput() throws IOException {
+        return Channels.newChannel(m_emulator.getHostInputStream());
+    }
+
+    @Override
+    protected WritableByteChannel openOutput() throws IOException {
+        return Channels.newChannel(m_emulator.getHostOutputStream());
+    }
+
+    public String setDataRate(int dataRate) {
+        m_emulator.setHostDataRate(dataRate);
+        return null;
+    }
+
+    public String getName() {
+        return "emulator";
+    }
+}
@@ -0,0 +1,258 @@
+////////////////////////////////////////////////////////////////////////////////////////////////
+//    Copyright (C) 2012 Jon Bennett
+//
+//    This file is part of Programmable RC Car Controller.
+//
+//    http://www.jbprojects.net/articles/programmable-rc/
+//
+//    Programmable RC Car Controller is free software: you can redistribute it and/or modify
+//    it under the terms of the GNU General Public License as published by
+//    the Free Software Foundation, either version 3 of the License, or
+//    (at your option) any later version.
+//
+//    Programmable RC Car Controller is distributed in the hope that it will be useful,
+//    but WITHOUT ANY WARRANTY; without even the implied warranty of
+//    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+//    GNU General Public License for more details.
+//
+//    You should have received a copy of the GNU General Public License
+//    along with Programmable RC Car Controller.  If not, see <http://www.gnu.org/licenses/>.
+////////////////////////////////////////////////////////////////////////////////////////////////
+
+import java.io.BufferedWriter;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+// This class is an asynchronous event log for the send path.
+// Events are fixed-size binary records (time, type, two arguments) written into a
+// preallocated ring.  A background thread formats them and writes them to the sink,
+// so logging never does string handling or I/O on the caller's thread.
+// With the OFF sink, log() is a single volatile read.
+public class EventLog {
+    // Where formatted events are written
+    public enum Sink {
+        CONSOLE,
+        FILE,
+        OFF
+    }
+
+    // Event types
+    public static final int DRIVE_COMMAND = 1;  // arg1 = keyState, arg2 = speed
+    public static final int SEQUENCE_STEP = 2;  // arg1 = step, arg2 = keyState
+    public static final int CAR_ACK = 3;        // arg1 = command id
+    public static final int CAR_BAD_CHECKSUM = 4; // arg1 = command id, arg2 = checksum
+    public static final int CAR_INVALID_CMD = 5;  // arg1 = command id
+    public static final int CAR_STATE = 6;      // arg1 = keyState, arg2 = speed
+
+    // Number of records the ring can hold before new events are dropped
+    private static final int CAPACITY = 4096;
+
+    private final int m_mask = CAPACITY - 1;
+    private final long[] m_times = new long[CAPACITY];
+    private final int[] m_types = new int[CAPACITY];
+    private final int[] m_args1 = new int[CAPACITY];
+    private final int[] m_args2 = new int[CAPACITY];
+    private final AtomicLongArray m_sequence = new AtomicLongArray(CAPACITY);
+    private final AtomicLong m_tail = new AtomicLong();
+    private long m_head;
+
+    private final AtomicLong m_dropped = new AtomicLong();
+
+    private volatile boolean m_enabled;
+    private volatile Sink m_sink = Sink.OFF;
+    private volatile Writer m_fileWriter;
+    private final long m_startNs = System.nanoTime();
+
+    // Written in front of every line, e.g. the car's name in fleet mode
+    private volatile String m_name;
+
+    private volatile Thread m_drainThread;
+
+    public EventLog() {
+        for (int i = 0; i < CAPACITY; i++) {
+            m_sequence.set(i, i);
+        }
+    }
+
+    // Creates a log configured from the rc.log (console, file, off) and
+    // rc.log.file system properties.  Defaults to the console.
+    public static EventLog fromSystemProperties() {
+        EventLog log = new EventLog();
+        String sink = System.getProperty("rc.log", "console");
+        String fileName = System.getProperty("rc.log.file", "events.log");
+        if (sink.equalsIgnoreCase("file")) {
+            log.setSink(Sink.FILE, fileName);
+        } else if (sink.equalsIgnoreCase("off")) {
+            log.setSink(Sink.OFF, null);
+        } else {
+            log.setSink(Sink.CONSOLE, null);
+        }
+        return log;
+    }
+
+    // Change the sink.  fileName is only used by the FILE sink.
+    public synchronized void setSink(Sink sink, String fileName) {
+        Writer oldWriter = m_fileWriter;
+        m_fileWriter = null;
+        if (sink == Sink.FILE) {
+            try {
+                m_fileWriter = new BufferedWriter(new FileWriter(fileName, true));
+            } catch (IOException e) {
+                System.err.println("Could not open event log " + fileName + ": " + e.getMessage());
+                sink = Sink.CONSOLE;
+            }
+        }
+        m_sink = sink;
+        m_enabled = sink != Sink.OFF;
+        if (oldWriter != null) {
+            try {
+                oldWriter.close();
+            } catch (IOException e) {
+                // Nothing more we can do
+            }
+        }
+        if (m_enabled && m_drainThread == null) {
+            m_drainThread = new Thread(new Drainer(), "EventLog-Drainer");
+            m_drainThread.setDaemon(true);
+            m_drainThread.start();
+        }
+    }
+
+    public boolean isEnabled() {
+        return m_enabled;
+    }
+
+    // Tell the lines of several logs apart on one console, null for no name
+    public void setName(String name) {
+        m_name = name;
+    }
+
+    // Record an event.  Never blocks; if the ring is full the event is dropped.
+    public void log(int type, int arg1, int arg2) {
+        if (!m_enabled) {
+            return;
+        }
+
+        long pos = m_tail.get();
+        for (;;) {
+            long dif = m_sequence.get((int) (pos & m_mask)) - pos;
+            if (dif == 0) {
+                if (m_tail.compareAndSet(pos, pos + 1)) {
+                    break;
+                }
+                pos = m_tail.get();
+            } else if (dif < 0) {
+                m_dropped.incrementAndGet();
+                return;
+            } else {
+                pos = m_tail.get();
+            }
+        }
+
+        int slot = (int) (pos & m_mask);
+        m_times[slot] = System.nanoTime();
+        m_types[slot] = type;
+        m_args1[slot] = arg1;
+        m_args2[slot] = arg2;
+        m_sequence.lazySet(slot, pos + 1); // Publish
+    }
+
+    // Number of events dropped because the ring was full
+    public long getDroppedCount() {
+        return m_dropped.get();
+    }
+
+    // Turns a record into text.  Only called on the drain thread.
+    private void format(StringBuilder sb, long timeNs, int type, int arg1, int arg2) {
+        sb.setLength(0);
+        String name = m_name;
+        if (name != null) {
+            sb.append(name).append(' ');
+        }
+        sb.append('[').append((timeNs - m_startNs) / 1000).append(" us] ");
+        switch (type) {
+        case DRIVE_COMMAND:
+            sb.append("Sending Command: ").append(arg1).append(" speed=").append(arg2 & 0xFF);
+            break;
+        case SEQUENCE_STEP:
+            sb.append("Sequence step ").append(arg1).append(": ").append(arg2);
+            break;
+        case CAR_ACK:
+            sb.append("Car: good cmd ").append(arg1);
+            break;
+        case CAR_BAD_CHECKSUM:
+            sb.append("Car: bad checksum for cmd ").append(arg1).append(" (checksum ").append(arg2).append(')');
+            break;
+        case CAR_INVALID_CMD:
+            sb.append("Car: invalid cmd ").append(arg1);
+            break;
+        case CAR_STATE:
+            sb.append("Car: drive ").append(arg1).append(" speed=").append(arg2);
+            break;
+        default:
+            sb.append("Event ").append(type).append(": ").append(arg1).append(", ").append(arg2);
+            break;
+        }
+    }
+
+    // Writes queued records to the sink
+    private class Drainer implements Runnable {
+        @Override
+        public void run() {
+            StringBuilder sb = new StringBuilder(128);
+            long lastDropped = 0;
+            while (true) {
+                int slot = (int) (m_head & m_mask);
+                if (m_sequence.get(slot) - (m_head + 1) < 0) {
+                    flush();
+                    LockSupport.parkNanos(5000000L); // 5 ms
+                    continue;
+                }
+
+                format(sb, m_times[slot], m_types[slot], m_args1[slot], m_args2[slot]);
+                m_sequence.lazySet(slot, m_head + CAPACITY); // Free the slot
+                m_head++;
+                write(sb);
+
+                long dropped = m_dropped.get();
+                if (dropped != lastDropped) {
+                    sb.setLength(0);
+                    sb.append("Event log full, dropped ").append(dropped - lastDropped).append(" events");
+                    write(sb);
+                    lastDropped = dropped;
+                }
+            }
+        }
+
+        private void write(StringBuilder sb) {
+            Sink sink = m_sink;
+            if (sink == Sink.CONSOLE) {
+                System.out.println(sb);
+            } else if (sink == Sink.FILE) {
+                Writer writer = m_fileWriter;
+                if (writer != null) {
+                    try {
+                        writer.append(sb).append('\n');
+                    } catch (IOException e) {
+                        System.err.println("Event log write failed: " + e.getMessage());
+                    }
+                }
+            }
+        }
+
+        private void flush() {
+            Writer writer = m_fileWriter;
+            if (writer != null) {
+                try {
+                    writer.flush();
+                } catch (IOException e) {
+                    System.err.println("Event log flush failed: " + e.getMessage());
+                }
+            }
+        }
+    }
+}
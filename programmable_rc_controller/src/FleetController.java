@@ -0,0 +1,447 @@
+////////////////////////////////////////////////////////////////////////////////////////////////
+//    Copyright (C) 2012 Jon Bennett
+//
+//    This file is part of Programmable RC Car Controller.
+//
+//    http://www.jbprojects.net/articles/programmable-rc/
+//
+//    Programmable RC Car Controller is free software: you can redistribute it and/or modify
+//    it under the terms of the GNU General Public License as published by
+//    the Free Software Foundation, either version 3 of the License, or
+//    (at your option) any later version.
+//
+//    Programmable RC Car Controller is distributed in the hope that it will be useful,
+//    but WITHOUT ANY WARRANTY; without even the implied warranty of
+//    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+//    GNU General Public License for more details.
+//
+//    You should have received a copy of the GNU General Public License
+//    along with Programmable RC Car Controller.  If not, see <http://www.gnu.org/licenses/>.
+////////////////////////////////////////////////////////////////////////////////////////////////
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+// Drives several cars side by side from one JVM.
+// Every car has its own RCController and port, but all sequences are played by a single
+// scheduler thread that keeps the cars in a queue ordered by their next deadline.
+// A car costs one queue entry, not a thread, and all cars can share one start time.
+// The scheduler never waits for a car's link: a step that can't be queued right away
+// is skipped and counted, and a STOP that can't be queued is tried again shortly.
+//
+// Usage: java FleetController [fleet.txt]
+// Each line of fleet.txt is "name, port, sequence file" ('#' starts a comment).
+// Event log lines and metrics are kept per car, log lines start with the car's name.
+public class FleetController {
+    public static final String FLEET_FILENAME = "fleet.txt";
+
+    // One car of the fleet and the state of its sequence
+    private static class Car {
+        final String m_name;
+        final RCController m_controller;
+        SequenceTable m_table;
+
+        // Clock and lateness statistics of the current run, waited on by the scheduler thread
+        DeadlineScheduler m_clock;
+        int m_step;
+        long m_offsetNs;
+        long m_deadlineNs;
+
+        // stopAll() calls before this run was started, see runScheduler()
+        int m_stopGeneration;
+
+        // Steps skipped because the car's send queue was full
+        volatile long m_stepsSkipped;
+
+        // When the car first needed its STOP, see sendPendingStops()
+        long m_stopSinceNs;
+
+        Car(String name, RCController controller) {
+            m_name = name;
+            m_controller = controller;
+        }
+    }
+
+    private final List<Car> m_cars = new ArrayList<Car>();
+
+    // Cars waiting for their next deadline, only touched by the scheduler thread
+    private final PriorityQueue<Car> m_queue = new PriorityQueue<Car>(16, new Comparator<Car>() {
+        public int compare(Car a, Car b) {
+            return Long.compare(a.m_deadlineNs - b.m_deadlineNs, 0);
+        }
+    });
+
+    // Cars handed to the scheduler thread by startAll()
+    private final ConcurrentLinkedQueue<Car> m_started = new ConcurrentLinkedQueue<Car>();
+
+    // Cars whose STOP couldn't be queued yet, only touched by the scheduler thread
+    private final List<Car> m_pendingStops = new ArrayList<Car>();
+
+    // How soon a STOP that couldn't be queued is tried again, and for how long
+    private static final long STOP_RETRY_NS = 1000000L; // 1 ms
+    private static final long STOP_GIVE_UP_NS = 2000000000L; // 2 s
+
+    private final Thread m_schedulerThread;
+
+    // Counts stopAll() calls.  Runs started before the current count are stopped, so a
+    // startAll() right after stopAll() can't make the scheduler miss the stop.
+    private volatile int m_stopGeneration;
+    private int m_stopsHandled;
+
+    // Cars playing or still waiting for their STOP, counted down when the STOP is queued
+    private final AtomicInteger m_numPlaying = new AtomicInteger();
+
+    public FleetController() {
+        m_schedulerThread = new Thread(new Runnable() {
+            public void run() {
+                runScheduler();
+            }
+        }, "FleetScheduler");
+        m_schedulerThread.setDaemon(true);
+        m_schedulerThread.start();
+    }
+
+    // Add a car on a serial port (or tty:/tcp: transport, see RCCom.createTransport)
+    // Returns an error message on failure, null on success
+    public String addCar(String name, String portName) {
+        // Before the port is opened, so a duplicate doesn't leave one open
+        synchronized (this) {
+            if (findCar(name) != null) {
+                return "There already is a car named " + name;
+            }
+        }
+        Transport transport = RCCom.createTransport(portName);
+        if (transport == null) {
+            return name + ": bad port name " + portName;
+        }
+        RCController controller = new RCController();
+        String errorMsg = controller.connect(transport);
+        if (errorMsg != null) {
+            return name + ": could not connect (" + portName + "): " + errorMsg;
+        }
+        errorMsg = addCar(name, controller);
+        if (errorMsg != null) {
+            controller.disconnect(); // Added by someone else while connecting
+        }
+        return errorMsg;
+    }
+
+    // Add a car that is already connected, e.g. to a CarEmulator
+    // Returns an error message on failure, null on success
+    public synchronized String addCar(String name, RCController controller) {
+        if (findCar(name) != null) {
+            return "There already is a car named " + name;
+        }
+        m_cars.add(new Car(name, controller));
+        controller.getEventLog().setName(name);
+        String errorMsg = controller.getMetrics().register(name);
+        if (errorMsg != null) {
+            System.err.println("Error: could not register metrics for " + name + ": " + errorMsg);
+        }
+        return null;
+    }
+
+    // Load the sequence a car plays on the next startAll(), text or binary
+    // Returns an error message on failure, null on success
+    public synchronized String loadSequence(String name, String fileName) {
+        Car car = findCar(name);
+        if (car == null) {
+            return "No car named " + name;
+        }
+        SequenceTable table;
+        if (SequenceFile.isBinary(fileName)) {
+            table = SequenceFile.load(fileName);
+        } else {
+            SequenceCompiler compiler = new SequenceCompiler(car.m_controller);
+            table = compiler.compileFile(fileName);
+            if (table == null) {
+                return name + ": " + compiler.getError();
+            }
+        }
+        if (table == null) {
+            return name + ": could not load " + fileName;
+        }
+        car.m_table = table;
+        return null;
+    }
+
+    // Negotiate the data rate of every car, all links at the same time
+    public void negotiateDataRates(final int maxRate) {
+        List<Thread> threads = new ArrayList<Thread>();
+        for (final Car car : getCars()) {
+            Thread thread = new Thread(new Runnable() {
+                public void run() {
+                    System.out.println(car.m_name + ": " + car.m_controller.negotiateDataRate(maxRate));
+                }
+            }, "LinkSetup-" + car.m_name);
+            thread.start();
+            threads.add(thread);
+        }
+        for (Thread thread : threads) {
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    // Start the loaded sequences of all cars at the same moment, delayMs from now
+    // Returns an error message if nothing could be started, null on success
+    public synchronized String startAll(long delayMs) {
+        if (m_numPlaying.get() > 0) {
+            return "The fleet is already playing";
+        }
+        long startNs = System.nanoTime() + delayMs * 1000000L;
+        int started = 0;
+        for (Car car : m_cars) {
+            if (car.m_table == null) {
+                continue;
+            }
+            car.m_clock = new DeadlineScheduler(car.m_table.getStepCount() + 1);
+            car.m_clock.start(startNs);
+            car.m_step = 0;
+            car.m_offsetNs = 0;
+            car.m_deadlineNs = startNs;
+            car.m_stopGeneration = m_stopGeneration;
+            car.m_stepsSkipped = 0;
+            started++;
+        }
+        if (started == 0) {
+            return "No sequences loaded";
+        }
+        m_numPlaying.set(started);
+        for (Car car : m_cars) {
+            if (car.m_table != null) {
+                m_started.add(car);
+            }
+        }
+        LockSupport.unpark(m_schedulerThread);
+        return null;
+    }
+
+    // Stop all sequences and send STOP to every car
+    public synchronized void stopAll() {
+        m_stopGeneration++;
+        LockSupport.unpark(m_schedulerThread);
+    }
+
+    // True while any car is still playing its sequence
+    public boolean isPlaying() {
+        return m_numPlaying.get() > 0;
+    }
+
+    // Wait until all cars have finished, returns false if interrupted
+    public boolean awaitFinished() {
+        while (isPlaying()) {
+            try {
+                Thread.sleep(10);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // One line of timing and link statistics per car
+    public synchronized String getStats() {
+        StringBuilder stats = new StringBuilder();
+        for (Car car : m_cars) {
+            stats.append(car.m_name).append(": ");
+            stats.append(car.m_clock != null ? car.m_clock.getLatenessSummary() : "not played");
+            if (car.m_stepsSkipped > 0) {
+                stats.append(", ").append(car.m_stepsSkipped).append(" steps skipped (send queue full)");
+            }
+            stats.append("\n    ").append(car.m_controller.getLinkStats().replace("\n", "\n    "));
+            stats.append("\n");
+        }
+        return stats.toString();
+    }
+
+    private Car findCar(String name) {
+        for (Car car : m_cars) {
+            if (car.m_name.equals(name)) {
+                return car;
+            }
+        }
+        return null;
+    }
+
+    private synchronized List<Car> getCars() {
+        return new ArrayList<Car>(m_cars);
+    }
+
+    // Scheduler thread body
+    // Waits for the earliest deadline of all playing cars, sends that car's step and requeues it
+    private void runScheduler() {
+        while (true) {
+            // Everything queued so far was started before this stop
+            int stopGeneration = m_stopGeneration;
+            if (stopGeneration != m_stopsHandled) {
+                m_stopsHandled = stopGeneration;
+                stopPlaying();
+            }
+            Car started;
+            while ((started = m_started.poll()) != null) {
+                if (started.m_stopGeneration != stopGeneration) {
+                    addPendingStop(started); // Stopped before the scheduler saw it
+                } else {
+                    m_queue.offer(started);
+                }
+            }
+            sendPendingStops();
+
+            Car car = m_queue.peek();
+            if (car == null) {
+                if (m_pendingStops.isEmpty()) {
+                    LockSupport.park(this);
+                } else {
+                    LockSupport.parkNanos(this, STOP_RETRY_NS);
+                }
+                continue;
+            }
+
+            // Park until close to the deadline, anything new wakes us up early
+            long remaining = car.m_deadlineNs - System.nanoTime();
+            if (!m_pendingStops.isEmpty()) {
+                remaining = Math.min(remaining, STOP_RETRY_NS);
+            }
+            if (remaining > DeadlineScheduler.SPIN_THRESHOLD_NS) {
+                LockSupport.parkNanos(this, remaining - DeadlineScheduler.SPIN_THRESHOLD_NS);
+                continue;
+            }
+            while (car.m_deadlineNs - System.nanoTime() > 0) {
+                // Spin tail
+            }
+
+            m_queue.poll();
+            long latenessNs = System.nanoTime() - car.m_deadlineNs;
+            car.m_clock.record(latenessNs);
+            car.m_controller.getMetrics().recordStepLateness(latenessNs);
+            if (playStep(car)) {
+                m_queue.offer(car);
+            } else {
+                addPendingStop(car);
+            }
+        }
+    }
+
+    // Send the car's next step, never waiting for its link
+    // Returns false at the end of its sequence, then the car needs its STOP
+    private boolean playStep(Car car) {
+        SequenceTable table = car.m_table;
+        if (car.m_step < table.getStepCount()) {
+            if (!car.m_controller.trySendSequenceStep(table, car.m_step)) {
+                car.m_stepsSkipped++; // The next step catches the car up
+            }
+            car.m_offsetNs += table.getDurationMs(car.m_step) * 1000000L;
+            car.m_deadlineNs = car.m_clock.getStartNs() + car.m_offsetNs;
+            car.m_step++;
+            return true;
+        }
+        return false;
+    }
+
+    // Drop every playing car, they are stopped by sendPendingStops()
+    private void stopPlaying() {
+        Car car;
+        while ((car = m_queue.poll()) != null) {
+            addPendingStop(car);
+        }
+    }
+
+    private void addPendingStop(Car car) {
+        car.m_stopSinceNs = System.nanoTime();
+        m_pendingStops.add(car);
+    }
+
+    // Queue the STOPs that are due, the ones that don't fit are tried again on the next pass
+    // A car whose link hasn't taken a frame for STOP_GIVE_UP_NS is given up on
+    private void sendPendingStops() {
+        for (int i = m_pendingStops.size() - 1; i >= 0; i--) {
+            Car car = m_pendingStops.get(i);
+            if (car.m_controller.trySendDrive(car.m_controller.STOP, (byte) 0)) {
+                m_pendingStops.remove(i);
+                m_numPlaying.decrementAndGet();
+            } else if (System.nanoTime() - car.m_stopSinceNs > STOP_GIVE_UP_NS) {
+                System.err.println("Error: " + car.m_name + ": could not send STOP, its link is not sending");
+                m_pendingStops.remove(i);
+                m_numPlaying.decrementAndGet();
+            }
+        }
+    }
+
+    // Read fleet.txt and add its cars, returns the errors (empty if there were none)
+    public String loadConfig(String fileName) {
+        StringBuilder errors = new StringBuilder();
+        try {
+            BufferedReader reader = new BufferedReader(new FileReader(fileName));
+            try {
+                String line;
+                int lineNumber = 0;
+                while ((line = reader.readLine()) != null) {
+                    lineNumber++;
+                    int comment = line.indexOf('#');
+                    if (comment >= 0) {
+                        line = line.substring(0, comment); // The rest of the line is a comment
+                    }
+                    if (line.trim().isEmpty()) {
+                        continue;
+                    }
+                    String[] fields = line.split(",");
+                    if (fields.length != 3) {
+                        errors.append(fileName).append(" line ").append(lineNumber)
+                                .append(": expected name, port, sequence file\n");
+                        continue;
+                    }
+                    String name = fields[0].trim();
+                    String errorMsg = addCar(name, fields[1].trim());
+                    if (errorMsg == null) {
+                        errorMsg = loadSequence(name, fields[2].trim());
+                    }
+                    if (errorMsg != null) {
+                        errors.append(errorMsg).append("\n");
+                    }
+                }
+            } finally {
+                reader.close();
+            }
+        } catch (IOException e) {
+            errors.append(e.getMessage()).append("\n");
+        }
+        return errors.toString();
+    }
+
+    // Program entry point for fleet mode
+    public static void main(String[] args) {
+        FleetController fleet = new FleetController();
+        String errors = fleet.loadConfig(args.length > 0 ? args[0] : FLEET_FILENAME);
+        if (errors.length() > 0) {
+            System.err.print(errors);
+        }
+
+        if (!"false".equalsIgnoreCase(System.getProperty("rc.baud.negotiate"))) {
+            fleet.negotiateDataRates(Integer.getInteger("rc.baud.max", 115200));
+        }
+
+        // Leave time for every car to be ready for the shared start
+        String errorMsg = fleet.startAll(Long.getLong("rc.fleet.startDelayMs", 500));
+        if (errorMsg != null) {
+            System.err.println(errorMsg);
+            System.exit(1);
+        }
+        fleet.awaitFinished();
+        System.out.print(fleet.getStats());
+        System.exit(0);
+    }
+}
@@ -0,0 +1,375 @@
+////////////////////////////////////////////////////////////////////////////////////////////////
+//    Copyright (C) 2012 Jon Bennett
+//
+//    This file is part of Programmable RC Car Controller.
+//
+//    http://www.jbprojects.net/articles/programmable-rc/
+//
+//    Programmable RC Car Controller is free software: you can redistribute it and/or modify
+//    it under the terms of the GNU General Public License as published by
+//    the Free Software Foundation, either version 3 of the License, or
+//    (at your option) any later version.
+//
+//    Programmable RC Car Controller is distributed in the hope that it will be useful,
+//    but WITHOUT ANY WARRANTY; without even the implied warranty of
+//    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+//    GNU General Public License for more details.
+//
+//    You should have received a copy of the GNU General Public License
+//    along with Programmable RC Car Controller.  If not, see <http://www.gnu.org/licenses/>.
+////////////////////////////////////////////////////////////////////////////////////////////////
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+// This class is a bounded, lock-free queue of preallocated frames.
+// Any number of threads may offer frames, a single writer thread polls them.
+// Frames are copied into fixed slots, so nothing is allocated per frame.
+// Frames may carry a coalesce key; pollCoalesced() skips a frame when the next queued
+// frame has the same key, so only the newest of a run reaches the port.
+// (Slot hand-off uses per-slot sequence numbers, see D. Vyukov's bounded MPMC queue.)
+public class FrameRing {
+    // What offer() does when the ring is full
+    public enum OverflowPolicy {
+        DROP_NEWEST, // Reject the frame being offered
+        DROP_OLDEST, // Discard the oldest queued frame to make room
+        BLOCK        // Wait for the writer to make room
+    }
+
+    // Largest frame that fits in a slot
+    public static final int MAX_FRAME_SIZE = 16;
+
+    // Coalesce key for frames that must always be written
+    public static final int NO_COALESCE = -1;
+
+    private final int m_capacity;
+    private final int m_mask;
+    private final byte[] m_data;
+    private final int[] m_lengths;
+    private final long[] m_enqueueNs;
+    private final long[] m_originNs;
+    private final int[] m_coalesceKeys;
+    private final AtomicLongArray m_sequence;
+
+    // Next position to offer to / poll from
+    private final AtomicLong m_tail = new AtomicLong();
+    private final AtomicLong m_head = new AtomicLong();
+
+    private volatile OverflowPolicy m_policy = OverflowPolicy.DROP_OLDEST;
+
+    // Consumer thread to wake up when a frame is published
+    private volatile Thread m_consumer;
+    private volatile boolean m_consumerParked;
+
+    // Statistics
+    private final AtomicLong m_offered = new AtomicLong();
+    private final AtomicLong m_dropped = new AtomicLong();
+    private final AtomicLong m_offerWaitNs = new AtomicLong();
+    private final AtomicLong m_maxDepth = new AtomicLong();
+    private volatile long m_polled;
+    private volatile long m_queueWaitNs;
+    private volatile long m_coalesced;
+
+    // Coalesce key of the frame returned by the last poll (consumer only)
+    private int m_lastPolledKey = NO_COALESCE;
+    private long m_lastPolledOriginNs;
+
+    // capacity is rounded up to a power of two
+    public FrameRing(int capacity) {
+        int cap = Integer.highestOneBit(Math.max(capacity, 2) - 1) << 1;
+        m_capacity = cap;
+        m_mask = cap - 1;
+        m_data = new byte[cap * MAX_FRAME_SIZE];
+        m_lengths = new int[cap];
+        m_enqueueNs = new long[cap];
+        m_originNs = new long[cap];
+        m_coalesceKeys = new int[cap];
+        m_sequence = new AtomicLongArray(cap);
+        for (int i = 0; i < cap; i++) {
+            m_sequence.set(i, i);
+        }
+    }
+
+    public void setOverflowPolicy(OverflowPolicy policy) {
+        m_policy = policy;
+    }
+
+    public OverflowPolicy getOverflowPolicy() {
+        return m_policy;
+    }
+
+    // Register the thread that polls, so producers can wake it up
+    public void setConsumer(Thread consumer) {
+        m_consumer = consumer;
+    }
+
+    // Copy a frame into the ring
+    // Returns false if the frame was dropped because the ring was full
+    public boolean offer(byte[] src, int offset, int length) {
+        return offer(src, offset, length, NO_COALESCE);
+    }
+
+    // Copy a frame into the ring with a coalesce key (>= 0), or NO_COALESCE
+    // Returns false if the frame was dropped because the ring was full
+    public boolean offer(byte[] src, int offset, int length, int coalesceKey) {
+        return offer(src, offset, length, coalesceKey, 0);
+    }
+
+    // Same as offer(byte[], ...) with the System.nanoTime of the event that caused the frame,
+    // returned by getLastPolledOriginNs() when the frame is polled (0 for none)
+    public boolean offer(byte[] src, int offset, int length, int coalesceKey, long originNs) {
+        return offer(src, offset, length, coalesceKey, originNs, m_policy);
+    }
+
+    // Same as offer(byte[], ...) but never waits for room, whatever the overflow policy
+    // Returns false if the ring was full
+    public boolean tryOffer(byte[] src, int offset, int length, int coalesceKey) {
+        return tryOffer(src, offset, length, coalesceKey, 0);
+    }
+
+    // Same as tryOffer(byte[], ...) with the System.nanoTime of the event that caused the frame
+    public boolean tryOffer(byte[] src, int offset, int length, int coalesceKey, long originNs) {
+        return offer(src, offset, length, coalesceKey, originNs, OverflowPolicy.DROP_NEWEST);
+    }
+
+    private boolean offer(byte[] src, int offset, int length, int coalesceKey, long originNs, OverflowPolicy policy) {
+        long pos = reserve(length, policy);
+        if (pos < 0) {
+            return false;
+        }
+        int slot = (int) (pos & m_mask);
+        System.arraycopy(src, offset, m_data, slot * MAX_FRAME_SIZE, length);
+        publish(pos, length, coalesceKey, originNs);
+        return true;
+    }
+
+    // Same as offer(byte[], ...) for a frame held in a buffer, e.g. a memory-mapped sequence file
+    // The buffer's position is not changed
+    public boolean offer(ByteBuffer src, int index, int length, int coalesceKey) {
+        return offer(src, index, length, coalesceKey, m_policy);
+    }
+
+    // Same as offer(ByteBuffer, ...) but never waits for room, whatever the overflow policy
+    // Returns false if the ring was full
+    public boolean tryOffer(ByteBuffer src, int index, int length, int coalesceKey) {
+        return offer(src, index, length, coalesceKey, OverflowPolicy.DROP_NEWEST);
+    }
+
+    private boolean offer(ByteBuffer src, int index, int length, int coalesceKey, OverflowPolicy policy) {
+        long pos = reserve(length, policy);
+        if (pos < 0) {
+            return false;
+        }
+        int base = (int) (pos & m_mask) * MAX_FRAME_SIZE;
+        for (int i = 0; i < length; i++) {
+            m_data[base + i] = src.get(index + i);
+        }
+        publish(pos, length, coalesceKey, 0);
+        return true;
+    }
+
+    // Claim a slot for a frame, applying the overflow policy while the ring is full
+    // Returns the claimed position, or -1 if the frame was dropped
+    private long reserve(int length, OverflowPolicy policy) {
+        if (length > MAX_FRAME_SIZE) {
+            throw new IllegalArgumentException("Frame too large: " + length);
+        }
+        m_offered.incrementAndGet();
+
+        long waitStart = 0;
+        long pos;
+        while ((pos = claim()) < 0) {
+            switch (policy) {
+            case DROP_NEWEST:
+                m_dropped.incrementAndGet();
+                return -1;
+            case DROP_OLDEST:
+                if (discardOldest()) {
+                    m_dropped.incrementAndGet();
+                }
+                break;
+            case BLOCK:
+                if (waitStart == 0) {
+                    waitStart = System.nanoTime();
+                }
+                LockSupport.parkNanos(50000L);
+                break;
+            }
+        }
+        if (waitStart != 0) {
+            m_offerWaitNs.addAndGet(System.nanoTime() - waitStart);
+        }
+        return pos;
+    }
+
+    // Make a claimed slot visible to the consumer once its data has been copied in
+    private void publish(long pos, int length, int coalesceKey, long originNs) {
+        int slot = (int) (pos & m_mask);
+        m_lengths[slot] = length;
+        m_enqueueNs[slot] = System.nanoTime();
+        m_originNs[slot] = originNs;
+        m_coalesceKeys[slot] = coalesceKey;
+        m_sequence.set(slot, pos + 1); // Publish
+
+        long depth = pos + 1 - m_head.get();
+        long max;
+        while (depth > (max = m_maxDepth.get()) && !m_maxDepth.compareAndSet(max, depth)) {
+            // Retry
+        }
+
+        if (m_consumerParked) {
+            LockSupport.unpark(m_consumer);
+        }
+    }
+
+    // Reserve the next free position, or return -1 if the ring is full
+    private long claim() {
+        long pos = m_tail.get();
+        for (;;) {
+            long dif = m_sequence.get((int) (pos & m_mask)) - pos;
+            if (dif == 0) {
+                if (m_tail.compareAndSet(pos, pos + 1)) {
+                    return pos;
+                }
+                pos = m_tail.get();
+            } else if (dif < 0) {
+                return -1;
+            } else {
+                pos = m_tail.get();
+            }
+        }
+    }
+
+    // Copy the oldest frame into dst (at least MAX_FRAME_SIZE bytes)
+    // Returns the frame length, or -1 if the ring is empty
+    public int poll(byte[] dst) {
+        long pos = m_head.get();
+        for (;;) {
+            int slot = (int) (pos & m_mask);
+            long dif = m_sequence.get(slot) - (pos + 1);
+            if (dif == 0) {
+                int length = m_lengths[slot];
+                int key = m_coalesceKeys[slot];
+                long enqueueNs = m_enqueueNs[slot];
+                long originNs = m_originNs[slot];
+                System.arraycopy(m_data, slot * MAX_FRAME_SIZE, dst, 0, length);
+                if (m_head.compareAndSet(pos, pos + 1)) {
+                    m_sequence.set(slot, pos + m_capacity); // Free the slot
+                    m_polled++;
+                    m_lastPolledKey = key;
+                    m_lastPolledOriginNs = originNs;
+                    m_queueWaitNs += System.nanoTime() - enqueueNs;
+                    return length;
+                }
+                // A producer discarded this frame under DROP_OLDEST, try the next one
+                pos = m_head.get();
+            } else if (dif < 0) {
+                return -1;
+            } else {
+                pos = m_head.get();
+            }
+        }
+    }
+
+    // Like poll(), but while the next queued frame has the same coalesce key
+    // the polled frame is replaced by it.  Only the newest frame of a run is returned.
+    public int pollCoalesced(byte[] dst) {
+        int length = poll(dst);
+        int key = m_lastPolledKey;
+        if (length < 0 || key == NO_COALESCE) {
+            return length;
+        }
+        while (peekCoalesceKey() == key) {
+            int nextLength = poll(dst);
+            if (nextLength < 0) {
+                break;
+            }
+            length = nextLength;
+            m_coalesced++;
+        }
+        return length;
+    }
+
+    // Origin time given to offer() for the frame returned by the last poll, 0 if none
+    // Only for the consumer thread
+    public long getLastPolledOriginNs() {
+        return m_lastPolledOriginNs;
+    }
+
+    // Coalesce key of the oldest queued frame, or NO_COALESCE if the ring is empty
+    private int peekCoalesceKey() {
+        long pos = m_head.get();
+        int slot = (int) (pos & m_mask);
+        if (m_sequence.get(slot) - (pos + 1) != 0) {
+            return NO_COALESCE;
+        }
+        return m_coalesceKeys[slot];
+    }
+
+    // Drop the oldest frame to make room (DROP_OLDEST policy)
+    private boolean discardOldest() {
+        long pos = m_head.get();
+        int slot = (int) (pos & m_mask);
+        if (m_sequence.get(slot) - (pos + 1) == 0 && m_head.compareAndSet(pos, pos + 1)) {
+            m_sequence.set(slot, pos + m_capacity);
+            return true;
+        }
+        return false;
+    }
+
+    // Block the consumer until a frame may be available or timeoutNs has elapsed
+    public void awaitFrame(long timeoutNs) {
+        m_consumerParked = true;
+        if (isEmpty()) {
+            LockSupport.parkNanos(this, timeoutNs);
+        }
+        m_consumerParked = false;
+    }
+
+    public boolean isEmpty() {
+        long pos = m_head.get();
+        return m_sequence.get((int) (pos & m_mask)) - (pos + 1) < 0;
+    }
+
+    public int getCapacity() {
+        return m_capacity;
+    }
+
+    // Number of frames currently queued
+    public int getDepth() {
+        return (int) Math.max(0, m_tail.get() - m_head.get());
+    }
+
+    public long getMaxDepth() {
+        return m_maxDepth.get();
+    }
+
+    public long getOfferedCount() {
+        return m_offered.get();
+    }
+
+    public long getPolledCount() {
+        return m_polled;
+    }
+
+    public long getDroppedCount() {
+        return m_dropped.get();
+    }
+
+    // Total time producers spent waiting for room (BLOCK policy)
+    public long getOfferWaitNs() {
+        return m_offerWaitNs.get();
+    }
+
+    // Number of frames skipped by pollCoalesced because a newer frame replaced them
+    public long getCoalescedCount() {
+        return m_coalesced;
+    }
+
+    // Total time polled frames spent in the queue
+    public long getQueueWaitNs() {
+        return m_queueWaitNs;
+    }
+}
@@ -0,0 +1,133 @@
+////////////////////////////////////////////////////////////////////////////////////////////////
+//    Copyright (C) 2012 Jon Bennett
+//
+//    This file is part of Programmable RC Car Controller.
+//
+//    http://www.jbprojects.net/articles/programmable-rc/
+//
+//    Programmable RC Car Controller is free software: you can redistribute it and/or modify
+//    it under the terms of the GNU General Public License as published by
+//    the Free Software Foundation, either version 3 of the License, or
+//    (at your option) any later version.
+//
+//    Programmable RC Car Controller is distributed in the hope that it will be useful,
+//    but WITHOUT ANY WARRANTY; without even the implied warranty of
+//    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+//    GNU General Public License for more details.
+//
+//    You should have received a copy of the GNU General Public License
+//    along with Programmable RC Car Controller.  If not, see <http://www.gnu.org/licenses/>.
+////////////////////////////////////////////////////////////////////////////////////////////////
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+// Histogram of nanosecond latencies in a fixed amount of memory.
+// Values are counted in buckets that are a power of two wide divided into 8 steps,
+// so a percentile is accurate to 12.5% whatever the range of the values.
+// Any number of threads may record at the same time without locking,
+// reads are a snapshot that may miss records that happen while reading.
+public class LatencyHistogram {
+    // Values below this are counted exactly
+    private static final int LINEAR_BUCKETS = 16;
+
+    // Buckets per power of two above LINEAR_BUCKETS
+    private static final int SUB_BUCKET_BITS = 3;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+    // Largest power of two of a positive long is 2^62
+    private static final int NUM_BUCKETS = LINEAR_BUCKETS + (62 - 4 + 1) * SUB_BUCKETS;
+
+    private final AtomicLongArray m_counts = new AtomicLongArray(NUM_BUCKETS);
+    private final AtomicLong m_count = new AtomicLong();
+    private final AtomicLong m_totalNs = new AtomicLong();
+    private final AtomicLong m_maxNs = new AtomicLong();
+
+    // Count one value, negative values are counted as 0
+    public void record(long valueNs) {
+        if (valueNs < 0) {
+            valueNs = 0;
+        }
+        m_counts.incrementAndGet(bucketOf(valueNs));
+        m_count.incrementAndGet();
+        m_totalNs.addAndGet(valueNs);
+
+        long max = m_maxNs.get();
+        while (valueNs > max && !m_maxNs.compareAndSet(max, valueNs)) {
+            max = m_maxNs.get();
+        }
+    }
+
+    // Bucket a value is counted in
+    static int bucketOf(long value) {
+        if (value < LINEAR_BUCKETS) {
+            return (int) value;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        int subBucket = (int) (value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+        return LINEAR_BUCKETS + (exponent - 4) * SUB_BUCKETS + subBucket;
+    }
+
+    // Largest value counted in a bucket
+    static long bucketLimit(int bucket) {
+        if (bucket < LINEAR_BUCKETS) {
+            return bucket;
+        }
+        int exponent = (bucket - LINEAR_BUCKETS) / SUB_BUCKETS + 4;
+        int subBucket = (bucket - LINEAR_BUCKETS) % SUB_BUCKETS;
+        long width = 1L << (exponent - SUB_BUCKET_BITS);
+        return ((long) (SUB_BUCKETS + subBucket) << (exponent - SUB_BUCKET_BITS)) + width - 1;
+    }
+
+    public long getCount() {
+        return m_count.get();
+    }
+
+    public long getMeanNs() {
+        long count = m_count.get();
+        return count > 0 ? m_totalNs.get() / count : 0;
+    }
+
+    public long getMaxNs() {
+        return m_maxNs.get();
+    }
+
+    // Value that percentile (0 - 100) of the recorded values are at or below
+    // Returns the top of the bucket it falls in, never more than the maximum
+    public long getPercentileNs(double percentile) {
+        long count = m_count.get();
+        if (count == 0) {
+            return 0;
+        }
+        long rank = (long) Math.ceil(count * Math.min(Math.max(percentile, 0), 100) / 100);
+        if (rank < 1) {
+            rank = 1;
+        }
+        long seen = 0;
+        for (int bucket = 0; bucket < NUM_BUCKETS; bucket++) {
+            seen += m_counts.get(bucket);
+            if (seen >= rank) {
+                return Math.min(bucketLimit(bucket), m_maxNs.get());
+            }
+        }
+        return m_maxNs.get();
+    }
+
+    // Forget every recorded value
+    // Records made while resetting may be partly kept
+    public void reset() {
+        for (int bucket = 0; bucket < NUM_BUCKETS; bucket++) {
+            m_counts.set(bucket, 0);
+        }
+        m_count.set(0);
+        m_totalNs.set(0);
+        m_maxNs.set(0);
+    }
+
+    @Override
+    public String toString() {
+        return String.format("n=%d us mean=%.1f p50=%.1f p99=%.1f p99.9=%.1f max=%.1f",
+                getCount(), getMeanNs() / 1e3, getPercentileNs(50) / 1e3,
+                getPercentileNs(99) / 1e3, getPercentileNs(99.9) / 1e3, getMaxNs() / 1e3);
+    }
+}
@@ -0,0 +1,221 @@
+////////////////////////////////////////////////////////////////////////////////////////////////
+//    Copyright (C) 2012 Jon Bennett
+//
+//    This file is part of Programmable RC Car Controller.
+//
+//    http://www.jbprojects.net/articles/programmable-rc/
+//
+//    Programmable RC Car Controller is free software: you can redistribute it and/or modify
+//    it under the terms of the GNU General Public License as published by
+//    the Free Software Foundation, either version 3 of the License, or
+//    (at your option) any later version.
+//
+//    Programmable RC Car Controller is distributed in the hope that it will be useful,
+//    but WITHOUT ANY WARRANTY; without even the implied warranty of
+//    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+//    GNU General Public License for more details.
+//
+//    You should have received a copy of the GNU General Public License
+//    along with Programmable RC Car Controller.  If not, see <http://www.gnu.org/licenses/>.
+////////////////////////////////////////////////////////////////////////////////////////////////
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+// This class keeps the link to the car alive.
+// A HEARTBEAT frame is sent every interval so the car knows the host is still there.
+// The frame also carries the failsafe window: when the car hears nothing valid for
+// that long it stops its motors (see arduino code).
+// When a write to the port fails, the port is closed and opened again with a growing
+// backoff until it works and the car answers a PING.  An Arduino resets when its port
+// is opened and spends a second or two in the bootloader, anything sent before it
+// answers is lost.  The data rate is then negotiated again, with the car's failsafe
+// off because a failed rate switch leaves the link silent for over a second.  Then
+// the failsafe is turned back on and the car is given the current direction and
+// speed, so the driver carries on where they were.
+// The time from the failed write until the car answered after the replayed state
+// (so it has applied it) is recorded as the recovery time in ControllerMetrics.
+public class LinkMonitor implements RCCom.FailureListener {
+    // Defaults for -Drc.heartbeat.intervalMs and -Drc.failsafe.ms
+    public static final long DEFAULT_INTERVAL_MS = 100;
+    public static final int DEFAULT_FAILSAFE_MS = 500;
+
+    // Reconnect attempts start this far apart and back off up to the maximum
+    private static final long MIN_BACKOFF_MS = 20;
+    private static final long MAX_BACKOFF_MS = 2000;
+
+    // How long a reopened car may take to answer, and how often it is pinged meanwhile
+    private static final long ANSWER_TIMEOUT_MS = 5000;
+    private static final long PING_INTERVAL_MS = 100;
+
+    private final RCController m_controller;
+    private final RCCom m_rcCom;
+    private final long m_intervalMs;
+    private final int m_failsafeMs;
+
+    // System.nanoTime of the first failed write of the current outage, 0 while the link is up
+    private final AtomicLong m_failedNs = new AtomicLong();
+
+    private volatile Thread m_thread;
+
+    // PINGs sent while waiting for the car carry a new token each time, so only an
+    // answer to one of them counts and not a late answer to an earlier frame
+    private volatile int m_pingToken;
+    private volatile boolean m_answered;
+    private final TelemetryListener m_answerListener = new TelemetryAdapter() {
+        @Override
+        public void pongReceived(int data1, int data2) {
+            if (data1 == m_pingToken && data2 == (~m_pingToken & 0xFF)) {
+                m_answered = true;
+                Thread thread = m_thread;
+                if (thread != null) {
+                    LockSupport.unpark(thread);
+                }
+            }
+        }
+    };
+
+    private final byte[] m_ping = new byte[4];
+
+    public LinkMonitor(RCController controller, RCCom rcCom, long intervalMs, int failsafeMs) {
+        m_controller = controller;
+        m_rcCom = rcCom;
+        m_intervalMs = intervalMs;
+        m_failsafeMs = Math.max(0, Math.min(failsafeMs, 0xFFFF));
+    }
+
+    public synchronized void start() {
+        if (m_thread != null) {
+            return;
+        }
+        m_rcCom.setFailureListener(this);
+        m_rcCom.addTelemetryListener(m_answerListener);
+        m_thread = new Thread(new Runnable() {
+            public void run() {
+                monitor();
+            }
+        }, "LinkMonitor");
+        m_thread.setDaemon(true);
+        m_thread.start();
+    }
+
+    // Stop sending heartbeats and reconnecting, the car's failsafe stops it if it is still driving
+    public synchronized void stop() {
+        m_rcCom.setFailureListener(null);
+        m_rcCom.removeTelemetryListener(m_answerListener);
+        Thread thread = m_thread;
+        m_thread = null;
+        if (thread != null) {
+            thread.interrupt();
+        }
+    }
+
+    // True while the link is down and being reconnected
+    public boolean isReconnecting() {
+        return m_failedNs.get() != 0;
+    }
+
+    // Called on the writer thread, hand the failure to the monitor thread
+    public void writeFailed(IOException e) {
+        if (m_failedNs.compareAndSet(0, System.nanoTime())) {
+            System.err.println("Error: link to the car failed: " + e.getMessage());
+            Thread thread = m_thread;
+            if (thread != null) {
+                LockSupport.unpark(thread);
+            }
+        }
+    }
+
+    private void monitor() {
+        long intervalNs = m_intervalMs * 1000000L;
+        while (!Thread.currentThread().isInterrupted()) {
+            long failedNs = m_failedNs.get();
+            if (failedNs != 0) {
+                if (!reconnect(failedNs)) {
+                    return; // Stopped
+                }
+                continue;
+            }
+            m_controller.sendHeartbeat(m_failsafeMs);
+            LockSupport.parkNanos(this, intervalNs);
+        }
+    }
+
+    // Reopen the port and restore the car's state
+    // Returns false if stopped before the link came back
+    private boolean reconnect(long failedNs) {
+        ControllerMetrics metrics = m_rcCom.getMetrics();
+        metrics.recordLinkLost();
+        m_rcCom.close();
+
+        long backoffMs = MIN_BACKOFF_MS;
+        while (true) {
+            if (m_controller.connect() == null) {
+                if (awaitAnswer()) {
+                    break;
+                }
+                if (Thread.currentThread().isInterrupted()) {
+                    return false;
+                }
+                m_rcCom.close(); // Open but silent, try again
+            }
+            try {
+                Thread.sleep(backoffMs);
+            } catch (InterruptedException e) {
+                return false;
+            }
+            backoffMs = Math.min(backoffMs * 2, MAX_BACKOFF_MS);
+        }
+
+        // Failures from here on are a new outage
+        m_failedNs.set(0);
+
+        // No heartbeats are sent while negotiating, so the failsafe must not trip meanwhile
+        // and stop the car straight after the replay.  Negotiate first, then replay.
+        m_controller.sendHeartbeat(0);
+        String report = m_controller.renegotiateDataRate();
+        if (report != null) {
+            System.out.println(report);
+        }
+
+        m_controller.sendHeartbeat(m_failsafeMs);
+        m_controller.restoreDriveState();
+        // Frames arrive in order, so a PONG to a PING sent after the replay means the car has applied it.
+        // In reliable mode the replay waits for the reset to be acknowledged, so wait for it first.
+        if (!m_controller.awaitDriveStateDelivered(ANSWER_TIMEOUT_MS) || !awaitAnswer()) {
+            return !Thread.currentThread().isInterrupted();
+        }
+        long recoveryNs = System.nanoTime() - failedNs;
+        metrics.recordRecovery(recoveryNs);
+        System.out.println(String.format("Link to the car restored in %.1f ms", recoveryNs / 1e6));
+        return !Thread.currentThread().isInterrupted();
+    }
+
+    // Ping the car until it answers
+    // Returns false if it stayed silent for ANSWER_TIMEOUT_MS or the monitor was stopped
+    private boolean awaitAnswer() {
+        int token = (m_pingToken + 1) & 0xFF;
+        m_ping[0] = BaudNegotiator.PING_CMD;
+        m_ping[1] = (byte) token;
+        m_ping[2] = (byte) ~token;
+        m_ping[3] = (byte) (m_ping[0] + m_ping[1] + m_ping[2]);
+        m_answered = false;
+        m_pingToken = token;
+
+        long deadline = System.nanoTime() + ANSWER_TIMEOUT_MS * 1000000L;
+        long nextPing = System.nanoTime();
+        while (!m_answered) {
+            long now = System.nanoTime();
+            if (now - deadline > 0 || Thread.currentThread().isInterrupted()) {
+                return false;
+            }
+            if (now - nextPing >= 0) {
+                m_rcCom.sendData(m_ping);
+                nextPing = now + PING_INTERVAL_MS * 1000000L;
+            }
+            LockSupport.parkNanos(this, Math.min(nextPing, deadline) - now);
+        }
+        return true;
+    }
+}
@@ -0,0 +1,249 @@
+////////////////////////////////////////////////////////////////////////////////////////////////
+//    Copyright (C) 2012 Jon Bennett
+//
+//    This file is part of Programmable RC Car Controller.
+//
+//    http://www.jbprojects.net/articles/programmable-rc/
+//
+//    Programmable RC Car Controller is free software: you can redistribute it and/or modify
+//    it under the terms of the GNU General Public License as published by
+//    the Free Software Foundation, either version 3 of the License, or
+//    (at your option) any later version.
+//
+//    Programmable RC Car Controller is distributed in the hope that it will be useful,
+//    but WITHOUT ANY WARRANTY; without even the implied warranty of
+//    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+//    GNU General Public License for more details.
+//
+//    You should have received a copy of the GNU General Public License
+//    along with Programmable RC Car Controller.  If not, see <http://www.gnu.org/licenses/>.
+////////////////////////////////////////////////////////////////////////////////////////////////
+
+import java.io.IOException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import gnu.io.CommPortIdentifier;
+
+// Keeps an up to date list of the serial ports RXTX can open.
+// Enumerating ports through RXTX takes seconds on machines with many ttys, so it is
+// done once in the background and again only when a device appears in or disappears
+// from /dev (watched with a WatchService, no polling).  Where there is no /dev the list
+// is refreshed when refresh() is called.
+// The list is shared by every connection, get it with getDefault().
+public class PortDiscovery {
+    // Directory where serial devices are created
+    private static final String DEVICE_DIR = "/dev";
+
+    // Wait for a burst of device events to settle (and udev to set permissions) before scanning
+    private static final long SETTLE_MS = 250;
+
+    private static PortDiscovery s_default;
+
+    // Latest scan, replaced as a whole so readers never need a lock
+    private volatile Map<String, CommPortIdentifier> m_ports = Collections.emptyMap();
+    private volatile String[] m_portNames = new String[0];
+
+    // Number of finished scans, waited for under the lock on this object
+    private volatile int m_scans;
+
+    private volatile long m_lastScanMs;
+
+    // True while device events in /dev are being watched
+    private volatile boolean m_watching;
+
+    private PortDiscovery() {
+    }
+
+    // The discovery service, started on first use
+    public static synchronized PortDiscovery getDefault() {
+        if (s_default == null) {
+            s_default = new PortDiscovery();
+            s_default.start();
+        }
+        return s_default;
+    }
+
+    // Begin watching for devices on a background thread, scans once right away
+    private void start() {
+        Thread thread = new Thread(new Runnable() {
+            public void run() {
+                watch();
+            }
+        }, "PortDiscovery");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    // Names of the ports found by the latest scan, never blocks
+    // Empty until the first scan has finished
+    public String[] getPortNames() {
+        return m_portNames.clone();
+    }
+
+    // True once the first scan has finished
+    public boolean isReady() {
+        return m_scans > 0;
+    }
+
+    // False where devices can't be watched, the list then only changes on refresh()
+    public boolean isWatching() {
+        return m_watching;
+    }
+
+    // How long the latest scan took in milliseconds
+    public long getLastScanMs() {
+        return m_lastScanMs;
+    }
+
+    // Wait until the first scan has finished, which includes loading the RXTX native library
+    // Returns false if interrupted
+    public synchronized boolean awaitReady() {
+        while (m_scans == 0) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // Find a port by name, waiting for the first scan if it hasn't finished
+    // A port that isn't in the list is looked for with a fresh scan, in case it was just plugged in
+    // Returns null if there is no such port
+    public CommPortIdentifier findPort(String portName) {
+        if (!awaitReady()) {
+            return null;
+        }
+        CommPortIdentifier port = m_ports.get(portName);
+        if (port == null) {
+            scan();
+            port = m_ports.get(portName);
+        }
+        return port;
+    }
+
+    // Scan again in the background, for systems without /dev
+    public void refresh() {
+        Thread thread = new Thread(new Runnable() {
+            public void run() {
+                scan();
+            }
+        }, "PortDiscovery-Refresh");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    // Enumerate the ports through RXTX and replace the cached list
+    // Scans are serialized, RXTX isn't safe to enumerate from two threads at once
+    private synchronized void scan() {
+        long start = System.nanoTime();
+        Map<String, CommPortIdentifier> ports = new HashMap<String, CommPortIdentifier>();
+        List<String> names = new ArrayList<String>();
+        try {
+            Enumeration<?> portEnum = CommPortIdentifier.getPortIdentifiers();
+            while (portEnum.hasMoreElements()) {
+                CommPortIdentifier portId = (CommPortIdentifier) portEnum.nextElement();
+                ports.put(portId.getName(), portId);
+                names.add(portId.getName());
+            }
+        } catch (UnsatisfiedLinkError e) {
+            System.err.println("Error: RXTX native library not found: " + e.getMessage());
+        } catch (Exception e) {
+            System.err.println("Error: could not list serial ports: " + e.getMessage());
+        }
+
+        String[] portNames = names.toArray(new String[names.size()]);
+        if (!Arrays.equals(portNames, m_portNames)) {
+            for (String name : portNames) {
+                System.out.println("Found Port: " + name);
+            }
+        }
+        m_ports = ports;
+        m_portNames = portNames;
+        m_lastScanMs = (System.nanoTime() - start) / 1000000;
+        m_scans++;
+        notifyAll();
+    }
+
+    // Scan whenever a serial device is created or removed
+    private void watch() {
+        WatchService watcher = null;
+        Path dir = Paths.get(DEVICE_DIR);
+        if (Files.isDirectory(dir)) {
+            try {
+                // Registered before the first scan so no device is missed in between
+                watcher = FileSystems.getDefault().newWatchService();
+                dir.register(watcher, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_DELETE);
+            } catch (IOException e) {
+                System.err.println("Error: could not watch " + DEVICE_DIR + " for serial ports: " + e.getMessage());
+                watcher = null;
+            }
+        }
+
+        m_watching = watcher != null;
+        scan();
+        if (watcher == null) {
+            return;
+        }
+
+        try {
+            while (true) {
+                WatchKey key = watcher.take();
+                boolean changed = isSerialDeviceEvent(key);
+                key.reset();
+                if (!changed) {
+                    continue;
+                }
+
+                // Collect the rest of the burst, one scan covers them all
+                Thread.sleep(SETTLE_MS);
+                while ((key = watcher.poll()) != null) {
+                    key.pollEvents();
+                    key.reset();
+                }
+                scan();
+            }
+        } catch (InterruptedException e) {
+            // Stopped
+        } finally {
+            m_watching = false;
+            try {
+                watcher.close();
+            } catch (IOException e) {
+                // Nothing more we can do
+            }
+        }
+    }
+
+    // True if any event of the key is for a device that may be a serial port
+    private static boolean isSerialDeviceEvent(WatchKey key) {
+        boolean serial = false;
+        for (WatchEvent<?> event : key.pollEvents()) {
+            if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                serial = true;
+                continue;
+            }
+            String name = event.context().toString();
+            if (name.startsWith("tty") || name.startsWith("cu.") || name.startsWith("rfcomm")) {
+                serial = true;
+            }
+        }
+        return serial;
+    }
+}
@@ -20,139 +20,445 @@
 ////////////////////////////////////////////////////////////////////////////////////////////////
 
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.OutputStream;
-import java.util.Enumeration;
+import java.nio.ByteBuffer;
 
-import gnu.io.CommPortIdentifier; 
-import gnu.io.SerialPort;
-import gnu.io.SerialPortEvent; 
-import gnu.io.SerialPortEventListener; 
-
-// This class is responsible for handling the serial port communication
-public class RCCom implements SerialPortEventListener {
+// This class is responsible for handling the communication with the car.
+// The bytes travel over a Transport: a serial port through RXTX (the default),
+// a tty through NIO ("tty:/dev/ttyUSB0"), a network bridge ("tcp:host:port"),
+// an in-process emulator or an in-memory loopback.
+public class RCCom implements Transport.Receiver {
     
-    SerialPort serialPort;
+    // The link to the car, null when closed
+    private volatile Transport m_transport;
     
-    // Buffered input stream from the port
-    private InputStream input;
+    // Default bits per second for COM port.
+    // The car always starts at this rate, faster rates are negotiated (see BaudNegotiator)
+    public static final int DATA_RATE = 9600;
     
-    // The output stream to the port
-    private OutputStream output;
+    // Bits per second currently in use
+    private volatile int m_dataRate = DATA_RATE;
     
-    // Milliseconds to block while waiting for port open
-    private static final int TIME_OUT = 2000;
+    // Number of frames that can be queued for the writer thread
+    private static final int QUEUE_CAPACITY = 64;
     
-    // Default bits per second for COM port.
-    private static final int DATA_RATE = 9600;
+    // Frames waiting to be written to the port
+    private final FrameRing m_sendQueue = new FrameRing(QUEUE_CAPACITY);
+    
+    // Thread that owns all writes to the port
+    private final Thread m_writerThread;
+    
+    // When true, queued frames with the same coalesce key are collapsed to the newest one
+    private volatile boolean m_coalescing = false;
+    
+    // Decodes status frames received from the car
+    private final TelemetryParser m_telemetry = new TelemetryParser();
+    
+    // True while the writer thread may hold a frame it hasn't written yet
+    private volatile boolean m_writerBusy;
+    
+    // Held for every write and rate change, so a frame never straddles a rate change
+    private final Object m_writeLock = new Object();
+    
+    // While true the writer keeps queued frames back, guarded by m_writeLock
+    private boolean m_paused;
+    
+    // Latency and throughput of the send path, also counts the errors the car reports
+    private final ControllerMetrics m_metrics = new ControllerMetrics();
+    
+    // Told when a write to the open port fails, see LinkMonitor
+    public interface FailureListener {
+        // Called on the writer thread, must return quickly
+        void writeFailed(IOException e);
+    }
+    
+    private volatile FailureListener m_failureListener;
+    
+    public RCCom()
+    {
+        m_telemetry.addListener(m_metrics);
+        m_writerThread = new Thread(new SerialWriter(), "RCCom-Writer");
+        m_writerThread.setDaemon(true);
+        m_sendQueue.setConsumer(m_writerThread);
+        m_writerThread.start();
+    }
     
     // Returns a list of available serial port names
     public String[] getPortNames()
     {
-        Enumeration<?> portEnum = CommPortIdentifier.getPortIdentifiers();
-        
-        int numPorts = 0;
-        while (portEnum.hasMoreElements()) {
-            portEnum.nextElement();
-            // LAME.  Don't like having to iterate through twice, though that's probably
-            // more efficient than using an ArrayList.
-            numPorts++;
-        }
-        
-        String[] ports = new String[numPorts];
-        portEnum = CommPortIdentifier.getPortIdentifiers();
-        
-        for (int i = 0; i < numPorts; i++) {
-            CommPortIdentifier currPortId = (CommPortIdentifier) portEnum.nextElement();
-            ports[i] = currPortId.getName();
-            System.out.println("Found Port: " + ports[i]);
-        }       
-        
-        return ports;
+        return RxtxTransport.getPortNames();
     }
-
-    // Opens a serial port
-    // Returns an error message on failure, null on successful connection
-    public String connect(String portName)
+    
+    // True if the port name is opened through RXTX, i.e. it needs port discovery
+    public static boolean usesRxtx(String portName)
     {
-        CommPortIdentifier portId = null;
-        Enumeration<?> portEnum;
-        
-        try {
-            portEnum = CommPortIdentifier.getPortIdentifiers();
-        } catch (Exception e) {
-            return e.getMessage();                          
+        return !portName.startsWith("tty:") && !portName.startsWith("tcp:");
+    }
+    
+    // Create the transport for a port name
+    // "tty:<device>" and "tcp:<host>:<port>" select those transports, anything else is an RXTX port
+    public static Transport createTransport(String portName)
+    {
+        if (portName.startsWith("tty:")) {
+            return new TtyTransport(portName.substring(4));
         }
-
-        // Iterate through list of serial ports.  Only continue if there is a match.
-        while (portEnum.hasMoreElements()) {
-            CommPortIdentifier currPortId = (CommPortIdentifier) portEnum.nextElement();
-            if (currPortId.getName().equals(portName)) {
-                portId = currPortId;
-                break;
+        if (portName.startsWith("tcp:")) {
+            int colon = portName.lastIndexOf(':');
+            if (colon <= 4) {
+                return null;
+            }
+            try {
+                return new SocketTransport(portName.substring(4, colon),
+                        Integer.parseInt(portName.substring(colon + 1)));
+            } catch (NumberFormatException e) {
+                return null;
             }
         }
+        return new RxtxTransport(portName);
+    }
 
-        if (portId == null) {
-            return "Could not find COM port.";
+    // Opens a serial port
+    // Returns an error message on failure, null on successful connection
+    public String connect(String portName)
+    {
+        Transport transport = createTransport(portName);
+        if (transport == null) {
+            return "Bad port name: " + portName;
         }
-
-        try {
-            // Close port if it was previously open
-            close(); 
-            
-            // open serial port, and use class name for the appName.
-            serialPort = (SerialPort) portId.open(this.getClass().getName(), TIME_OUT);
-
-            // set port parameters
-            serialPort.setSerialPortParams(DATA_RATE, SerialPort.DATABITS_8, SerialPort.STOPBITS_1, SerialPort.PARITY_NONE);
-
-            // open the streams
-            input = serialPort.getInputStream();
-            output = serialPort.getOutputStream();
-
-            // add event listeners
-            serialPort.addEventListener(this);
-            serialPort.notifyOnDataAvailable(true);
-        } catch (Exception e) {
-            // Return an error message if port can't be opened
-            return e.toString();
+        return connect(transport);
+    }
+    
+    // Opens any transport, closing the previous one
+    // Returns an error message on failure, null on successful connection
+    public synchronized String connect(Transport transport)
+    {
+        close();
+        m_dataRate = DATA_RATE;
+        String error = transport.open(this);
+        if (error != null) {
+            return error;
         }
+        m_transport = transport;
         return null; // No errors
     }
     
+    // Connect to an in-process car emulator instead of a serial port
+    // Returns an error message on failure, null on success
+    public String attach(CarEmulator emulator)
+    {
+        return connect(new EmulatorTransport(emulator));
+    }
+    
     // Close the port
     public synchronized void close() {
-        if (serialPort != null) {
-            serialPort.removeEventListener();
-            serialPort.close();
+        Transport transport = m_transport;
+        m_transport = null;
+        if (transport != null) {
+            transport.close();
+        }
+    }
+    
+    // Change the bits per second of the open port
+    // Returns an error message on failure, null on success
+    public synchronized String setDataRate(int dataRate)
+    {
+        Transport transport = m_transport;
+        if (transport == null) {
+            return "Port not open.";
+        }
+        synchronized (m_writeLock) {
+            String error = transport.setDataRate(dataRate);
+            if (error == null) {
+                m_dataRate = dataRate;
+            }
+            return error;
+        }
+    }
+    
+    // Keep queued frames back until resumeSending(), e.g. while host and car change rate
+    // Returns once a write in progress has finished
+    public void pauseSending()
+    {
+        synchronized (m_writeLock) {
+            m_paused = true;
         }
     }
     
-    // Handle serial port event
-    public synchronized void serialEvent(SerialPortEvent oEvent) {
-        if (oEvent.getEventType() == SerialPortEvent.DATA_AVAILABLE) {
-            // Write data to System.out
+    public void resumeSending()
+    {
+        synchronized (m_writeLock) {
+            m_paused = false;
+            m_writeLock.notifyAll();
+        }
+    }
+    
+    // Write a frame to the port right away, ahead of the queue and even while paused
+    // Blocks until it is written.  Returns false if the port is closed or the write failed.
+    public boolean writeNow(byte[] array)
+    {
+        synchronized (m_writeLock) {
+            Transport transport = m_transport;
+            if (transport == null) {
+                return false;
+            }
             try {
-                int available = input.available();
-                byte chunk[] = new byte[available];
-                input.read(chunk, 0, available);
-                System.out.print(new String(chunk));
-            } catch (Exception e) {
-                System.err.println(e.toString());
+                transport.write(array, 0, array.length);
+                m_metrics.recordFrameSent(array.length);
+                return true;
+            } catch (IOException e) {
+                m_metrics.recordWriteError();
+                return false;
             }
         }
-        // Ignore all the other eventTypes, but you could consider the other ones.
+    }
+    
+    // Bits per second currently in use
+    public int getDataRate()
+    {
+        return m_dataRate;
+    }
+    
+    // Write latency and throughput of the open transport, null when closed
+    public TransportStats getTransportStats()
+    {
+        Transport transport = m_transport;
+        return transport != null ? transport.getStats() : null;
+    }
+    
+    // Number of received bytes that were not part of a valid status frame
+    public long getTelemetryBytesSkipped()
+    {
+        return m_telemetry.getBytesSkipped();
+    }
+    
+    // Register for the status frames sent back by the car
+    public void addTelemetryListener(TelemetryListener listener) {
+        m_telemetry.addListener(listener);
+    }
+    
+    public void removeTelemetryListener(TelemetryListener listener) {
+        m_telemetry.removeListener(listener);
+    }
+    
+    // Called by the transport's receiving thread with bytes from the car
+    public void received(byte[] data, int offset, int length)
+    {
+        m_telemetry.feed(data, offset, length);
+    }
+    
+    // Queue data to be sent to the opened serial port
+    // Returns immediately, the frame is written by the writer thread
+    public boolean sendData(byte[] array)
+    {
+        if (array == null) {
+            return false;
+        }
+        return sendData(array, 0, array.length);
     }
 
-    // Send data to the opened serial port
-    public synchronized void sendData(byte[] array)
+    // Queue part of an array to be sent to the opened serial port
+    // Returns false if the port is not open or the frame was dropped by the overflow policy
+    public boolean sendData(byte[] array, int offset, int length)
+    {
+        if (array == null || m_transport == null) {
+            return false;
+        }
+        long start = System.nanoTime();
+        boolean queued = m_sendQueue.offer(array, offset, length);
+        m_metrics.recordSendCall(System.nanoTime() - start);
+        return queued;
+    }
+    
+    // Queue a frame that may be replaced by a newer frame with the same coalesce key
+    // while it is still waiting to be written (only when coalescing is enabled)
+    public boolean sendData(byte[] array, int offset, int length, int coalesceKey)
+    {
+        if (array == null || m_transport == null) {
+            return false;
+        }
+        long start = System.nanoTime();
+        boolean queued = m_sendQueue.offer(array, offset, length, coalesceKey);
+        m_metrics.recordSendCall(System.nanoTime() - start);
+        return queued;
+    }
+    
+    // Same as sendData(byte[], int, int, int) for a frame caused by a key press at keyEventNs
+    // (System.nanoTime), the time until it is written is recorded as key-to-wire latency
+    public boolean sendData(byte[] array, int offset, int length, int coalesceKey, long keyEventNs)
+    {
+        if (array == null || m_transport == null) {
+            return false;
+        }
+        long start = System.nanoTime();
+        boolean queued = m_sendQueue.offer(array, offset, length, coalesceKey, keyEventNs);
+        m_metrics.recordSendCall(System.nanoTime() - start);
+        return queued;
+    }
+    
+    // Same as sendData(byte[], ...) for a frame held in a buffer, e.g. a memory-mapped sequence
+    public boolean sendData(ByteBuffer buffer, int index, int length, int coalesceKey)
+    {
+        if (buffer == null || m_transport == null) {
+            return false;
+        }
+        long start = System.nanoTime();
+        boolean queued = m_sendQueue.offer(buffer, index, length, coalesceKey);
+        m_metrics.recordSendCall(System.nanoTime() - start);
+        return queued;
+    }
+    
+    // Same as sendData(byte[], int, int, int) but never waits for room in the queue,
+    // whatever the overflow policy.  Returns false if the frame wasn't queued.
+    public boolean trySendData(byte[] array, int offset, int length, int coalesceKey)
+    {
+        return trySendData(array, offset, length, coalesceKey, 0);
+    }
+    
+    // Same as trySendData(byte[], int, int, int) for a frame caused by a key press at keyEventNs,
+    // see sendData(byte[], int, int, int, long)
+    public boolean trySendData(byte[] array, int offset, int length, int coalesceKey, long keyEventNs)
+    {
+        if (array == null || m_transport == null) {
+            return false;
+        }
+        long start = System.nanoTime();
+        boolean queued = m_sendQueue.tryOffer(array, offset, length, coalesceKey, keyEventNs);
+        m_metrics.recordSendCall(System.nanoTime() - start);
+        return queued;
+    }
+    
+    // Same as trySendData(byte[], ...) for a frame held in a buffer
+    public boolean trySendData(ByteBuffer buffer, int index, int length, int coalesceKey)
+    {
+        if (buffer == null || m_transport == null) {
+            return false;
+        }
+        long start = System.nanoTime();
+        boolean queued = m_sendQueue.tryOffer(buffer, index, length, coalesceKey);
+        m_metrics.recordSendCall(System.nanoTime() - start);
+        return queued;
+    }
+    
+    // Enable or disable coalescing of queued frames
+    public void setCoalescing(boolean coalescing)
     {
-        if (array != null && output != null) {
+        m_coalescing = coalescing;
+    }
+    
+    // Choose what happens when frames are sent faster than the port can write them
+    public void setOverflowPolicy(FrameRing.OverflowPolicy policy)
+    {
+        m_sendQueue.setOverflowPolicy(policy);
+    }
+    
+    // Number of frames waiting to be written
+    public int getQueueDepth()
+    {
+        return m_sendQueue.getDepth();
+    }
+    
+    // Wait until every queued frame has been written, at most timeoutMs
+    // Returns false if frames were still waiting when the time ran out
+    public boolean flush(long timeoutMs)
+    {
+        long deadline = System.nanoTime() + timeoutMs * 1000000L;
+        while (!m_sendQueue.isEmpty() || m_writerBusy) {
+            if (System.nanoTime() - deadline > 0) {
+                return false;
+            }
             try {
-                output.write(array);
-            } catch (IOException e) {
-                e.printStackTrace();
+                Thread.sleep(1);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+        }
+        return true;
+    }
+    
+    // Register to hear about failed writes, null to stop
+    public void setFailureListener(FailureListener listener)
+    {
+        m_failureListener = listener;
+    }
+    
+    // Latency and throughput metrics, see ControllerMetrics
+    public ControllerMetrics getMetrics()
+    {
+        return m_metrics;
+    }
+    
+    // Returns a summary of the send queue counters
+    public String getQueueStats()
+    {
+        long polled = m_sendQueue.getPolledCount();
+        return "Send queue: offered=" + m_sendQueue.getOfferedCount()
+                + " sent=" + m_metrics.getFramesSent()
+                + " coalesced=" + m_sendQueue.getCoalescedCount()
+                + " dropped=" + m_sendQueue.getDroppedCount()
+                + " depth=" + m_sendQueue.getDepth() + "/" + m_sendQueue.getCapacity()
+                + " maxDepth=" + m_sendQueue.getMaxDepth()
+                + " avgQueueWaitUs=" + (polled > 0 ? m_sendQueue.getQueueWaitNs() / polled / 1000 : 0)
+                + " offerWaitUs=" + m_sendQueue.getOfferWaitNs() / 1000
+                + " writeErrors=" + m_metrics.getWriteErrors();
+    }
+    
+    // Returns a summary of the transport counters
+    public String getTransportSummary()
+    {
+        Transport transport = m_transport;
+        if (transport == null) {
+            return "Transport: closed";
+        }
+        return "Transport " + transport.getName() + ": " + transport.getStats();
+    }
+    
+    // Drains the send queue and performs the blocking writes to the port
+    private class SerialWriter implements Runnable
+    {
+        @Override
+        public void run() {
+            byte[] frame = new byte[FrameRing.MAX_FRAME_SIZE];
+            while (true) {
+                m_writerBusy = true;
+                int length = m_coalescing ? m_sendQueue.pollCoalesced(frame) : m_sendQueue.poll(frame);
+                if (length < 0) {
+                    m_writerBusy = false;
+                    m_sendQueue.awaitFrame(10000000L); // 10 ms
+                    continue;
+                }
+                
+                Transport transport = null;
+                try {
+                    synchronized (m_writeLock) {
+                        // While paused the frame that was polled waits here
+                        while (m_paused) {
+                            m_writeLock.wait();
+                        }
+                        transport = m_transport;
+                        if (transport == null) {
+                            continue; // Port closed, drop the frame
+                        }
+                        transport.write(frame, 0, length);
+                    }
+                    m_metrics.recordFrameSent(length);
+                    long keyEventNs = m_sendQueue.getLastPolledOriginNs();
+                    if (keyEventNs != 0) {
+                        m_metrics.recordKeyToWire(System.nanoTime() - keyEventNs);
+                    }
+                } catch (InterruptedException e) {
+                    continue; // Nothing interrupts the writer, drop the frame if it happens
+                } catch (IOException e) {
+                    m_metrics.recordWriteError();
+                    FailureListener listener = m_failureListener;
+                    if (listener != null) {
+                        // A write that was in flight when the port was replaced doesn't count
+                        if (transport == m_transport) {
+                            listener.writeFailed(e);
+                        }
+                    } else {
+                        e.printStackTrace();
+                    }
+                }
             }
         }
     }
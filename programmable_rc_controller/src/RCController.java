@@ -19,6 +19,13 @@
 //    along with Programmable RC Car Controller.  If not, see <http://www.gnu.org/licenses/>.
 ////////////////////////////////////////////////////////////////////////////////////////////////
 
+import java.io.File;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.FutureTask;
+
+import javax.swing.SwingUtilities;
+
 // This class is responsible for handling the business logic
 // of the Programmable RC Car Controller.
 public class RCController {
@@ -36,38 +43,314 @@ public class RCController {
     // Enum value for drive command, see arduino code fore more info
     private final byte DRIVE_CMD = 10;
 
+    // Keeps the car's failsafe from stopping it, see LinkMonitor
+    private static final byte HEARTBEAT_CMD = 20;
+
+    // Sequence files larger than this are streamed instead of compiled before playing
+    // Smaller files may use repeat blocks, macros and variables (see SequenceCompiler)
+    static final long STREAM_THRESHOLD_BYTES = 1 << 20; // 1 MB
+
     private byte m_speed = (byte) 255;
+
+    // Direction bits of the last drive command, guarded by the lock on this object
+    private byte m_keyState = 0;
+
+    // Plays sequences from the host, created on first use
+    private SequencePlayer m_player;
+
+    // Fixed-rate speed ramps, created when the first trajectory is driven
+    private TrajectoryEngine m_trajectoryEngine;
+
+    // Captures manual driving, created the first time recording starts
+    private volatile SequenceRecorder m_recorder;
     private TextFileParser m_txtParser;
     private RCCom m_rcCom;
+    private EventLog m_eventLog;
+
+    // Negotiates and monitors the serial data rate
+    private BaudNegotiator m_baudNegotiator;
+
+    // Uploads sequences that are timed on the car itself
+    private SequenceUploader m_uploader;
+
+    // Used instead of plain DRIVE frames when reliable mode is on
+    private volatile ReliableLink m_reliableLink;
+
+    // Sends heartbeats and reconnects, created by startLinkMonitor()
+    private LinkMonitor m_linkMonitor;
+
+    // Reused for every command, guarded by the lock on this object
+    private final byte[] m_frame = new byte[4];
+
+    // Frame buffer for trySendDrive, which must not wait for the lock that guards m_frame
+    private final byte[] m_tryFrame = new byte[4];
+
+    // System.nanoTime when main() started, startup phases are timed from here
+    private static volatile long s_startupNs = System.nanoTime();
 
     public RCController() {
         m_txtParser = new TextFileParser();
-        ;
+        m_eventLog = EventLog.fromSystemProperties();
         m_rcCom = new RCCom();
+
+        // Only the newest speed for a direction needs to reach the car.
+        // Queued drive commands are coalesced, so the queue must never drop
+        // frames on its own or a direction change could be lost.
+        m_rcCom.setCoalescing(true);
+        m_rcCom.setOverflowPolicy(FrameRing.OverflowPolicy.BLOCK);
+
+        // Log what the car reports back
+        m_rcCom.addTelemetryListener(new TelemetryAdapter() {
+            public void commandAcknowledged(int commandId) {
+                m_eventLog.log(EventLog.CAR_ACK, commandId, 0);
+            }
+
+            public void checksumFailed(int commandId, int checksum) {
+                m_eventLog.log(EventLog.CAR_BAD_CHECKSUM, commandId, checksum);
+            }
+
+            public void invalidCommand(int commandId) {
+                m_eventLog.log(EventLog.CAR_INVALID_CMD, commandId, 0);
+            }
+
+            public void stateApplied(int keyState, int speed) {
+                m_eventLog.log(EventLog.CAR_STATE, keyState, speed);
+            }
+        });
+    }
+
+    // Register for status frames sent back by the car
+    public void addTelemetryListener(TelemetryListener listener) {
+        m_rcCom.addTelemetryListener(listener);
+    }
+
+    public void removeTelemetryListener(TelemetryListener listener) {
+        m_rcCom.removeTelemetryListener(listener);
     }
 
     // Send command to serial port
-    private void sendCommand(byte commandId, byte data1, byte data2) {
+    // Callers must hold the lock on this object, the frame buffer is reused
+    // keyEventNs is the System.nanoTime of the key press that caused it, 0 if none
+    private void sendCommand(byte commandId, byte data1, byte data2, long keyEventNs) {
+        encodeCommand(m_frame, 0, commandId, data1, data2);
+        m_rcCom.sendData(m_frame, 0, m_frame.length, coalesceKey(commandId, data1), keyEventNs);
+    }
+
+    // Drive commands with the same direction replace each other while queued,
+    // a change of direction always gets its own frame
+    private int coalesceKey(byte commandId, byte data1) {
+        return commandId == DRIVE_CMD ? (data1 & 0xFF) : FrameRing.NO_COALESCE;
+    }
+
+    // Write a command frame into dst starting at offset
+    private void encodeCommand(byte[] dst, int offset, byte commandId, byte data1, byte data2) {
         // Command is of format ID, DATA1, DATA2, CHECKSUM
         // See arduino code for more info
-        byte[] byteArray = new byte[4];
-        byteArray[0] = commandId;
-        byteArray[1] = data1;
-        byteArray[2] = data2;
-        byteArray[3] = (byte) (commandId + data1 + data2);
-        m_rcCom.sendData(byteArray);
+        dst[offset] = commandId;
+        dst[offset + 1] = data1;
+        dst[offset + 2] = data2;
+        dst[offset + 3] = (byte) (commandId + data1 + data2);
+    }
+
+    // Write a drive command frame into dst starting at offset
+    // Used to pre-encode sequences before they are played
+    void encodeDriveCommand(byte[] dst, int offset, byte keyState, byte speed) {
+        encodeCommand(dst, offset, DRIVE_CMD, keyState, speed);
+    }
+
+    // Send one step of a compiled sequence to the serial port
+    // The frame is already encoded, so nothing is allocated here
+    public synchronized void sendSequenceStep(SequenceTable table, int step) {
+        if (m_reliableLink != null) {
+            m_reliableLink.send(table.getKeyState(step), table.getSpeed(step));
+            m_eventLog.log(EventLog.SEQUENCE_STEP, step, table.getKeyState(step));
+            return;
+        }
+        m_rcCom.sendData(table.getRecords(), table.getFrameOffset(step), SequenceTable.FRAME_SIZE,
+                coalesceKey(DRIVE_CMD, table.getKeyState(step)));
+        m_eventLog.log(EventLog.SEQUENCE_STEP, step, table.getKeyState(step));
+    }
+
+    // Same as sendSequenceStep but never waits, neither for the lock on this object nor for
+    // room in the send queue, so one slow link can't hold up a scheduler that drives many
+    // cars from one thread (see FleetController)
+    // Returns false if the frame couldn't be queued right away
+    public boolean trySendSequenceStep(SequenceTable table, int step) {
+        ReliableLink reliableLink = m_reliableLink;
+        if (reliableLink != null) {
+            reliableLink.send(table.getKeyState(step), table.getSpeed(step)); // Held back at worst, never dropped
+        } else if (!m_rcCom.trySendData(table.getRecords(), table.getFrameOffset(step), SequenceTable.FRAME_SIZE,
+                coalesceKey(DRIVE_CMD, table.getKeyState(step)))) {
+            return false;
+        }
+        m_eventLog.log(EventLog.SEQUENCE_STEP, step, table.getKeyState(step));
+        return true;
+    }
+
+    // Same as sendDirectionCommand(byte, byte) but never waits, see trySendSequenceStep
+    // Returns false if the frame couldn't be queued right away
+    public boolean trySendDrive(byte keyState, byte speed) {
+        ReliableLink reliableLink = m_reliableLink;
+        if (reliableLink != null) {
+            reliableLink.send(keyState, speed);
+        } else {
+            // The send queue copies the frame, so the buffer is only held while queueing
+            synchronized (m_tryFrame) {
+                encodeCommand(m_tryFrame, 0, DRIVE_CMD, keyState, speed);
+                if (!m_rcCom.trySendData(m_tryFrame, 0, m_tryFrame.length, coalesceKey(DRIVE_CMD, keyState))) {
+                    return false;
+                }
+            }
+        }
+        m_eventLog.log(EventLog.DRIVE_COMMAND, keyState, speed);
+        return true;
     }
 
     // Send drive command to serial port, no speed specified
     public synchronized void sendDirectionCommand(byte keyState) {
-        sendCommand(DRIVE_CMD, keyState, m_speed);
-        System.out.println("Sending Command: " + keyState);
+        sendDrive(keyState, m_speed, 0);
     }
 
     // Send drive command to serial port, speed specified
     public synchronized void sendDirectionCommand(byte keyState, byte speed) {
-        sendCommand(DRIVE_CMD, keyState, speed);
-        System.out.println("Sending Command: " + keyState);
+        sendDrive(keyState, speed, 0);
+    }
+
+    // Send drive command for a key press that happened at keyEventNs (System.nanoTime)
+    // The time until the frame is written is recorded as key-to-wire latency
+    public synchronized void sendKeyPress(byte keyState, long keyEventNs) {
+        sendDrive(keyState, m_speed, keyEventNs);
+    }
+
+    // Send a drive command, acknowledged if reliable mode is on
+    private void sendDrive(byte keyState, byte speed, long keyEventNs) {
+        if (m_reliableLink != null) {
+            m_reliableLink.send(keyState, speed, keyEventNs);
+        } else {
+            sendCommand(DRIVE_CMD, keyState, speed, keyEventNs);
+        }
+        m_keyState = keyState;
+        m_eventLog.log(EventLog.DRIVE_COMMAND, keyState, speed);
+
+        SequenceRecorder recorder = m_recorder;
+        if (recorder != null) {
+            recorder.record(keyState, speed);
+        }
+    }
+
+    // Tell the car the link is alive and how long it may go without hearing from us
+    // before it stops itself (0 turns its failsafe off)
+    public synchronized void sendHeartbeat(int failsafeMs) {
+        sendCommand(HEARTBEAT_CMD, (byte) failsafeMs, (byte) (failsafeMs >> 8), 0);
+    }
+
+    // Bring a car that was reconnected (and probably reset) back to where it was:
+    // restart reliable mode, then send the current direction and speed again
+    // Not recorded, the driver didn't do anything
+    public synchronized void restoreDriveState() {
+        if (m_reliableLink != null) {
+            setReliable(false);
+            setReliable(true);
+            m_reliableLink.send(m_keyState, m_speed);
+        } else {
+            sendCommand(DRIVE_CMD, m_keyState, m_speed, 0);
+        }
+        m_eventLog.log(EventLog.DRIVE_COMMAND, m_keyState, m_speed);
+    }
+
+    // Wait until the reliable link has delivered the drive state, it is held back until the
+    // car acknowledges the reset.  Returns true right away when reliable mode is off.
+    public boolean awaitDriveStateDelivered(long timeoutMs) {
+        ReliableLink reliableLink = m_reliableLink;
+        return reliableLink == null || reliableLink.awaitSettled(timeoutMs);
+    }
+
+    // Move a reconnected car back to the fastest rate, if the rate had been negotiated before
+    // Returns the report, or null if the rate was never negotiated
+    public String renegotiateDataRate() {
+        BaudNegotiator negotiator;
+        synchronized (this) {
+            negotiator = m_baudNegotiator;
+        }
+        return negotiator != null ? negotiator.negotiate() : null;
+    }
+
+    // Send heartbeats every intervalMs and reconnect automatically when the link fails
+    // failsafeMs is how long the car keeps driving without hearing from us
+    public synchronized void startLinkMonitor(long intervalMs, int failsafeMs) {
+        if (m_linkMonitor == null) {
+            m_linkMonitor = new LinkMonitor(this, m_rcCom, intervalMs, failsafeMs);
+            m_linkMonitor.start();
+        }
+    }
+
+    public synchronized void stopLinkMonitor() {
+        if (m_linkMonitor != null) {
+            m_linkMonitor.stop();
+            m_linkMonitor = null;
+        }
+    }
+
+    // Start recording manual driving to a sequence file that can be played back later
+    // Returns an error message on failure, null on success
+    public synchronized String startRecording(String fileName) {
+        if (m_recorder == null) {
+            m_recorder = new SequenceRecorder(this);
+        }
+        return m_recorder.start(fileName, m_keyState, m_speed);
+    }
+
+    // Stop recording, returns a summary of what was recorded
+    // Not synchronized so driving isn't held up while the file is finished
+    public String stopRecording() {
+        SequenceRecorder recorder = m_recorder;
+        if (recorder == null) {
+            return "Not recording";
+        }
+        return recorder.stop();
+    }
+
+    public boolean isRecording() {
+        SequenceRecorder recorder = m_recorder;
+        return recorder != null && recorder.isRecording();
+    }
+
+    // Move the host and the car to the fastest data rate that works, up to maxRate
+    // Blocks while the link is tested.  Returns a report of the rate and throughput achieved.
+    public String negotiateDataRate(int maxRate) {
+        BaudNegotiator negotiator;
+        synchronized (this) {
+            if (m_baudNegotiator == null) {
+                m_baudNegotiator = new BaudNegotiator(m_rcCom, maxRate);
+                m_rcCom.addTelemetryListener(m_baudNegotiator);
+            }
+            negotiator = m_baudNegotiator;
+        }
+        String report = negotiator.negotiate();
+        negotiator.startQualityMonitor();
+        return report;
+    }
+
+    // Bits per second currently used on the serial port
+    public int getDataRate() {
+        return m_rcCom.getDataRate();
+    }
+
+    // Turn the acknowledged, pipelined drive protocol on or off
+    public synchronized void setReliable(boolean reliable) {
+        if (reliable && m_reliableLink == null) {
+            m_reliableLink = new ReliableLink(m_rcCom);
+            m_rcCom.addTelemetryListener(m_reliableLink);
+            m_reliableLink.start();
+        } else if (!reliable && m_reliableLink != null) {
+            m_reliableLink.stop();
+            m_rcCom.removeTelemetryListener(m_reliableLink);
+            m_reliableLink = null;
+        }
+    }
+
+    public synchronized boolean isReliable() {
+        return m_reliableLink != null;
     }
 
     // Change the driving speed
@@ -79,14 +362,211 @@ public class RCController {
     }
 
     // Run through the programmed commands in sequence.txt
-    // Creates a new thread every time it's called
+    // Only one sequence or trajectory is active at a time, on the host or on the car
     public synchronized void processProgrammedSequence(RCControllerGUI gui) {
-        String[] sequenceCmds = m_txtParser.getSequence();
-        if (sequenceCmds != null) {
-	        SequenceThread s = new SequenceThread(this, gui, sequenceCmds);
-	        new Thread(s).start();
-        } else {
+        String fileName = m_txtParser.getSequenceFileName();
+        if (m_trajectoryEngine != null && m_trajectoryEngine.isActive()) {
+            gui.showWarning("A trajectory is running. Stop it first.");
+            return;
+        }
+        if (m_uploader != null && m_uploader.isBusy()) {
+            gui.showWarning("A sequence is running on the car. Stop it first.");
+            return;
+        }
+        if (TrajectoryEngine.isTrajectoryFile(fileName)) {
+            driveTrajectory(fileName, gui);
+            return;
+        }
+        if (SequenceFile.isBinary(fileName)) {
+            // Binary sequences are memory-mapped and played as they are
+            SequenceTable table = SequenceFile.load(fileName);
+            if (table == null) {
+                gui.showWarning("Could not process " + fileName + ".");
+                return;
+            }
+            playSequence(table, gui);
+            return;
+        }
+        
+        if (shouldStreamSequence()) {
+            // Too big to load first, play it while it is parsed
+            SequenceStream stream = new SequenceStream(this, m_txtParser.getSequenceFileName());
+            String errorMsg = stream.start();
+            if (errorMsg != null) {
+                gui.showWarning("Could not process sequence.txt.\n" + errorMsg);
+                return;
+            }
+            errorMsg = getPlayer().play(stream, gui);
+            if (errorMsg != null) {
+                stream.close();
+                gui.showWarning(errorMsg);
+            }
+            return;
+        }
+        
+        if (!new File(fileName).exists()) {
         	gui.showWarning("Could not process sequence.txt.\nMake sure that the file exists in the same directory as Programmable RC Controller.");
+        	return;
+        }
+        
+        // Compile the whole sequence up front so playback only has to write frames
+        SequenceCompiler compiler = new SequenceCompiler(this);
+        SequenceTable table = compiler.compileFile(fileName);
+        if (table == null) {
+            gui.showWarning("Parsing Error: " + compiler.getError());
+            return;
+        }
+        System.out.println(fileName + ": " + compiler.getSummary());
+        playSequence(table, gui);
+    }
+
+    // Play a compiled sequence from the host, or on the car if rc.sequence.onboard is set
+    private void playSequence(SequenceTable table, RCControllerGUI gui) {
+        if (Boolean.getBoolean("rc.sequence.onboard")) {
+            // -Drc.sequence.onboard=true runs the sequence on the car instead
+            runSequenceOnCar(table, gui);
+            return;
+        }
+        String errorMsg = getPlayer().play(table, gui);
+        if (errorMsg != null) {
+            gui.showWarning(errorMsg);
+        }
+    }
+
+    // Drive the segments of a .traj file on the trajectory engine
+    private void driveTrajectory(String fileName, RCControllerGUI gui) {
+        if (getPlayer().getState() != SequencePlayer.State.IDLE) {
+            gui.showWarning("A sequence is already playing. Stop it first.");
+            return;
+        }
+        String[] error = new String[1];
+        List<TrajectoryEngine.Segment> segments = TrajectoryEngine.parseFile(this, fileName, error);
+        if (segments == null) {
+            gui.showWarning("Could not process " + fileName + ".\n" + error[0]);
+            return;
+        }
+        String errorMsg = getTrajectoryEngine().play(segments, gui);
+        if (errorMsg != null) {
+            gui.showWarning(errorMsg);
+        }
+    }
+
+    // The control loop for trajectories, -Drc.trajectory.hz sets its rate
+    public synchronized TrajectoryEngine getTrajectoryEngine() {
+        if (m_trajectoryEngine == null) {
+            m_trajectoryEngine = new TrajectoryEngine(this, m_rcCom,
+                    Integer.getInteger("rc.trajectory.hz", TrajectoryEngine.DEFAULT_RATE_HZ));
+        }
+        return m_trajectoryEngine;
+    }
+
+    // Stop a running trajectory, the engine sends STOP
+    // Returns false if none was running
+    public boolean cancelTrajectory() {
+        TrajectoryEngine engine;
+        synchronized (this) {
+            engine = m_trajectoryEngine;
+        }
+        return engine != null && engine.cancel();
+    }
+
+    // The playback engine, for cancelling, pausing, seeking or scaling the time of a sequence
+    public synchronized SequencePlayer getPlayer() {
+        if (m_player == null) {
+            m_player = new SequencePlayer(this);
+        }
+        return m_player;
+    }
+
+    // Stop everything before the application exits
+    // Cancels playback, stops the car and waits up to timeoutMs for the STOP to be written
+    public void shutdown(long timeoutMs) {
+        // No reconnecting or rate changes while we leave
+        stopLinkMonitor();
+        BaudNegotiator negotiator;
+        synchronized (this) {
+            negotiator = m_baudNegotiator;
+        }
+        if (negotiator != null) {
+            negotiator.stopQualityMonitor();
+        }
+
+        SequencePlayer player;
+        synchronized (this) {
+            player = m_player;
+        }
+        if (player != null && player.cancel()) {
+            player.awaitIdle();
+        }
+        if (cancelTrajectory()) {
+            getTrajectoryEngine().awaitIdle();
+        }
+        abortSequenceOnCar();
+        sendDirectionCommand(STOP);
+        m_rcCom.flush(timeoutMs);
+    }
+
+    // Large sequence files are streamed, -Drc.sequence.stream=true streams all of them
+    // Sequences run on the car are always compiled up front because they have to be uploaded
+    private boolean shouldStreamSequence() {
+        if (Boolean.getBoolean("rc.sequence.onboard")) {
+            return false;
+        }
+        return Boolean.getBoolean("rc.sequence.stream")
+                || new File(m_txtParser.getSequenceFileName()).length() > STREAM_THRESHOLD_BYTES;
+    }
+
+    // Upload a compiled sequence to the car and start it there
+    // The GUI follows the progress reported by the car
+    // Callers must hold the lock on this object
+    private void runSequenceOnCar(final SequenceTable table, final RCControllerGUI gui) {
+        if (getPlayer().getState() != SequencePlayer.State.IDLE) {
+            gui.showWarning("A sequence is already playing. Stop it first.");
+            return;
+        }
+        if (m_uploader == null) {
+            m_uploader = new SequenceUploader(m_rcCom);
+            m_rcCom.addTelemetryListener(m_uploader);
+            m_rcCom.addTelemetryListener(new TelemetryAdapter() {
+                public void routineProgress(int step, int keyState) {
+                    gui.remoteUpdateGUI((byte) keyState);
+                }
+
+                public void routineFinished(boolean aborted) {
+                    gui.remoteUpdateGUI(STOP);
+                }
+            });
+        }
+
+        final SequenceUploader uploader = m_uploader;
+        if (!uploader.claim()) {
+            gui.showWarning("A sequence is running on the car. Stop it first.");
+            return;
+        }
+        // Uploading waits for the car, so it runs on its own thread
+        Thread thread = new Thread(new Runnable() {
+            public void run() {
+                String errorMsg = uploader.upload(table);
+                if (errorMsg != null) {
+                    uploader.release();
+                    gui.showWarning("Could not upload sequence.txt:\n" + errorMsg);
+                    return;
+                }
+                uploader.run();
+            }
+        }, "SequenceUploader");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    // Stop a sequence that is being uploaded or is running on the car
+    public void abortSequenceOnCar() {
+        SequenceUploader uploader;
+        synchronized (this) {
+            uploader = m_uploader;
+        }
+        if (uploader != null && uploader.isBusy()) {
+            uploader.abort();
         }
     }
 
@@ -105,26 +585,200 @@ public class RCController {
         return m_rcCom.getPortNames();
     }
 
+    // Returns the log used for send path events
+    public EventLog getEventLog() {
+        return m_eventLog;
+    }
+
+    // Latency and throughput of the send path, published over JMX by register()
+    public ControllerMetrics getMetrics() {
+        return m_rcCom.getMetrics();
+    }
+
+    // Returns a summary of the serial send queue counters
+    public String getLinkStats() {
+        ReliableLink reliableLink = m_reliableLink;
+        if (reliableLink != null) {
+            return m_rcCom.getQueueStats() + "\n" + m_rcCom.getTransportSummary() + "\n" + reliableLink.getStats();
+        }
+        return m_rcCom.getQueueStats() + "\n" + m_rcCom.getTransportSummary();
+    }
+
+    // Drive the car over any transport, e.g. a LoopbackTransport in benchmarks
+    public String connect(Transport transport) {
+        return m_rcCom.connect(transport);
+    }
+
+    // Close the port, e.g. when a car is not used after all
+    public void disconnect() {
+        m_rcCom.close();
+    }
+
+    // Drive an in-process car emulator instead of the serial port
+    // Returns an error message on failure, null on success
+    public String attachEmulator(CarEmulator emulator) {
+        return m_rcCom.attach(emulator);
+    }
+
     // Connect to the serial ports
     public String connect() {
         return m_rcCom.connect(getPortName());
     }
 
+    // Told the outcome of connectAsync()
+    public interface ConnectListener {
+        // errorMsg is null when the port was opened
+        void connected(String errorMsg);
+    }
+
+    // Connect to the serial port on a background thread, so the caller never
+    // waits for port discovery or for the port to open
+    public void connectAsync(final ConnectListener listener) {
+        Thread thread = new Thread(new Runnable() {
+            public void run() {
+                String errorMsg = connect();
+                if (listener != null) {
+                    listener.connected(errorMsg);
+                }
+            }
+        }, "Connect");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    // Negotiate the data rate and turn on reliable mode in the background,
+    // then keep the link alive
+    //   -Drc.baud.negotiate=false keeps the link at RCCom.DATA_RATE
+    //   -Drc.baud.max=<rate> limits the negotiated rate (default 115200)
+    //   -Drc.reliable=true turns on acknowledged drive commands
+    //   -Drc.heartbeat.intervalMs=<ms> heartbeat period, 0 turns heartbeats and reconnecting off (default 100)
+    //   -Drc.failsafe.ms=<ms> how long the car drives on without hearing from us (default 500)
+    private static void startLinkSetup(final RCController controller) {
+        new Thread(new Runnable() {
+            public void run() {
+                if (!"false".equalsIgnoreCase(System.getProperty("rc.baud.negotiate"))) {
+                    int maxRate = Integer.getInteger("rc.baud.max", 115200);
+                    System.out.println(controller.negotiateDataRate(maxRate));
+                }
+                if (Boolean.getBoolean("rc.reliable")) {
+                    controller.setReliable(true);
+                }
+                long heartbeatMs = Long.getLong("rc.heartbeat.intervalMs", LinkMonitor.DEFAULT_INTERVAL_MS);
+                if (heartbeatMs > 0) {
+                    controller.startLinkMonitor(heartbeatMs,
+                            Integer.getInteger("rc.failsafe.ms", LinkMonitor.DEFAULT_FAILSAFE_MS));
+                }
+            }
+        }, "LinkSetup").start();
+    }
+
+    static long getStartupNs() {
+        return s_startupNs;
+    }
+
+    // Print how long a startup phase took and when it ended, measured from the start of main()
+    static void logStartupPhase(String phase, long phaseStartNs) {
+        long now = System.nanoTime();
+        System.out.println(String.format("Startup: %s in %.1f ms (at %.1f ms)",
+                phase, (now - phaseStartNs) / 1e6, (now - s_startupNs) / 1e6));
+    }
+
     // Program entry point
+    // The slow parts of starting up run at the same time: loading RXTX and finding the
+    // serial ports (PortDiscovery), reading port.txt and connecting, loading the icons
+    // (RCControllerGUI) and showing the window, which says it is connecting until it is done.
     public static void main(String[] args) {
+        s_startupNs = System.nanoTime();
         try {
+            // Load RXTX and look for serial ports in the background
+            PortDiscovery.getDefault();
+
             // RC Controller (Business Logic)
-            RCController controller = new RCController();
+            final RCController controller = new RCController();
 
-            // RC Controller GUI
-            RCControllerGUI gui = new RCControllerGUI(controller);
+            // Read port.txt and connect in the background
+            final FutureTask<String> config = new FutureTask<String>(new Callable<String>() {
+                public String call() {
+                    long start = System.nanoTime();
+                    String portName = controller.getPortName();
+                    logStartupPhase("config read", start);
+                    return portName;
+                }
+            });
+            final FutureTask<String> connection = new FutureTask<String>(new Callable<String>() {
+                public String call() throws Exception {
+                    config.run();
+                    String portName = config.get();
+                    if (portName == null) {
+                        return "No port selected.";
+                    }
+                    if (RCCom.usesRxtx(portName)) {
+                        long start = System.nanoTime();
+                        PortDiscovery.getDefault().awaitReady();
+                        logStartupPhase("RXTX loaded and ports found (waited)", start);
+                    }
+                    long start = System.nanoTime();
+                    String errorMsg = controller.connect();
+                    logStartupPhase(errorMsg == null ? "connected" : "connect failed", start);
+                    return errorMsg;
+                }
+            });
+            Thread connectThread = new Thread(connection, "Startup-Connect");
+            connectThread.setDaemon(true);
+            connectThread.start();
+
+            // RC Controller GUI, built on the event dispatch thread
+            final RCControllerGUI[] guiHolder = new RCControllerGUI[1];
+            SwingUtilities.invokeAndWait(new Runnable() {
+                public void run() {
+                    guiHolder[0] = new RCControllerGUI(controller);
+                }
+            });
+            RCControllerGUI gui = guiHolder[0];
+
+            String portName = config.get();
+            if (portName != null && !connection.isDone()) {
+                gui.setConnecting(portName);
+            }
+
+            // Publish the metrics over JMX, and to a file if asked for
+            //   -Drc.metrics.file=<file>, -Drc.metrics.intervalMs=<ms> (default 10000)
+            String metricsError = controller.getMetrics().register(String.valueOf(portName));
+            if (metricsError != null) {
+                System.err.println("Error: could not register metrics: " + metricsError);
+            }
+            String metricsFile = System.getProperty("rc.metrics.file");
+            if (metricsFile != null) {
+                metricsError = controller.getMetrics().startSnapshots(metricsFile,
+                        Long.getLong("rc.metrics.intervalMs", 10000));
+                if (metricsError != null) {
+                    System.err.println("Error: " + metricsError);
+                }
+            }
+
+            // Remote drivers and test rigs, -Drc.server.port=<port>
+            //   -Drc.server.bind=<address> (default 127.0.0.1), -Drc.server.maxClients=<n> (default 512)
+            Integer serverPort = Integer.getInteger("rc.server.port");
+            if (serverPort != null) {
+                ControlServer server = new ControlServer(controller, gui,
+                        Integer.getInteger("rc.server.maxClients", ControlServer.DEFAULT_MAX_CLIENTS));
+                String serverError = server.start(System.getProperty("rc.server.bind", "127.0.0.1"), serverPort);
+                if (serverError != null) {
+                    System.err.println("Error: " + serverError);
+                } else {
+                    System.out.println("Control server listening on port " + server.getLocalPort());
+                }
+            }
 
-            // Connect to the serial port and display error msg if necessary
-            String errorMsg = controller.connect();
-            gui.setPortName(controller.getPortName());
+            // Wait for the connection and display error msg if necessary
+            String errorMsg = connection.get();
+            gui.setPortName(portName);
             if (errorMsg != null) {
                 gui.showWarning("Could not connect ("
-                        + controller.getPortName() + "):\n" + errorMsg);
+                        + portName + "):\n" + errorMsg);
+            } else {
+                logStartupPhase("ready to drive", s_startupNs);
+                startLinkSetup(controller);
             }
         } catch (Exception e) {
             e.printStackTrace();
@@ -24,15 +24,24 @@ import javax.swing.JFrame;
 import javax.swing.JLabel;
 import javax.swing.JOptionPane;
 
+import java.awt.DisplayMode;
+import java.awt.GraphicsEnvironment;
 import java.awt.event.KeyAdapter;
 import java.awt.event.KeyEvent;
 import java.awt.event.ActionListener;
 import java.awt.event.ActionEvent;
 import java.awt.event.MouseAdapter;
 import java.awt.event.MouseEvent;
+import java.awt.event.WindowAdapter;
+import java.awt.event.WindowEvent;
+import java.text.SimpleDateFormat;
+import java.util.Date;
 
 import javax.swing.JTextField;
+import javax.swing.SwingUtilities;
+import javax.swing.Timer;
 import javax.swing.JButton;
+import javax.swing.JToggleButton;
 import javax.swing.JSlider;
 import javax.swing.SwingConstants;
 import javax.swing.event.ChangeListener;
@@ -42,61 +51,141 @@ import javax.swing.event.ChangeEvent;
 public class RCControllerGUI {
     private JFrame m_frame;
     private JLabel[] m_lblDirections;
-    private ImageIcon[] m_iconImages;
+    // Empty until the icons have been loaded in the background
+    private ImageIcon[] m_iconImages = new ImageIcon[0];
+    
+    // Images used for directions, off then on
+    private static final String[] ICON_PATHS = {
+        "up_off.gif", "down_off.gif", "left_off.gif", "right_off.gif",
+        "up_on.gif", "down_on.gif", "left_on.gif", "right_on.gif"
+    };
     private JTextField m_portField;
     private JSlider m_speedSlider;
+    private JToggleButton m_recordButton;
     
     // State of the buttons being pressed
     private byte m_keyState = 0;
     
+    // Direction bits to show, published by any thread without locking
+    private volatile byte m_publishedKeyState = 0;
+    
+    // Direction bits the icons currently show, only used on the event dispatch thread
+    private byte m_shownKeyState = 0;
+    
+    // Repaints the icons that changed, at most once per display refresh
+    private Timer m_refreshTimer;
+    
+    // Used when the display refresh rate can't be found
+    private static final int DEFAULT_REFRESH_HZ = 60;
+    
     private RCController m_controller;
         
     public RCControllerGUI(RCController controller) {
         // Draws the GUI to the screen
         initialize();
         m_controller = controller;
+        
+        m_refreshTimer = new Timer(1000 / getRefreshRate(), new ActionListener() {
+            public void actionPerformed(ActionEvent arg0) {
+                refreshDirectionIcons();
+            }
+        });
+        m_refreshTimer.start();
         m_frame.setVisible(true);
+        RCController.logStartupPhase("window shown", RCController.getStartupNs());
+        loadIconsAsync();
     }
     
     // Show a warning to the user
-    public void showWarning(String str)
+    // May be called from any thread, the dialog is shown on the event dispatch thread
+    public void showWarning(final String str)
     {
+        if (!SwingUtilities.isEventDispatchThread()) {
+            SwingUtilities.invokeLater(new Runnable() {
+                public void run() {
+                    showWarning(str);
+                }
+            });
+            return;
+        }
         JOptionPane.showMessageDialog(null, str);
     }
     
     // Update the port name on the GUI
-    public void setPortName(String portName) 
+    public void setPortName(final String portName) 
     {
+        if (!SwingUtilities.isEventDispatchThread()) {
+            SwingUtilities.invokeLater(new Runnable() {
+                public void run() {
+                    setPortName(portName);
+                }
+            });
+            return;
+        }
         m_portField.setText(portName);
     }
     
+    // Show that the port is being connected to
+    public void setConnecting(String portName)
+    {
+        setPortName(portName + " (connecting...)");
+    }
+    
     // Update the GUI without user input
     // Occurs when the car has been programmed using sequence.txt
-    public synchronized void remoteUpdateGUI(byte keyState)
+    // Safe to call from any thread at any rate: only the latest state is kept
+    // and the icons are repainted by the refresh timer
+    public void remoteUpdateGUI(byte keyState)
     {
-        if ((keyState & m_controller.FORWARD_BIT) > 0) {
-            updateDirectionIcon(0, true);
-        } else {
-            updateDirectionIcon(0, false);
+        m_publishedKeyState = keyState;
+    }
+    
+    // Show the keys held down right away, called on the event dispatch thread
+    private void showKeyState(byte keyState)
+    {
+        m_publishedKeyState = keyState;
+        refreshDirectionIcons();
+    }
+    
+    // Repaint the direction icons whose state changed since the last refresh
+    // Runs on the event dispatch thread
+    private void refreshDirectionIcons()
+    {
+        byte keyState = m_publishedKeyState;
+        if (keyState == m_shownKeyState) {
+            return;
         }
         
-        if ((keyState & m_controller.BACKWARD_BIT) > 0) {
-            updateDirectionIcon(1, true);
-        } else {
-            updateDirectionIcon(1, false);
+        byte[] bits = { m_controller.FORWARD_BIT, m_controller.BACKWARD_BIT, m_controller.LEFT_BIT, m_controller.RIGHT_BIT };
+        for (int direction = 0; direction < bits.length; direction++) {
+            if (((keyState ^ m_shownKeyState) & bits[direction]) != 0) {
+                updateDirectionIcon(direction, (keyState & bits[direction]) != 0);
+            }
         }
-        
-        if ((keyState & m_controller.LEFT_BIT) > 0) {
-            updateDirectionIcon(2, true);
-        } else {
-            updateDirectionIcon(2, false);
+        m_shownKeyState = keyState;
+    }
+    
+    // When a key event happened as a System.nanoTime value, so the time it waited
+    // in the event queue counts towards the key-to-wire latency
+    private static long toNanoTime(KeyEvent event)
+    {
+        long ageMs = Math.max(System.currentTimeMillis() - event.getWhen(), 0);
+        return System.nanoTime() - ageMs * 1000000L;
+    }
+    
+    // Refresh rate of the screen, so the icons are never repainted faster than they can be seen
+    private static int getRefreshRate()
+    {
+        try {
+            int refreshRate = GraphicsEnvironment.getLocalGraphicsEnvironment()
+                    .getDefaultScreenDevice().getDisplayMode().getRefreshRate();
+            if (refreshRate != DisplayMode.REFRESH_RATE_UNKNOWN && refreshRate > 0) {
+                return refreshRate;
+            }
+        } catch (Exception e) {
+            // Headless or unknown display
         }
-        
-        if ((keyState & m_controller.RIGHT_BIT) > 0) {
-            updateDirectionIcon(3, true);
-        } else {
-            updateDirectionIcon(3, false);
-        }       
+        return DEFAULT_REFRESH_HZ;
     }
     
     // Update a GUI direction icon
@@ -117,39 +206,37 @@ public class RCControllerGUI {
             @Override
             // Catches all keyPressed events
             public void keyPressed(KeyEvent arg0) {             
+                byte keyStateBefore = m_keyState;
+                long keyEventNs = toNanoTime(arg0);
                 switch (arg0.getKeyCode())
                 {
                 case 38: // UP
                 case 'W':
-                    updateDirectionIcon(0, true);
                     if ((m_keyState & m_controller.FORWARD_BIT) == 0) {
                         m_keyState += m_controller.FORWARD_BIT;
                         // Send command to the serial port
-                        m_controller.sendDirectionCommand(m_keyState);
+                        m_controller.sendKeyPress(m_keyState, keyEventNs);
                     }
                     break;
                 case 40: // DOWN
                 case 'S':
-                    updateDirectionIcon(1, true);
                     if ((m_keyState & m_controller.BACKWARD_BIT) == 0) {
                         m_keyState += m_controller.BACKWARD_BIT;
-                        m_controller.sendDirectionCommand(m_keyState);
+                        m_controller.sendKeyPress(m_keyState, keyEventNs);
                     }
                     break;
                 case 37: // LEFT
                 case 'A':
-                    updateDirectionIcon(2, true);
                     if ((m_keyState & m_controller.LEFT_BIT) == 0) {
                         m_keyState += m_controller.LEFT_BIT;
-                        m_controller.sendDirectionCommand(m_keyState);
+                        m_controller.sendKeyPress(m_keyState, keyEventNs);
                     }
                     break;
                 case 39: // RIGHT
                 case 'D':
-                    updateDirectionIcon(3, true);
                     if ((m_keyState & m_controller.RIGHT_BIT) == 0) {
                         m_keyState += m_controller.RIGHT_BIT;
-                        m_controller.sendDirectionCommand(m_keyState);
+                        m_controller.sendKeyPress(m_keyState, keyEventNs);
                     }
                     break;
                 case 61: // +
@@ -158,48 +245,72 @@ public class RCControllerGUI {
                 case 45: // -
                     m_speedSlider.setValue(m_speedSlider.getValue() - m_speedSlider.getMinorTickSpacing());
                     break;
+                case 'R': // Start / stop recording
+                    m_recordButton.doClick();
+                    break;
                 case 27: // ESC
+                    // Make sure the car is stopped before leaving
+                    m_controller.shutdown(500);
                     System.exit(0);
                     break;
+                case 'P': // Pause / resume the sequence
+                    if (!m_controller.getPlayer().pause()) {
+                        m_controller.getPlayer().resume();
+                    }
+                    break;
+                case 'X': // Cancel the sequence or trajectory
+                    m_controller.getPlayer().cancel();
+                    m_controller.cancelTrajectory();
+                    m_controller.abortSequenceOnCar();
+                    break;
+                case 93: // ]
+                    m_controller.getPlayer().setTimeScale(m_controller.getPlayer().getTimeScale() * 2);
+                    break;
+                case 91: // [
+                    m_controller.getPlayer().setTimeScale(m_controller.getPlayer().getTimeScale() / 2);
+                    break;
                 }
                 
+                // Key repeats and other keys leave the direction state unchanged,
+                // so nothing is repainted and a sequence's state stays on screen
+                if (m_keyState != keyStateBefore) {
+                    showKeyState(m_keyState);
+                }
             }
             @Override
             public void keyReleased(KeyEvent arg0) {
                 // Catches all keyReleased events
+                byte keyStateBefore = m_keyState;
+                long keyEventNs = toNanoTime(arg0);
                 switch (arg0.getKeyCode())
                 {
                 case 38: // UP
                 case 'W':
-                    updateDirectionIcon(0, false);
                     if ((m_keyState & m_controller.FORWARD_BIT) > 0) {
                         m_keyState -= m_controller.FORWARD_BIT;
                         // Sends command to serial port
-                        m_controller.sendDirectionCommand(m_keyState);
+                        m_controller.sendKeyPress(m_keyState, keyEventNs);
                     }
                     break;
                 case 40: // DOWN
                 case 'S':
-                    updateDirectionIcon(1, false);
                     if ((m_keyState & m_controller.BACKWARD_BIT) > 0) {
                         m_keyState -= m_controller.BACKWARD_BIT;
-                        m_controller.sendDirectionCommand(m_keyState);
+                        m_controller.sendKeyPress(m_keyState, keyEventNs);
                     }
                     break;
                 case 37: // LEFT
                 case 'A':
-                    updateDirectionIcon(2, false);
                     if ((m_keyState & m_controller.LEFT_BIT) > 0) {
                         m_keyState -= m_controller.LEFT_BIT;
-                        m_controller.sendDirectionCommand(m_keyState);
+                        m_controller.sendKeyPress(m_keyState, keyEventNs);
                     }
                     break;
                 case 39: // RIGHT
                 case 'D':
-                    updateDirectionIcon(3, false);
                     if ((m_keyState & m_controller.RIGHT_BIT) > 0) {
                         m_keyState -= m_controller.RIGHT_BIT;
-                        m_controller.sendDirectionCommand(m_keyState);
+                        m_controller.sendKeyPress(m_keyState, keyEventNs);
                     }
                     break;
                     
@@ -207,6 +318,9 @@ public class RCControllerGUI {
                     break;
                 }
                 
+                if (m_keyState != keyStateBefore) {
+                    showKeyState(m_keyState);
+                }
             }
         });
         
@@ -214,6 +328,13 @@ public class RCControllerGUI {
         m_frame.setBounds(100, 100, 450, 300);
         m_frame.setResizable(false);
         m_frame.setDefaultCloseOperation(JFrame.EXIT_ON_CLOSE);
+        m_frame.addWindowListener(new WindowAdapter() {
+            @Override
+            public void windowClosing(WindowEvent arg0) {
+                // Runs before EXIT_ON_CLOSE ends the application
+                m_controller.shutdown(500);
+            }
+        });
         m_frame.getContentPane().setLayout(null);
 
         // Text field that displays the serial port in use
@@ -225,7 +346,14 @@ public class RCControllerGUI {
             @Override
             public void mouseClicked(MouseEvent arg0) {
                 // If textField is clicked on, display a dialog box with a list of found serial ports to select
+                // The list comes from the port discovery cache, so this never waits for a scan
                 String[] ports = m_controller.getPortNames();
+                PortDiscovery discovery = PortDiscovery.getDefault();
+                String noPorts = discovery.isReady() ? "No Ports Found" : "Searching for Ports...";
+                if (!discovery.isWatching()) {
+                    // Plugged in devices show up the next time the list is opened
+                    discovery.refresh();
+                }
                 String str = (String)JOptionPane.showInputDialog(
                                     m_frame,
                                     null,
@@ -233,7 +361,7 @@ public class RCControllerGUI {
                                     JOptionPane.PLAIN_MESSAGE,
                                     null,
                                     ports,
-                                    ports.length > 0 ? m_controller.getPortName() : "No Ports Found");
+                                    ports.length > 0 ? m_controller.getPortName() : noPorts);
                 if (ports.length > 0 && str != null) {
                     // Update the GUI
                     setPortName(str);
@@ -241,11 +369,14 @@ public class RCControllerGUI {
                     // Update the port.txt text file
                     m_controller.setPortName(str);                  
                     
-                    // Try to connect to the new port
-                    String errorMsg = m_controller.connect();
-                    if (errorMsg != null) {
-                        showWarning("Could not connect (" + m_controller.getPortName() +"):\n" + errorMsg);
-                    }                   
+                    // Try to connect to the new port, off the event dispatch thread
+                    m_controller.connectAsync(new RCController.ConnectListener() {
+                        public void connected(String errorMsg) {
+                            if (errorMsg != null) {
+                                showWarning("Could not connect (" + m_controller.getPortName() +"):\n" + errorMsg);
+                            }
+                        }
+                    });
                 }
             }
         });
@@ -301,28 +432,19 @@ public class RCControllerGUI {
         btnRunSequencetxt.setBounds(297, 245, 153, 29);
         m_frame.getContentPane().add(btnRunSequencetxt);
         
-        // Images used for directions
-        m_iconImages = new ImageIcon[8];
-        String[] imgPaths = new String[8];
-        imgPaths[0] = "up_off.gif";
-        imgPaths[1] = "down_off.gif";
-        imgPaths[2] = "left_off.gif";
-        imgPaths[3] = "right_off.gif";
-        imgPaths[4] = "up_on.gif";
-        imgPaths[5] = "down_on.gif";
-        imgPaths[6] = "left_on.gif";
-        imgPaths[7] = "right_on.gif";
-        
-        for (int i = 0; i < m_iconImages.length; i++) {
-        	try {
-            	m_iconImages[i] = new ImageIcon(getClass().getResource(imgPaths[i]));
-        	} catch (Exception e) {
-                System.out.println("Could not load image resource: " + e.getMessage());
-                m_iconImages[i] = new ImageIcon();
-        	}
-        }
+        // Record Button
+        m_recordButton = new JToggleButton("Record (R)");
+        m_recordButton.setFocusable(false);
+        m_recordButton.addActionListener(new ActionListener() {
+            public void actionPerformed(ActionEvent arg0) {
+                toggleRecording();
+            }
+        });
+        m_recordButton.setBounds(6, 10, 110, 29);
+        m_frame.getContentPane().add(m_recordButton);
         
         // Labels that the images will go on
+        // The images are loaded in the background (see loadIconsAsync)
         m_lblDirections = new JLabel[4];
         
         // Positioning the direction arrow labels
@@ -330,23 +452,75 @@ public class RCControllerGUI {
         int up_y = 10;
         int up_size = 75;
         
-        m_lblDirections[0] = new JLabel(m_iconImages[0]);       
+        m_lblDirections[0] = new JLabel();       
         m_lblDirections[0].setBounds(up_x, up_y, up_size, up_size);
         m_frame.getContentPane().add(m_lblDirections[0]);
         
-        m_lblDirections[1] = new JLabel(m_iconImages[1]);
+        m_lblDirections[1] = new JLabel();
         m_lblDirections[1].setBounds(up_x, up_y + 2*up_size - 20, up_size, up_size);
         m_frame.getContentPane().add(m_lblDirections[1]);
         
-        m_lblDirections[2] = new JLabel(m_iconImages[2]);
+        m_lblDirections[2] = new JLabel();
         m_lblDirections[2].setBounds(up_x - up_size + 10, up_y + up_size - 10, up_size, up_size);
         m_frame.getContentPane().add(m_lblDirections[2]);
         
-        m_lblDirections[3] = new JLabel(m_iconImages[3]);
+        m_lblDirections[3] = new JLabel();
         m_lblDirections[3].setBounds(up_x + up_size - 10, up_y + up_size - 10, up_size, up_size);
         m_frame.getContentPane().add(m_lblDirections[3]);
     }
     
+    // Load the direction images on a background thread, so the window doesn't wait for them
+    // The labels are filled in on the event dispatch thread once every image is loaded
+    private void loadIconsAsync()
+    {
+        Thread thread = new Thread(new Runnable() {
+            public void run() {
+                long start = System.nanoTime();
+                final ImageIcon[] icons = new ImageIcon[ICON_PATHS.length];
+                for (int i = 0; i < icons.length; i++) {
+                    try {
+                        icons[i] = new ImageIcon(RCControllerGUI.class.getResource(ICON_PATHS[i]));
+                    } catch (Exception e) {
+                        System.out.println("Could not load image resource: " + e.getMessage());
+                        icons[i] = new ImageIcon();
+                    }
+                }
+                RCController.logStartupPhase("icons loaded", start);
+                
+                SwingUtilities.invokeLater(new Runnable() {
+                    public void run() {
+                        m_iconImages = icons;
+                        byte[] bits = { m_controller.FORWARD_BIT, m_controller.BACKWARD_BIT, m_controller.LEFT_BIT, m_controller.RIGHT_BIT };
+                        for (int direction = 0; direction < bits.length; direction++) {
+                            updateDirectionIcon(direction, (m_shownKeyState & bits[direction]) != 0);
+                        }
+                    }
+                });
+            }
+        }, "IconLoader");
+        thread.setDaemon(true);
+        thread.start();
+    }
+    
+    // Start recording the manual driving to a new file, or stop and save it
+    private void toggleRecording()
+    {
+        if (m_controller.isRecording()) {
+            System.out.println(m_controller.stopRecording());
+            m_recordButton.setSelected(false);
+            return;
+        }
+        String fileName = "recording-" + new SimpleDateFormat("yyyyMMdd-HHmmss").format(new Date()) + ".txt";
+        String errorMsg = m_controller.startRecording(fileName);
+        if (errorMsg != null) {
+            m_recordButton.setSelected(false);
+            showWarning("Could not record to " + fileName + ":\n" + errorMsg);
+            return;
+        }
+        m_recordButton.setSelected(true);
+        System.out.println("Recording to " + fileName);
+    }
+    
     // Run the series of programmed commands in sequence.txt
     private void processSequenceTxt()
     {
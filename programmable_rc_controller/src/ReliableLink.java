@@ -0,0 +1,397 @@
+////////////////////////////////////////////////////////////////////////////////////////////////
+//    Copyright (C) 2012 Jon Bennett
+//
+//    This file is part of Programmable RC Car Controller.
+//
+//    http://www.jbprojects.net/articles/programmable-rc/
+//
+//    Programmable RC Car Controller is free software: you can redistribute it and/or modify
+//    it under the terms of the GNU General Public License as published by
+//    the Free Software Foundation, either version 3 of the License, or
+//    (at your option) any later version.
+//
+//    Programmable RC Car Controller is distributed in the hope that it will be useful,
+//    but WITHOUT ANY WARRANTY; without even the implied warranty of
+//    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+//    GNU General Public License for more details.
+//
+//    You should have received a copy of the GNU General Public License
+//    along with Programmable RC Car Controller.  If not, see <http://www.gnu.org/licenses/>.
+////////////////////////////////////////////////////////////////////////////////////////////////
+
+// This class implements the optional reliable drive protocol.
+// Each DRIVE_SEQ frame carries a 4 bit sequence number in the upper half of DATA1
+// (the direction bits only use the lower half) and is acknowledged by the car.
+// Up to WINDOW_SIZE consecutive sequence numbers, counted from the oldest unacknowledged
+// one, may be in flight at once.  A frame that isn't acknowledged within the retransmit
+// timeout is sent again on its own (selective retransmit).
+// send() never blocks: while the window is full only the newest drive state is held
+// back, and it is sent as soon as the oldest frame is acknowledged or given up on.
+// Frames the send queue has no room for are left to the retransmit timer.
+// The timeout follows the measured round trip time (RFC 6298 style smoothing).
+// SEQ_RESET makes the car accept any sequence number next.  It is acknowledged and
+// retransmitted like a drive frame, and no drive frame is sent until it is acknowledged,
+// or the car could reject them as duplicates of the numbers it saw before.  It is sent
+// when the link starts and again after a frame is given up on, because the car may
+// then be too far behind to take the following numbers as new.
+public class ReliableLink extends TelemetryAdapter {
+    // Command ids, see arduino code for more info
+    public static final byte DRIVE_SEQ_CMD = 11;
+    public static final byte SEQ_RESET_CMD = 12;
+
+    // Sequence numbers are 4 bits; the window must be at most half of that
+    // so the car can tell a retransmitted frame from a new one
+    private static final int SEQ_MODULO = 16;
+    public static final int WINDOW_SIZE = 8;
+
+    private static final int FRAME_SIZE = 4;
+    private static final int MAX_RETRIES = 10;
+
+    private static final long MIN_RTO_NS = 5000000L;    // 5 ms
+    private static final long MAX_RTO_NS = 1000000000L; // 1 s
+    private static final long INITIAL_RTO_NS = 100000000L; // 100 ms
+
+    private final RCCom m_rcCom;
+
+    // One preallocated frame per sequence number
+    private final byte[] m_frames = new byte[SEQ_MODULO * FRAME_SIZE];
+    private final boolean[] m_inFlight = new boolean[SEQ_MODULO];
+    private final boolean[] m_retransmitted = new boolean[SEQ_MODULO];
+    private final int[] m_retries = new int[SEQ_MODULO];
+    private final long[] m_sentNs = new long[SEQ_MODULO];
+
+    // Oldest unacknowledged sequence number, equal to m_nextSeq when nothing is in flight
+    private int m_sendBase;
+    private int m_nextSeq;
+    private int m_numInFlight;
+
+    // Newest drive state that didn't fit in the window
+    private boolean m_pending;
+    private byte m_pendingKeyState;
+    private byte m_pendingSpeed;
+    private long m_pendingKeyEventNs;
+
+    // Key press behind each frame in flight (System.nanoTime), until the frame is first queued
+    private final long[] m_keyEventNs = new long[SEQ_MODULO];
+
+    // Newest drive state sent, sent again after a reset that followed a lost frame
+    private byte m_lastKeyState;
+    private byte m_lastSpeed;
+
+    // SEQ_RESET waiting for its acknowledgement
+    private final byte[] m_resetFrame = { SEQ_RESET_CMD, 0, 0, SEQ_RESET_CMD };
+    private boolean m_resetPending;
+    private long m_resetSentNs;
+
+    // Round trip time estimate
+    private long m_srttNs;
+    private long m_rttVarNs;
+    private long m_rtoNs = INITIAL_RTO_NS;
+
+    // Statistics
+    private long m_framesSent;
+    private long m_framesAcked;
+    private long m_retransmits;
+    private long m_framesLost;
+    private long m_resets;
+    private long m_framesHeldBack;
+    private long m_rttCount;
+    private long m_rttSumNs;
+    private long m_rttMinNs = Long.MAX_VALUE;
+    private long m_rttMaxNs;
+
+    private Thread m_retransmitThread;
+
+    public ReliableLink(RCCom rcCom) {
+        m_rcCom = rcCom;
+    }
+
+    // Start the retransmit timer and tell the car to forget its last sequence number
+    public synchronized void start() {
+        for (int i = 0; i < SEQ_MODULO; i++) {
+            m_inFlight[i] = false;
+        }
+        m_numInFlight = 0;
+        m_sendBase = 0;
+        m_nextSeq = 0;
+        m_pending = false;
+        sendReset();
+
+        if (m_retransmitThread == null) {
+            m_retransmitThread = new Thread(new Retransmitter(), "ReliableLink-Retransmit");
+            m_retransmitThread.setDaemon(true);
+            m_retransmitThread.start();
+        }
+    }
+
+    // Stop retransmitting; frames still in flight are abandoned
+    public synchronized void stop() {
+        if (m_retransmitThread != null) {
+            m_retransmitThread.interrupt();
+            m_retransmitThread = null;
+        }
+        notifyAll();
+    }
+
+    // Send a drive command reliably
+    // Never blocks.  Returns false if the window is full or the reset is unacknowledged, then
+    // the state is sent once it can be, unless a newer one replaces it first.
+    public boolean send(byte keyState, byte speed) {
+        return send(keyState, speed, 0);
+    }
+
+    // Same as send(byte, byte) for a key press at keyEventNs (System.nanoTime), the time until
+    // the frame is first written is recorded as key-to-wire latency
+    public synchronized boolean send(byte keyState, byte speed, long keyEventNs) {
+        if (m_resetPending || isWindowFull()) {
+            if (m_pending) {
+                m_framesHeldBack++; // Replaced before it was sent
+            }
+            m_pending = true;
+            m_pendingKeyState = keyState;
+            m_pendingSpeed = speed;
+            m_pendingKeyEventNs = keyEventNs;
+            return false;
+        }
+        m_pending = false;
+        transmit(keyState, speed, keyEventNs);
+        return true;
+    }
+
+    // The next sequence number would be WINDOW_SIZE or more ahead of the oldest unacknowledged one.
+    // Counting frames in flight isn't enough: an unacknowledged frame can keep the base
+    // behind while later ones are acknowledged, and the next number would wrap onto it.
+    private boolean isWindowFull() {
+        return (m_nextSeq - m_sendBase + SEQ_MODULO) % SEQ_MODULO >= WINDOW_SIZE;
+    }
+
+    // Move the base past acknowledged frames and send the held back state if there is room now
+    private void advanceWindow() {
+        while (m_sendBase != m_nextSeq && !m_inFlight[m_sendBase]) {
+            m_sendBase = (m_sendBase + 1) % SEQ_MODULO;
+        }
+        if (m_pending && !m_resetPending && !isWindowFull()) {
+            m_pending = false;
+            transmit(m_pendingKeyState, m_pendingSpeed, m_pendingKeyEventNs);
+        }
+    }
+
+    private void transmit(byte keyState, byte speed, long keyEventNs) {
+        int seq = m_nextSeq;
+        m_nextSeq = (m_nextSeq + 1) % SEQ_MODULO;
+
+        int offset = seq * FRAME_SIZE;
+        byte data1 = (byte) ((seq << 4) | (keyState & 0x0F));
+        m_frames[offset] = DRIVE_SEQ_CMD;
+        m_frames[offset + 1] = data1;
+        m_frames[offset + 2] = speed;
+        m_frames[offset + 3] = (byte) (DRIVE_SEQ_CMD + data1 + speed);
+
+        m_lastKeyState = keyState;
+        m_lastSpeed = speed;
+        m_inFlight[seq] = true;
+        m_retransmitted[seq] = false;
+        m_retries[seq] = 0;
+        m_numInFlight++;
+        m_framesSent++;
+
+        m_sentNs[seq] = System.nanoTime();
+        // Never wait for room in the send queue: a frame that isn't queued times out
+        // and is sent again like one lost on the wire
+        m_keyEventNs[seq] = keyEventNs;
+        if (m_rcCom.trySendData(m_frames, offset, FRAME_SIZE, FrameRing.NO_COALESCE, keyEventNs)) {
+            m_keyEventNs[seq] = 0;
+        }
+        notifyAll(); // Wake the retransmit timer
+    }
+
+    // Tell the car to forget its last sequence number, drive frames wait for the ack
+    private void sendReset() {
+        m_resets++;
+        m_resetPending = true;
+        m_resetSentNs = System.nanoTime();
+        m_rcCom.trySendData(m_resetFrame, 0, FRAME_SIZE, FrameRing.NO_COALESCE);
+        notifyAll(); // Wake the retransmit timer
+    }
+
+    // The car lost track of the sequence numbers: drop the frames in flight and start over
+    // with a reset, then send the newest state again unless a newer one is waiting
+    private void resync() {
+        for (int seq = 0; seq < SEQ_MODULO; seq++) {
+            m_inFlight[seq] = false;
+        }
+        m_numInFlight = 0;
+        m_sendBase = m_nextSeq;
+        if (!m_pending) {
+            m_pending = true;
+            m_pendingKeyState = m_lastKeyState;
+            m_pendingSpeed = m_lastSpeed;
+            m_pendingKeyEventNs = 0;
+        }
+        sendReset();
+    }
+
+    @Override
+    // Called when the car acknowledges a command, SEQ_RESET is the one that matters here
+    public synchronized void commandAcknowledged(int commandId) {
+        if (commandId == SEQ_RESET_CMD && m_resetPending) {
+            m_resetPending = false;
+            advanceWindow();
+            notifyAll();
+        }
+    }
+
+    // Wait until the car has acknowledged everything sent so far and nothing is held back
+    // Returns false if that took longer than timeoutMs
+    public synchronized boolean awaitSettled(long timeoutMs) {
+        long deadline = System.currentTimeMillis() + timeoutMs;
+        while (m_resetPending || m_pending || m_numInFlight > 0) {
+            long remaining = deadline - System.currentTimeMillis();
+            if (remaining <= 0) {
+                return false;
+            }
+            try {
+                wait(remaining);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    // Called when the car acknowledges a sequence number
+    public synchronized void sequenceAcknowledged(int seq) {
+        seq &= SEQ_MODULO - 1;
+        if (!m_inFlight[seq]) {
+            return; // Duplicate ack
+        }
+
+        // Karn's algorithm: only sample frames that were sent once
+        if (!m_retransmitted[seq]) {
+            updateRtt(System.nanoTime() - m_sentNs[seq]);
+        }
+
+        m_inFlight[seq] = false;
+        m_numInFlight--;
+        m_framesAcked++;
+        advanceWindow();
+        notifyAll();
+    }
+
+    private void updateRtt(long rttNs) {
+        if (m_rttCount == 0) {
+            m_srttNs = rttNs;
+            m_rttVarNs = rttNs / 2;
+        } else {
+            m_rttVarNs = (3 * m_rttVarNs + Math.abs(m_srttNs - rttNs)) / 4;
+            m_srttNs = (7 * m_srttNs + rttNs) / 8;
+        }
+        m_rtoNs = Math.max(MIN_RTO_NS, Math.min(MAX_RTO_NS, m_srttNs + 4 * m_rttVarNs));
+
+        m_rttCount++;
+        m_rttSumNs += rttNs;
+        m_rttMinNs = Math.min(m_rttMinNs, rttNs);
+        m_rttMaxNs = Math.max(m_rttMaxNs, rttNs);
+    }
+
+    // Resend every frame whose timeout has expired
+    // Returns the time until the next frame expires
+    private synchronized long retransmitExpired() {
+        long now = System.nanoTime();
+        long nextExpiry = m_rtoNs;
+        if (m_resetPending) {
+            // Retried for as long as it takes, drive frames can't go out without it
+            long age = now - m_resetSentNs;
+            if (age < m_rtoNs) {
+                nextExpiry = m_rtoNs - age;
+            } else {
+                m_retransmits++;
+                m_resetSentNs = now;
+                m_rcCom.trySendData(m_resetFrame, 0, FRAME_SIZE, FrameRing.NO_COALESCE);
+            }
+        }
+        boolean gaveUp = false;
+        for (int seq = 0; seq < SEQ_MODULO; seq++) {
+            if (!m_inFlight[seq]) {
+                continue;
+            }
+
+            long age = now - m_sentNs[seq];
+            if (age < m_rtoNs) {
+                nextExpiry = Math.min(nextExpiry, m_rtoNs - age);
+                continue;
+            }
+
+            if (m_retries[seq] >= MAX_RETRIES) {
+                // Give up on this frame so the window doesn't stall forever
+                m_inFlight[seq] = false;
+                m_numInFlight--;
+                m_framesLost++;
+                gaveUp = true;
+                continue;
+            }
+
+            m_retries[seq]++;
+            m_retransmitted[seq] = true;
+            m_retransmits++;
+            m_sentNs[seq] = now;
+            if (m_rcCom.trySendData(m_frames, seq * FRAME_SIZE, FRAME_SIZE, FrameRing.NO_COALESCE, m_keyEventNs[seq])) {
+                m_keyEventNs[seq] = 0; // Only the first write of a frame counts
+            }
+        }
+        if (gaveUp) {
+            resync();
+        } else {
+            advanceWindow();
+        }
+        return nextExpiry;
+    }
+
+    // Number of frames waiting for an acknowledgement
+    public synchronized int getNumInFlight() {
+        return m_numInFlight;
+    }
+
+    // Smoothed round trip time in nanoseconds
+    public synchronized long getSmoothedRttNs() {
+        return m_srttNs;
+    }
+
+    // Returns a summary of the delivery and round trip counters
+    public synchronized String getStats() {
+        return "Reliable link: sent=" + m_framesSent
+                + " acked=" + m_framesAcked
+                + " retransmits=" + m_retransmits
+                + " lost=" + m_framesLost
+                + " inFlight=" + m_numInFlight
+                + " heldBack=" + m_framesHeldBack
+                + " resets=" + m_resets
+                + String.format(" rtt(ms) min=%.3f mean=%.3f max=%.3f srtt=%.3f rto=%.3f",
+                        m_rttCount > 0 ? m_rttMinNs / 1e6 : 0.0,
+                        m_rttCount > 0 ? m_rttSumNs / (double) m_rttCount / 1e6 : 0.0,
+                        m_rttMaxNs / 1e6, m_srttNs / 1e6, m_rtoNs / 1e6);
+    }
+
+    // Wakes up whenever a frame may have timed out
+    private class Retransmitter implements Runnable {
+        @Override
+        public void run() {
+            while (!Thread.currentThread().isInterrupted()) {
+                long waitNs = retransmitExpired();
+                synchronized (ReliableLink.this) {
+                    try {
+                        if (m_numInFlight == 0 && !m_resetPending) {
+                            ReliableLink.this.wait(); // Nothing to time out
+                        } else {
+                            ReliableLink.this.wait(Math.max(1, waitNs / 1000000L));
+                        }
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+            }
+        }
+    }
+}
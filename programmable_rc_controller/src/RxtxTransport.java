@@ -0,0 +1,153 @@
+////////////////////////////////////////////////////////////////////////////////////////////////
+//    Copyright (C) 2012 Jon Bennett
+//
+//    This file is part of Programmable RC Car Controller.
+//
+//    http://www.jbprojects.net/articles/programmable-rc/
+//
+//    Programmable RC Car Controller is free software: you can redistribute it and/or modify
+//    it under the terms of the GNU General Public License as published by
+//    the Free Software Foundation, either version 3 of the License, or
+//    (at your option) any later version.
+//
+//    Programmable RC Car Controller is distributed in the hope that it will be useful,
+//    but WITHOUT ANY WARRANTY; without even the implied warranty of
+//    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+//    GNU General Public License for more details.
+//
+//    You should have received a copy of the GNU General Public License
+//    along with Programmable RC Car Controller.  If not, see <http://www.gnu.org/licenses/>.
+////////////////////////////////////////////////////////////////////////////////////////////////
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import gnu.io.CommPortIdentifier;
+import gnu.io.SerialPort;
+import gnu.io.SerialPortEvent;
+import gnu.io.SerialPortEventListener;
+
+// Talks to a serial port through the RXTX library
+public class RxtxTransport implements Transport, SerialPortEventListener {
+    // Milliseconds to block while waiting for port open
+    private static final int TIME_OUT = 2000;
+
+    private final String m_portName;
+    private final TransportStats m_stats = new TransportStats();
+
+    private SerialPort m_serialPort;
+
+    // Buffered input stream from the port
+    private InputStream m_input;
+
+    // The output stream to the port
+    private volatile OutputStream m_output;
+
+    private Receiver m_receiver;
+
+    // Reused by serialEvent, which RXTX calls on a single thread
+    private final byte[] m_readBuffer = new byte[256];
+
+    public RxtxTransport(String portName) {
+        m_portName = portName;
+    }
+
+    // Returns a list of available serial port names
+    // Served from the PortDiscovery cache, so it never waits for RXTX to enumerate
+    public static String[] getPortNames()
+    {
+        return PortDiscovery.getDefault().getPortNames();
+    }
+
+    public synchronized String open(Receiver receiver) {
+        // Only continue if the port has been found
+        CommPortIdentifier portId = PortDiscovery.getDefault().findPort(m_portName);
+        if (portId == null) {
+            return "Could not find COM port.";
+        }
+
+        try {
+            // open serial port, and use class name for the appName.
+            m_serialPort = (SerialPort) portId.open(this.getClass().getName(), TIME_OUT);
+
+            // set port parameters
+            m_serialPort.setSerialPortParams(RCCom.DATA_RATE, SerialPort.DATABITS_8, SerialPort.STOPBITS_1, SerialPort.PARITY_NONE);
+
+            // open the streams
+            m_input = m_serialPort.getInputStream();
+            m_output = m_serialPort.getOutputStream();
+            m_receiver = receiver;
+            m_stats.reset();
+
+            // add event listeners
+            m_serialPort.addEventListener(this);
+            m_serialPort.notifyOnDataAvailable(true);
+        } catch (Exception e) {
+            // Return an error message if port can't be opened
+            close();
+            return e.toString();
+        }
+        return null; // No errors
+    }
+
+    public synchronized void close() {
+        m_output = null;
+        if (m_serialPort != null) {
+            m_serialPort.removeEventListener();
+            m_serialPort.close();
+            m_serialPort = null;
+        }
+    }
+
+    public void write(byte[] data, int offset, int length) throws IOException {
+        OutputStream out = m_output;
+        if (out == null) {
+            throw new IOException("Port not open.");
+        }
+        long start = System.nanoTime();
+        out.write(data, offset, length);
+        m_stats.recordWrite(length, System.nanoTime() - start);
+    }
+
+    public synchronized String setDataRate(int dataRate) {
+        if (m_serialPort == null) {
+            return "Port not open.";
+        }
+        try {
+            m_serialPort.setSerialPortParams(dataRate, SerialPort.DATABITS_8, SerialPort.STOPBITS_1, SerialPort.PARITY_NONE);
+        } catch (Exception e) {
+            return e.toString();
+        }
+        return null;
+    }
+
+    // Handle serial port event
+    public synchronized void serialEvent(SerialPortEvent oEvent) {
+        if (oEvent.getEventType() == SerialPortEvent.DATA_AVAILABLE && m_input != null) {
+            try {
+                int available = m_input.available();
+                while (available > 0) {
+                    int n = m_input.read(m_readBuffer, 0, Math.min(available, m_readBuffer.length));
+                    if (n <= 0) {
+                        break;
+                    }
+                    m_stats.recordRead(n);
+                    m_receiver.received(m_readBuffer, 0, n);
+                    available -= n;
+                }
+            } catch (Exception e) {
+                System.err.println(e.toString());
+            }
+        }
+        // Ignore all the other eventTypes, but you could consider the other ones.
+    }
+
+    public String getName() {
+        return "rxtx:" + m_portName;
+    }
+
+    public TransportStats getStats() {
+        return m_stats;
+    }
+}
@@ -0,0 +1,500 @@
+////////////////////////////////////////////////////////////////////////////////////////////////
+//    Copyright (C) 2012 Jon Bennett
+//
+//    This file is part of Programmable RC Car Controller.
+//
+//    http://www.jbprojects.net/articles/programmable-rc/
+//
+//    Programmable RC Car Controller is free software: you can redistribute it and/or modify
+//    it under the terms of the GNU General Public License as published by
+//    the Free Software Foundation, either version 3 of the License, or
+//    (at your option) any later version.
+//
+//    Programmable RC Car Controller is distributed in the hope that it will be useful,
+//    but WITHOUT ANY WARRANTY; without even the implied warranty of
+//    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+//    GNU General Public License for more details.
+//
+//    You should have received a copy of the GNU General Public License
+//    along with Programmable RC Car Controller.  If not, see <http://www.gnu.org/licenses/>.
+////////////////////////////////////////////////////////////////////////////////////////////////
+
+import java.io.BufferedReader;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+// This class compiles sequence files into a SequenceTable.
+// Besides the plain "direction, speed, duration" steps a file may use:
+//
+//   # comment           Anything after '#' is ignored, also at the end of a step
+//   let fast = 255      A variable, usable wherever a number is expected.
+//                       It holds its value for the lines after it.
+//   define eight        A macro: the lines up to its "end" are stored, not played
+//     FL, fast, 250
+//     FR, fast, 400
+//   end
+//   call eight          Play a macro, which has to be defined before
+//   repeat 100          Play the lines up to the matching "end" 100 times, may be nested
+//     call eight
+//   end
+//
+// Everything is expanded into a flat table when the file is compiled, so playback
+// is the same as for a plain file.  While expanding, zero length steps are dropped
+// and steps that repeat the previous direction and speed are merged into it.
+// Speeds must be 0 - 255 and directions one of FF, FR, FL, BB, BL, BR, LL, RR, SS.
+// Errors are reported as "file:line:column: message".
+public class SequenceCompiler {
+    // Most steps an expanded sequence may have (128 MB of records)
+    public static final int MAX_STEPS = 1 << 24;
+
+    private final RCController m_controller;
+
+    private String m_fileName = "sequence";
+    private String m_error;
+
+    // Variables and macros seen so far
+    private final Map<String, Long> m_variables = new HashMap<String, Long>();
+    private final Map<String, Block> m_macros = new HashMap<String, Block>();
+
+    // Expanded steps before and after optimizing
+    private long m_stepsExpanded;
+    private int m_stepsDropped;
+    private int m_stepsMerged;
+
+    // Optimized steps, filled while expanding
+    private byte[] m_keyStates;
+    private byte[] m_speeds;
+    private long[] m_durations;
+    private int m_numSteps;
+
+    public SequenceCompiler(RCController controller) {
+        m_controller = controller;
+    }
+
+    // A step or a block of them in the parsed file
+    private static class Node {
+        final int m_line;
+        final int m_column;
+
+        Node(int line, int column) {
+            m_line = line;
+            m_column = column;
+        }
+    }
+
+    private static class Step extends Node {
+        final byte m_keyState;
+        final byte m_speed;
+        final long m_durationMs;
+
+        Step(int line, int column, byte keyState, byte speed, long durationMs) {
+            super(line, column);
+            m_keyState = keyState;
+            m_speed = speed;
+            m_durationMs = durationMs;
+        }
+    }
+
+    // A repeat block, a macro body or the whole file
+    private static class Block extends Node {
+        final String m_keyword;
+        final long m_count;
+        final List<Node> m_body = new ArrayList<Node>();
+
+        // Steps the block expands to, set by countSteps()
+        long m_steps;
+
+        Block(int line, int column, String keyword, long count) {
+            super(line, column);
+            m_keyword = keyword;
+            m_count = count;
+        }
+    }
+
+    // A word, number or symbol on a line, column is 1 based
+    private static class Token {
+        final String m_text;
+        final int m_column;
+
+        Token(String text, int column) {
+            m_text = text;
+            m_column = column;
+        }
+
+        boolean isNumber() {
+            char c = m_text.charAt(0);
+            return Character.isDigit(c) || ((c == '-' || c == '+') && m_text.length() > 1);
+        }
+
+        boolean isWord() {
+            return Character.isLetter(m_text.charAt(0)) || m_text.charAt(0) == '_';
+        }
+
+        boolean is(String text) {
+            return m_text.equalsIgnoreCase(text);
+        }
+    }
+
+    // Thrown to stop compiling at the first error
+    private static class CompileError extends Exception {
+        private static final long serialVersionUID = 1L;
+
+        CompileError(String message) {
+            super(message);
+        }
+    }
+
+    // Compile a sequence file
+    // Returns null on failure, getError() tells why
+    public SequenceTable compileFile(String fileName) {
+        m_fileName = fileName;
+        Reader reader;
+        try {
+            reader = new InputStreamReader(new FileInputStream(fileName));
+        } catch (IOException e) {
+            m_error = fileName + ": " + e.getMessage();
+            return null;
+        }
+        try {
+            return compile(reader);
+        } finally {
+            try {
+                reader.close();
+            } catch (IOException e) {
+                // Nothing more we can do
+            }
+        }
+    }
+
+    // Compile a sequence held in a String, name is used in error messages
+    public SequenceTable compileSource(String name, String source) {
+        m_fileName = name;
+        return compile(new StringReader(source));
+    }
+
+    // Why the last compile failed, null if it didn't
+    public String getError() {
+        return m_error;
+    }
+
+    // What the optimizer did in the last compile
+    public String getSummary() {
+        return m_stepsExpanded + " steps expanded, " + m_stepsDropped + " empty steps dropped, "
+                + m_stepsMerged + " merged, " + m_numSteps + " left";
+    }
+
+    private SequenceTable compile(Reader source) {
+        m_error = null;
+        m_variables.clear();
+        m_macros.clear();
+        m_stepsExpanded = 0;
+        m_stepsDropped = 0;
+        m_stepsMerged = 0;
+        m_numSteps = 0;
+        m_keyStates = new byte[256];
+        m_speeds = new byte[256];
+        m_durations = new long[256];
+
+        try {
+            Block program = parse(new BufferedReader(source));
+            long steps = countSteps(program);
+            if (steps > MAX_STEPS) {
+                throw new CompileError(m_fileName + ": sequence expands to " + steps
+                        + " steps, at most " + MAX_STEPS + " are allowed");
+            }
+            expand(program);
+        } catch (CompileError e) {
+            m_error = e.getMessage();
+            return null;
+        } catch (IOException e) {
+            m_error = m_fileName + ": " + e.getMessage();
+            return null;
+        }
+
+        SequenceTable table = new SequenceTable(m_numSteps);
+        for (int i = 0; i < m_numSteps; i++) {
+            table.addStep(m_controller, m_keyStates[i], m_speeds[i], m_durations[i]);
+        }
+        m_keyStates = null;
+        m_speeds = null;
+        m_durations = null;
+        return table;
+    }
+
+    // Read the file into a tree of blocks and steps, with variables already replaced
+    private Block parse(BufferedReader reader) throws IOException, CompileError {
+        Block program = new Block(1, 1, "file", 1);
+        List<Block> open = new ArrayList<Block>();
+        open.add(program);
+        Block defining = null;
+
+        String text;
+        int line = 0;
+        while ((text = reader.readLine()) != null) {
+            line++;
+            List<Token> tokens = tokenize(text, line);
+            if (tokens.isEmpty()) {
+                continue;
+            }
+            Token first = tokens.get(0);
+            Block current = open.get(open.size() - 1);
+
+            if (tokens.size() > 1 && tokens.get(1).is(",")) {
+                current.m_body.add(parseStep(tokens, line));
+            } else if (first.is("let")) {
+                expectCount(tokens, 4, line, "let <name> = <number>");
+                Token name = expectName(tokens.get(1), line);
+                expectSymbol(tokens.get(2), "=", line);
+                m_variables.put(name.m_text.toLowerCase(), value(tokens.get(3), line));
+            } else if (first.is("define")) {
+                expectCount(tokens, 2, line, "define <name>");
+                Token name = expectName(tokens.get(1), line);
+                if (open.size() > 1) {
+                    throw error(line, first, "define must not be inside another block");
+                }
+                if (m_macros.containsKey(name.m_text.toLowerCase())) {
+                    throw error(line, name, "Macro " + name.m_text + " is already defined");
+                }
+                defining = new Block(line, first.m_column, "define " + name.m_text, 1);
+                open.add(defining);
+            } else if (first.is("repeat")) {
+                expectCount(tokens, 2, line, "repeat <count>");
+                long count = value(tokens.get(1), line);
+                if (count < 0) {
+                    throw error(line, tokens.get(1), "Repeat count must not be negative");
+                }
+                Block block = new Block(line, first.m_column, "repeat", count);
+                current.m_body.add(block);
+                open.add(block);
+            } else if (first.is("call")) {
+                expectCount(tokens, 2, line, "call <name>");
+                Token name = expectName(tokens.get(1), line);
+                Block macro = m_macros.get(name.m_text.toLowerCase());
+                if (macro == null) {
+                    throw error(line, name, "Unknown macro " + name.m_text
+                            + " (macros must be defined before they are called)");
+                }
+                current.m_body.add(macro);
+            } else if (first.is("end")) {
+                expectCount(tokens, 1, line, "end");
+                if (open.size() == 1) {
+                    throw error(line, first, "end without repeat or define");
+                }
+                Block closed = open.remove(open.size() - 1);
+                if (closed == defining) {
+                    m_macros.put(closed.m_keyword.substring("define ".length()).toLowerCase(), closed);
+                    defining = null;
+                }
+            } else {
+                throw error(line, first, "Expected a step (direction, speed, duration) or let, define, call, repeat, end");
+            }
+        }
+
+        if (open.size() > 1) {
+            Block unclosed = open.get(open.size() - 1);
+            throw new CompileError(m_fileName + ":" + unclosed.m_line + ":" + unclosed.m_column
+                    + ": " + unclosed.m_keyword + " has no end");
+        }
+        return program;
+    }
+
+    // "direction, speed, duration", trailing empty fields are allowed like in the old format
+    private Step parseStep(List<Token> tokens, int line) throws CompileError {
+        int end = tokens.size();
+        while (end > 5 && tokens.get(end - 1).is(",")) {
+            end--;
+        }
+        if (end != 5 || !tokens.get(3).is(",")) {
+            throw error(line, tokens.get(0), "A step is direction, speed, duration");
+        }
+
+        Token direction = tokens.get(0);
+        byte keyState = parseDirection(direction, line);
+
+        long speed = value(tokens.get(2), line);
+        if (speed < 0 || speed > 255) {
+            throw error(line, tokens.get(2), "Speed " + speed + " is out of range 0 - 255");
+        }
+        long durationMs = value(tokens.get(4), line);
+        if (durationMs < 0 || durationMs > SequenceTable.MAX_DURATION_MS) {
+            throw error(line, tokens.get(4), "Duration " + durationMs + " is out of range 0 - "
+                    + SequenceTable.MAX_DURATION_MS);
+        }
+        return new Step(line, direction.m_column, keyState, (byte) speed, durationMs);
+    }
+
+    // Directions are checked strictly, unlike SequenceTable.parseDirection
+    private byte parseDirection(Token token, int line) throws CompileError {
+        String name = token.m_text.toUpperCase();
+        if (name.equals("SS")) {
+            return m_controller.STOP;
+        }
+        if (name.equals("FB") || name.equals("BF")) {
+            throw error(line, token, "Invalid direction " + token.m_text + ": forward and backward at once");
+        }
+        if (name.equals("LR") || name.equals("RL")) {
+            throw error(line, token, "Invalid direction " + token.m_text + ": left and right at once");
+        }
+        if (name.length() == 2) {
+            byte keyState = SequenceTable.parseDirection(m_controller, name.charAt(0), name.charAt(1));
+            if (keyState != m_controller.STOP) {
+                return keyState;
+            }
+        }
+        throw error(line, token, "Unknown direction " + token.m_text
+                + " (use FF, FR, FL, BB, BL, BR, LL, RR or SS)");
+    }
+
+    // A number or the value of a variable
+    private long value(Token token, int line) throws CompileError {
+        if (token.isNumber()) {
+            try {
+                return Long.parseLong(token.m_text.startsWith("+") ? token.m_text.substring(1) : token.m_text);
+            } catch (NumberFormatException e) {
+                throw error(line, token, "Bad number " + token.m_text);
+            }
+        }
+        if (token.isWord()) {
+            Long value = m_variables.get(token.m_text.toLowerCase());
+            if (value == null) {
+                throw error(line, token, "Unknown variable " + token.m_text);
+            }
+            return value;
+        }
+        throw error(line, token, "Expected a number or variable, found " + token.m_text);
+    }
+
+    private Token expectName(Token token, int line) throws CompileError {
+        if (!token.isWord()) {
+            throw error(line, token, "Expected a name, found " + token.m_text);
+        }
+        if (token.is("let") || token.is("define") || token.is("call") || token.is("repeat") || token.is("end")) {
+            throw error(line, token, token.m_text + " can't be used as a name");
+        }
+        return token;
+    }
+
+    private void expectSymbol(Token token, String symbol, int line) throws CompileError {
+        if (!token.is(symbol)) {
+            throw error(line, token, "Expected " + symbol + ", found " + token.m_text);
+        }
+    }
+
+    private void expectCount(List<Token> tokens, int count, int line, String usage) throws CompileError {
+        if (tokens.size() < count) {
+            Token last = tokens.get(tokens.size() - 1);
+            throw new CompileError(m_fileName + ":" + line + ":" + (last.m_column + last.m_text.length())
+                    + ": Incomplete line, expected " + usage);
+        }
+        if (tokens.size() > count) {
+            throw error(line, tokens.get(count), "Unexpected " + tokens.get(count).m_text + ", expected " + usage);
+        }
+    }
+
+    private CompileError error(int line, Token token, String message) {
+        return new CompileError(m_fileName + ":" + line + ":" + token.m_column + ": " + message);
+    }
+
+    // Split a line into words, numbers and the symbols ',' and '=', dropping the comment
+    private List<Token> tokenize(String text, int line) throws CompileError {
+        List<Token> tokens = new ArrayList<Token>();
+        int i = 0;
+        int length = text.length();
+        while (i < length) {
+            char c = text.charAt(i);
+            if (c == '#') {
+                break;
+            }
+            if (Character.isWhitespace(c)) {
+                i++;
+                continue;
+            }
+            int start = i;
+            if (c == ',' || c == '=') {
+                i++;
+            } else if (Character.isLetterOrDigit(c) || c == '_' || c == '-' || c == '+') {
+                i++;
+                while (i < length && (Character.isLetterOrDigit(text.charAt(i)) || text.charAt(i) == '_')) {
+                    i++;
+                }
+            } else {
+                throw new CompileError(m_fileName + ":" + line + ":" + (i + 1) + ": Unexpected character '" + c + "'");
+            }
+            tokens.add(new Token(text.substring(start, i), start + 1));
+        }
+        return tokens;
+    }
+
+    // Steps a node expands to before optimizing, saturating instead of overflowing
+    // Blocks remember their count so expand() can skip those that produce nothing
+    private static long countSteps(Node node) {
+        if (node instanceof Step) {
+            return 1;
+        }
+        Block block = (Block) node;
+        long steps = 0;
+        for (Node child : block.m_body) {
+            steps = Math.min(steps + countSteps(child), Long.MAX_VALUE / 2);
+        }
+        if (steps > 0 && block.m_count > (Long.MAX_VALUE / 2) / steps) {
+            block.m_steps = Long.MAX_VALUE / 2;
+        } else {
+            block.m_steps = steps * block.m_count;
+        }
+        return block.m_steps;
+    }
+
+    // Play the tree into the optimized step list
+    // Every pass through a block that isn't skipped emits a step, so the work done is
+    // bounded by MAX_STEPS times the size of a block, however large the repeat counts are
+    private void expand(Block block) {
+        if (block.m_steps == 0) {
+            return; // e.g. a huge repeat of an empty macro
+        }
+        for (long i = 0; i < block.m_count; i++) {
+            for (Node child : block.m_body) {
+                if (child instanceof Step) {
+                    Step step = (Step) child;
+                    emit(step.m_keyState, step.m_speed, step.m_durationMs);
+                } else {
+                    expand((Block) child);
+                }
+            }
+        }
+    }
+
+    // Append a step, dropping it if it is empty or merging it into the last one
+    private void emit(byte keyState, byte speed, long durationMs) {
+        m_stepsExpanded++;
+        if (durationMs == 0) {
+            m_stepsDropped++;
+            return;
+        }
+        int last = m_numSteps - 1;
+        if (last >= 0 && m_keyStates[last] == keyState && m_speeds[last] == speed
+                && m_durations[last] + durationMs <= SequenceTable.MAX_DURATION_MS) {
+            m_durations[last] += durationMs;
+            m_stepsMerged++;
+            return;
+        }
+
+        if (m_numSteps == m_keyStates.length) {
+            int capacity = m_numSteps * 2;
+            m_keyStates = Arrays.copyOf(m_keyStates, capacity);
+            m_speeds = Arrays.copyOf(m_speeds, capacity);
+            m_durations = Arrays.copyOf(m_durations, capacity);
+        }
+        m_keyStates[m_numSteps] = keyState;
+        m_speeds[m_numSteps] = speed;
+        m_durations[m_numSteps] = durationMs;
+        m_numSteps++;
+    }
+}
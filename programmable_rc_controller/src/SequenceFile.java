@@ -0,0 +1,301 @@
+////////////////////////////////////////////////////////////////////////////////////////////////
+//    Copyright (C) 2012 Jon Bennett
+//
+//    This file is part of Programmable RC Car Controller.
+//
+//    http://www.jbprojects.net/articles/programmable-rc/
+//
+//    Programmable RC Car Controller is free software: you can redistribute it and/or modify
+//    it under the terms of the GNU General Public License as published by
+//    the Free Software Foundation, either version 3 of the License, or
+//    (at your option) any later version.
+//
+//    Programmable RC Car Controller is distributed in the hope that it will be useful,
+//    but WITHOUT ANY WARRANTY; without even the implied warranty of
+//    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+//    GNU General Public License for more details.
+//
+//    You should have received a copy of the GNU General Public License
+//    along with Programmable RC Car Controller.  If not, see <http://www.gnu.org/licenses/>.
+////////////////////////////////////////////////////////////////////////////////////////////////
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.LongBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+
+// This class reads and writes binary sequence files (.rcs).
+// A binary file opens instantly however long the route is: it is memory-mapped and
+// its records are played as they are, without any parsing.
+//
+// Layout (big endian):
+//   0  magic "RCSQ"
+//   4  version (16 bits)
+//   6  record size (16 bits), SequenceTable.RECORD_SIZE
+//   8  step count (32 bits)
+//  12  steps per time index entry (32 bits), SequenceTable.INDEX_INTERVAL
+//  16  total duration in milliseconds (64 bits)
+//  24  offset of the time index (64 bits)
+//  32  records: DRIVE frame (ID, keyState, speed, checksum), duration in ms (unsigned 32 bits)
+//      time index: start time in ms (64 bits) of every INDEX_INTERVAL'th step
+//
+// Usage: java SequenceFile <input> <output>
+// converts sequence.txt to .rcs or back, depending on the input's extension.
+public class SequenceFile {
+    public static final String EXTENSION = ".rcs";
+
+    private static final int MAGIC = ('R' << 24) | ('C' << 16) | ('S' << 8) | 'Q';
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 32;
+
+    // Keeps the whole file under 2 GB so it can be mapped at once
+    private static final int MAX_STEPS = (Integer.MAX_VALUE - HEADER_SIZE) / (SequenceTable.RECORD_SIZE + 1);
+
+    // True if the file name has the binary extension
+    public static boolean isBinary(String fileName) {
+        return fileName.toLowerCase().endsWith(EXTENSION);
+    }
+
+    // Memory-map a binary sequence file
+    // Returns null if the file can't be read or isn't a sequence file
+    public static SequenceTable load(String fileName) {
+        FileChannel channel = null;
+        try {
+            channel = FileChannel.open(Paths.get(fileName), StandardOpenOption.READ);
+            if (channel.size() < HEADER_SIZE) {
+                System.err.println("Error: " + fileName + " is too short");
+                return null;
+            }
+            // The mapping stays valid after the channel is closed
+            MappedByteBuffer map = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+
+            if (map.getInt(0) != MAGIC || map.getShort(4) != VERSION
+                    || map.getShort(6) != SequenceTable.RECORD_SIZE
+                    || map.getInt(12) != SequenceTable.INDEX_INTERVAL) {
+                System.err.println("Error: " + fileName + " is not a version " + VERSION + " sequence file");
+                return null;
+            }
+            int numSteps = map.getInt(8);
+            long totalDurationMs = map.getLong(16);
+            long indexOffset = map.getLong(24);
+            long recordsEnd = HEADER_SIZE + (long) numSteps * SequenceTable.RECORD_SIZE;
+            // Check the offset on its own first, a corrupt one could overflow indexEnd
+            if (numSteps < 0 || numSteps > MAX_STEPS || indexOffset < recordsEnd || indexOffset > map.capacity()) {
+                System.err.println("Error: " + fileName + " is truncated");
+                return null;
+            }
+            long indexEnd = indexOffset + SequenceTable.indexSize(numSteps) * 8L;
+            if (indexEnd > map.capacity()) {
+                System.err.println("Error: " + fileName + " is truncated");
+                return null;
+            }
+
+            map.position(HEADER_SIZE).limit((int) recordsEnd);
+            ByteBuffer records = map.slice();
+            map.limit((int) indexEnd).position((int) indexOffset);
+            LongBuffer timeIndex = map.slice().asLongBuffer();
+            return new SequenceTable(records, timeIndex, numSteps, totalDurationMs);
+        } catch (IOException e) {
+            System.err.println("Error: " + e.getMessage());
+            return null;
+        } finally {
+            closeQuietly(channel);
+        }
+    }
+
+    // Write a compiled sequence as a binary file
+    // Returns an error message on failure, null on success
+    public static String save(SequenceTable table, String fileName) {
+        FileChannel channel = null;
+        try {
+            channel = openForWriting(fileName);
+            ByteBuffer records = table.getRecords().duplicate();
+            records.position(0).limit(table.getStepCount() * SequenceTable.RECORD_SIZE);
+            writeFully(channel, records, HEADER_SIZE);
+
+            LongBuffer timeIndex = table.getTimeIndex();
+            ByteBuffer index = ByteBuffer.allocate(SequenceTable.indexSize(table.getStepCount()) * 8);
+            for (int i = 0; i < index.capacity() / 8; i++) {
+                index.putLong(timeIndex.get(i));
+            }
+            index.flip();
+            long indexOffset = HEADER_SIZE + (long) table.getStepCount() * SequenceTable.RECORD_SIZE;
+            writeFully(channel, index, indexOffset);
+
+            writeHeader(channel, table.getStepCount(), table.getTotalDurationMs(), indexOffset);
+        } catch (IOException e) {
+            return e.toString();
+        } finally {
+            closeQuietly(channel);
+        }
+        return null;
+    }
+
+    // Convert a text sequence to a binary file
+    // Files up to RCController.STREAM_THRESHOLD_BYTES are compiled, so they may use repeat
+    // blocks and macros.  Larger ones are streamed, so routes of any length are converted
+    // in bounded memory.
+    // Returns an error message on failure, null on success
+    public static String textToBinary(RCController controller, String textFile, String binaryFile) {
+        if (new File(textFile).length() <= RCController.STREAM_THRESHOLD_BYTES) {
+            SequenceCompiler compiler = new SequenceCompiler(controller);
+            SequenceTable table = compiler.compileFile(textFile);
+            if (table == null) {
+                return compiler.getError();
+            }
+            return save(table, binaryFile);
+        }
+
+        SequenceStream stream = new SequenceStream(controller, textFile);
+        String error = stream.start();
+        if (error != null) {
+            return error;
+        }
+
+        FileChannel channel = null;
+        try {
+            channel = openForWriting(binaryFile);
+
+            // Records are written as the chunks arrive, the index is kept aside and written after them
+            ByteBuffer index = ByteBuffer.allocate(1024 * 8);
+            long numSteps = 0;
+            long totalDurationMs = 0;
+            long position = HEADER_SIZE;
+
+            SequenceTable chunk;
+            while ((chunk = stream.take()) != null) {
+                for (int i = 0; i < chunk.getStepCount(); i++) {
+                    if ((numSteps + i) % SequenceTable.INDEX_INTERVAL == 0) {
+                        if (!index.hasRemaining()) {
+                            ByteBuffer larger = ByteBuffer.allocate(index.capacity() * 2);
+                            index.flip();
+                            larger.put(index);
+                            index = larger;
+                        }
+                        index.putLong(totalDurationMs);
+                    }
+                    totalDurationMs += chunk.getDurationMs(i);
+                }
+                ByteBuffer records = chunk.getRecords().duplicate();
+                records.position(0).limit(chunk.getStepCount() * SequenceTable.RECORD_SIZE);
+                position += writeFully(channel, records, position);
+                numSteps += chunk.getStepCount();
+                stream.recycle(chunk);
+                if (numSteps > MAX_STEPS) {
+                    return "Too many steps for a sequence file";
+                }
+            }
+            if (stream.getError() != null) {
+                return stream.getError();
+            }
+
+            index.flip();
+            writeFully(channel, index, position);
+            writeHeader(channel, (int) numSteps, totalDurationMs, position);
+        } catch (IOException e) {
+            return e.toString();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return e.toString();
+        } finally {
+            stream.close();
+            closeQuietly(channel);
+        }
+        return null;
+    }
+
+    // Convert a binary file back to the text format
+    // Returns an error message on failure, null on success
+    public static String binaryToText(RCController controller, String binaryFile, String textFile) {
+        SequenceTable table = load(binaryFile);
+        if (table == null) {
+            return "Could not read " + binaryFile;
+        }
+        try {
+            Writer out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(textFile)), 1 << 16);
+            try {
+                out.write("# Converted from " + binaryFile + "\n");
+                out.write("# Direction, speed, duration (ms)\n");
+                for (int i = 0; i < table.getStepCount(); i++) {
+                    out.write(SequenceTable.directionName(controller, table.getKeyState(i)));
+                    out.write(", ");
+                    out.write(Integer.toString(table.getSpeed(i) & 0xFF));
+                    out.write(", ");
+                    out.write(Long.toString(table.getDurationMs(i)));
+                    out.write("\n");
+                }
+            } finally {
+                out.close();
+            }
+        } catch (IOException e) {
+            return e.toString();
+        }
+        return null;
+    }
+
+    private static void writeHeader(FileChannel channel, int numSteps, long totalDurationMs, long indexOffset)
+            throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        header.putInt(MAGIC);
+        header.putShort((short) VERSION);
+        header.putShort((short) SequenceTable.RECORD_SIZE);
+        header.putInt(numSteps);
+        header.putInt(SequenceTable.INDEX_INTERVAL);
+        header.putLong(totalDurationMs);
+        header.putLong(indexOffset);
+        header.flip();
+        writeFully(channel, header, 0);
+    }
+
+    private static FileChannel openForWriting(String fileName) throws IOException {
+        return FileChannel.open(Paths.get(fileName), StandardOpenOption.WRITE,
+                StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING);
+    }
+
+    // Write all of buffer at position, returns the number of bytes written
+    private static int writeFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        int length = buffer.remaining();
+        while (buffer.hasRemaining()) {
+            position += channel.write(buffer, position);
+        }
+        return length;
+    }
+
+    private static void closeQuietly(FileChannel channel) {
+        if (channel != null) {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                // Nothing more we can do
+            }
+        }
+    }
+
+    public static void main(String[] args) {
+        if (args.length != 2) {
+            System.err.println("Usage: java SequenceFile <input> <output>");
+            System.err.println("Converts a text sequence to " + EXTENSION + " or back, depending on the input's extension.");
+            System.exit(1);
+        }
+        RCController controller = new RCController();
+        long start = System.nanoTime();
+        String error = isBinary(args[0])
+                ? binaryToText(controller, args[0], args[1])
+                : textToBinary(controller, args[0], args[1]);
+        if (error != null) {
+            System.err.println("Error: " + error);
+            System.exit(1);
+        }
+        System.out.println("Converted " + args[0] + " to " + args[1] + " in "
+                + (System.nanoTime() - start) / 1000000 + " ms");
+        System.exit(0);
+    }
+}
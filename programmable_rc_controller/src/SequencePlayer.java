@@ -0,0 +1,448 @@
+////////////////////////////////////////////////////////////////////////////////////////////////
+//    Copyright (C) 2012 Jon Bennett
+//
+//    This file is part of Programmable RC Car Controller.
+//
+//    http://www.jbprojects.net/articles/programmable-rc/
+//
+//    Programmable RC Car Controller is free software: you can redistribute it and/or modify
+//    it under the terms of the GNU General Public License as published by
+//    the Free Software Foundation, either version 3 of the License, or
+//    (at your option) any later version.
+//
+//    Programmable RC Car Controller is distributed in the hope that it will be useful,
+//    but WITHOUT ANY WARRANTY; without even the implied warranty of
+//    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+//    GNU General Public License for more details.
+//
+//    You should have received a copy of the GNU General Public License
+//    along with Programmable RC Car Controller.  If not, see <http://www.gnu.org/licenses/>.
+////////////////////////////////////////////////////////////////////////////////////////////////
+
+import java.util.concurrent.locks.LockSupport;
+
+// The playback engine.  RCController owns one player and one player thread that is
+// reused for every sequence, so at most one sequence is ever active and its frames
+// never interleave with another's.
+//
+// Commands (play, cancel, pause, resume, seek, time scale) only change the state under
+// the lock and wake the player thread, which reacts within microseconds: it waits for
+// deadlines by parking, never by sleeping, and rechecks after every wake up.
+// Only the player thread sends sequence frames and the STOPs that end, cancel or pause
+// a sequence, so a STOP can never overtake the step before it.
+//
+// Deadlines are in sequence time (the sum of the earlier step durations) and are mapped
+// to System.nanoTime through an anchor that is moved on pause, resume, seek and time
+// scale changes, so none of them makes the following steps drift.
+public class SequencePlayer implements Runnable {
+    public enum State { IDLE, PLAYING, PAUSED }
+
+    // Range of time scales, 2.0 plays a sequence twice as fast
+    public static final double MIN_TIME_SCALE = 0.01;
+    public static final double MAX_TIME_SCALE = 100.0;
+
+    // What the player thread does next, decided under the lock and done outside it
+    private static final int ACTION_STEP = 0;
+    private static final int ACTION_STOP = 1;
+    private static final int ACTION_RESEND = 2;
+    private static final int ACTION_FETCH = 3;
+
+    private final RCController m_controller;
+    private final Thread m_thread;
+
+    // Changed by every command, so a waiting player thread knows to recompute its deadline
+    private volatile int m_generation;
+
+    // Everything below is guarded by the lock on this object
+    private State m_state = State.IDLE;
+    private RCControllerGUI m_gui;
+
+    // The sequence: a compiled table (seekable) or a stream of chunks
+    private SequenceTable m_table;
+    private SequenceStream m_stream;
+
+    // Steps being played, m_table itself or the current stream chunk
+    private SequenceTable m_chunk;
+    private int m_chunkStep;
+
+    // Next step of the whole sequence and when it is due in sequence time
+    private int m_step;
+    private long m_nextStartMs;
+
+    // All steps are sent, the sequence ends at m_nextStartMs
+    private boolean m_ended;
+
+    // System.nanoTime m_anchorNs is sequence time m_anchorMs
+    private long m_anchorNs;
+    private long m_anchorMs;
+    private double m_timeScale = 1.0;
+
+    // Last state sent, sent again on resume
+    private byte m_lastKeyState;
+    private byte m_lastSpeed;
+
+    // Work for the player thread that doesn't depend on a deadline
+    private boolean m_sendStop;
+    private boolean m_resend;
+    private DeadlineScheduler m_report;
+    private String m_error;
+
+    // Lateness of the current run
+    private DeadlineScheduler m_lateness;
+
+    public SequencePlayer(RCController controller) {
+        m_controller = controller;
+        m_thread = new Thread(this, "SequencePlayer");
+        m_thread.setDaemon(true);
+        m_thread.start();
+    }
+
+    // Start playing a compiled sequence
+    // Returns an error message if a sequence is already active, null on success
+    public String play(SequenceTable table, RCControllerGUI gui) {
+        return play(table, null, gui);
+    }
+
+    // Start playing a sequence while it is being parsed
+    // Returns an error message if a sequence is already active, null on success
+    public String play(SequenceStream stream, RCControllerGUI gui) {
+        return play(null, stream, gui);
+    }
+
+    private synchronized String play(SequenceTable table, SequenceStream stream, RCControllerGUI gui) {
+        if (m_state != State.IDLE) {
+            return "A sequence is already playing. Stop it first.";
+        }
+        m_table = table;
+        m_stream = stream;
+        m_chunk = table;
+        m_chunkStep = 0;
+        m_step = 0;
+        m_nextStartMs = 0;
+        m_ended = false;
+        m_error = null;
+        m_gui = gui;
+
+        m_anchorNs = System.nanoTime();
+        m_anchorMs = 0;
+        m_lateness = new DeadlineScheduler(table != null ? table.getStepCount() + 1 : 1024);
+        m_lateness.start(m_anchorNs);
+        m_state = State.PLAYING;
+        wakeUp();
+        return null;
+    }
+
+    // Stop the active sequence and send STOP
+    // Returns false if nothing was playing
+    public synchronized boolean cancel() {
+        if (m_state == State.IDLE) {
+            return false;
+        }
+        end();
+        return true;
+    }
+
+    // Hold the sequence where it is and stop the car
+    // Returns false if nothing was playing
+    public synchronized boolean pause() {
+        if (m_state != State.PLAYING) {
+            return false;
+        }
+        m_anchorMs = getPositionMs();
+        m_state = State.PAUSED;
+        m_sendStop = true;
+        wakeUp();
+        return true;
+    }
+
+    // Continue a paused sequence from where it was paused
+    // Returns false if nothing was paused
+    public synchronized boolean resume() {
+        if (m_state != State.PAUSED) {
+            return false;
+        }
+        m_anchorNs = System.nanoTime();
+        m_state = State.PLAYING;
+        // The car was stopped in the middle of a step, drive on as that step did
+        // At the start of a step (e.g. after a seek) the step itself is sent right away
+        m_resend = m_step > 0 && m_anchorMs < m_nextStartMs;
+        wakeUp();
+        return true;
+    }
+
+    // Jump to the start of a step, playing or paused
+    // Returns an error message if the sequence can't seek (streams only play forward), null on success
+    public synchronized String seek(int step) {
+        if (m_state == State.IDLE) {
+            return "No sequence is playing.";
+        }
+        if (m_table == null) {
+            return "A streamed sequence can't seek.";
+        }
+        step = Math.max(0, Math.min(step, m_table.getStepCount()));
+        m_step = step;
+        m_chunkStep = step;
+        m_nextStartMs = m_table.getStartTimeMs(step);
+        m_anchorMs = m_nextStartMs;
+        m_anchorNs = System.nanoTime();
+        m_ended = false;
+        // The state the car is driven to from here on
+        if (step < m_table.getStepCount()) {
+            m_lastKeyState = m_table.getKeyState(step);
+            m_lastSpeed = m_table.getSpeed(step);
+        } else {
+            m_lastKeyState = m_controller.STOP;
+            m_lastSpeed = 0;
+        }
+        wakeUp();
+        return null;
+    }
+
+    // Play faster (> 1) or slower (< 1), from now on
+    public synchronized void setTimeScale(double timeScale) {
+        timeScale = Math.max(MIN_TIME_SCALE, Math.min(timeScale, MAX_TIME_SCALE));
+        if (m_state != State.IDLE) {
+            m_anchorMs = getPositionMs();
+            m_anchorNs = System.nanoTime();
+        }
+        m_timeScale = timeScale;
+        wakeUp();
+    }
+
+    public synchronized double getTimeScale() {
+        return m_timeScale;
+    }
+
+    public synchronized State getState() {
+        return m_state;
+    }
+
+    // Index of the next step to be sent
+    public synchronized int getStep() {
+        return m_step;
+    }
+
+    // How far into the sequence playback is, in sequence time
+    // Never past the next step, which hasn't been sent yet
+    public synchronized long getPositionMs() {
+        if (m_state != State.PLAYING) {
+            return m_anchorMs;
+        }
+        long positionMs = m_anchorMs + (long) ((System.nanoTime() - m_anchorNs) * m_timeScale / 1e6);
+        return Math.min(positionMs, m_nextStartMs);
+    }
+
+    // Wait until no sequence is active and its final STOP has been sent
+    // Returns false if interrupted
+    public synchronized boolean awaitIdle() {
+        while (m_state != State.IDLE || m_sendStop) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // Finish or cancel the active sequence, the player thread sends the STOP
+    private void end() {
+        if (m_stream != null) {
+            m_stream.close();
+        }
+        m_table = null;
+        m_stream = null;
+        m_chunk = null;
+        m_state = State.IDLE;
+        m_resend = false;
+        m_sendStop = true;
+        m_report = m_lateness;
+        wakeUp();
+    }
+
+    // Make a waiting player thread look at the state again
+    private void wakeUp() {
+        m_generation++;
+        notifyAll();
+        LockSupport.unpark(m_thread);
+    }
+
+    // When a point in sequence time is due, as a System.nanoTime value
+    private long deadlineOf(long sequenceMs) {
+        return m_anchorNs + (long) ((sequenceMs - m_anchorMs) * 1e6 / m_timeScale);
+    }
+
+    // Player thread body
+    public void run() {
+        while (true) {
+            int action;
+            int generation;
+            long deadlineNs = 0;
+            RCControllerGUI gui;
+            byte keyState = 0;
+            byte speed = 0;
+            DeadlineScheduler report = null;
+            String error = null;
+            SequenceStream stream = null;
+            SequenceTable played = null;
+
+            synchronized (this) {
+                while (m_state != State.PLAYING && !m_sendStop && !m_resend) {
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        // Only commands wake this thread
+                    }
+                }
+                generation = m_generation;
+                gui = m_gui;
+
+                if (m_sendStop) {
+                    action = ACTION_STOP;
+                    report = m_report;
+                    m_report = null;
+                    error = m_error;
+                    m_error = null;
+                } else if (m_resend) {
+                    action = ACTION_RESEND;
+                    m_resend = false;
+                    keyState = m_lastKeyState;
+                    speed = m_lastSpeed;
+                } else if (!m_ended && (m_chunk == null || m_chunkStep == m_chunk.getStepCount())) {
+                    if (m_stream == null) {
+                        m_ended = true; // The compiled table has been sent, wait for its last step to end
+                        continue;
+                    }
+                    action = ACTION_FETCH;
+                    stream = m_stream;
+                    played = m_chunk;
+                    m_chunk = null;
+                } else {
+                    action = ACTION_STEP;
+                    deadlineNs = deadlineOf(m_nextStartMs);
+                }
+            }
+
+            switch (action) {
+            case ACTION_STOP:
+                m_controller.sendDirectionCommand(m_controller.STOP);
+                if (gui != null) {
+                    gui.remoteUpdateGUI(m_controller.STOP);
+                }
+                synchronized (this) {
+                    m_sendStop = false;
+                    notifyAll();
+                }
+                if (report != null) {
+                    System.out.println(report.getLatenessSummary());
+                    System.out.println(m_controller.getLinkStats());
+                }
+                if (error != null) {
+                    if (gui != null) {
+                        gui.showWarning("Parsing Error: sequence.txt\n" + error);
+                    } else {
+                        System.err.println("Error: " + error);
+                    }
+                }
+                break;
+
+            case ACTION_RESEND:
+                m_controller.sendDirectionCommand(keyState, speed);
+                if (gui != null) {
+                    gui.remoteUpdateGUI(keyState);
+                }
+                break;
+
+            case ACTION_FETCH:
+                fetchChunk(stream, played);
+                break;
+
+            case ACTION_STEP:
+                playStep(deadlineNs, generation, gui);
+                break;
+            }
+        }
+    }
+
+    // Wait for the next chunk of a streamed sequence
+    // Closing the stream (cancel) ends the wait
+    private void fetchChunk(SequenceStream stream, SequenceTable played) {
+        if (played != null) {
+            stream.recycle(played);
+        }
+        SequenceTable next;
+        try {
+            next = stream.take();
+        } catch (InterruptedException e) {
+            next = null;
+        }
+        synchronized (this) {
+            if (m_stream != stream) {
+                return; // Cancelled while waiting
+            }
+            m_chunk = next;
+            m_chunkStep = 0;
+            if (next == null) {
+                m_ended = true;
+                // The sequence ends early at a line that couldn't be parsed, shown after the STOP
+                m_error = stream.getError();
+            }
+        }
+    }
+
+    // Wait for the next deadline and send the step that is due, or finish the sequence
+    private void playStep(long deadlineNs, int generation, RCControllerGUI gui) {
+        if (!waitUntil(deadlineNs, generation)) {
+            return; // A command changed the plan
+        }
+
+        SequenceTable chunk;
+        int index;
+        synchronized (this) {
+            if (generation != m_generation) {
+                return;
+            }
+            long latenessNs = System.nanoTime() - deadlineNs;
+            m_lateness.record(latenessNs);
+            m_controller.getMetrics().recordStepLateness(latenessNs);
+            if (m_ended) {
+                end();
+                return;
+            }
+            chunk = m_chunk;
+            index = m_chunkStep;
+            m_lastKeyState = chunk.getKeyState(index);
+            m_lastSpeed = chunk.getSpeed(index);
+            m_nextStartMs += chunk.getDurationMs(index);
+            m_chunkStep++;
+            m_step++;
+        }
+
+        // Send the pre-encoded command to serial port
+        m_controller.sendSequenceStep(chunk, index);
+
+        // Update the GUI (there is none when run headless)
+        if (gui != null) {
+            gui.remoteUpdateGUI(chunk.getKeyState(index));
+        }
+    }
+
+    // Park until deadlineNs, spinning for the last moments like DeadlineScheduler
+    // Returns false as soon as a command arrives
+    private boolean waitUntil(long deadlineNs, int generation) {
+        long remaining;
+        while ((remaining = deadlineNs - System.nanoTime()) > DeadlineScheduler.SPIN_THRESHOLD_NS) {
+            LockSupport.parkNanos(this, remaining - DeadlineScheduler.SPIN_THRESHOLD_NS);
+            if (m_generation != generation) {
+                return false;
+            }
+        }
+        while (deadlineNs - System.nanoTime() > 0) {
+            if (m_generation != generation) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,230 @@
+////////////////////////////////////////////////////////////////////////////////////////////////
+//    Copyright (C) 2012 Jon Bennett
+//
+//    This file is part of Programmable RC Car Controller.
+//
+//    http://www.jbprojects.net/articles/programmable-rc/
+//
+//    Programmable RC Car Controller is free software: you can redistribute it and/or modify
+//    it under the terms of the GNU General Public License as published by
+//    the Free Software Foundation, either version 3 of the License, or
+//    (at your option) any later version.
+//
+//    Programmable RC Car Controller is distributed in the hope that it will be useful,
+//    but WITHOUT ANY WARRANTY; without even the implied warranty of
+//    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+//    GNU General Public License for more details.
+//
+//    You should have received a copy of the GNU General Public License
+//    along with Programmable RC Car Controller.  If not, see <http://www.gnu.org/licenses/>.
+////////////////////////////////////////////////////////////////////////////////////////////////
+
+import java.io.BufferedWriter;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.Date;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+// Records manual driving as a sequence that can be played back like sequence.txt.
+// record() is called on the key path, so it only stores a timestamp and the new state
+// in a preallocated ring; a background thread turns the states into timed steps and
+// writes them to the file.  Nothing is allocated per event.
+public class SequenceRecorder {
+    // Events the ring holds before the writer has to catch up (power of two)
+    // At 100 ms per drain this is far more than anybody can type
+    private static final int CAPACITY = 1 << 16;
+    private static final int MASK = CAPACITY - 1;
+
+    // How often the writer drains the ring
+    private static final long DRAIN_INTERVAL_NS = 100000000L; // 100 ms
+
+    private final RCController m_controller;
+
+    // The ring, written only by record() and read only by the writer thread
+    private final long[] m_timesNs = new long[CAPACITY];
+    private final byte[] m_keyStates = new byte[CAPACITY];
+    private final byte[] m_speeds = new byte[CAPACITY];
+    private final AtomicLong m_head = new AtomicLong(); // Next event to write to the file
+    private final AtomicLong m_tail = new AtomicLong(); // Next free slot
+
+    private volatile boolean m_recording = false;
+    private volatile long m_stopNs;
+    private volatile long m_dropped;
+
+    // Last recorded state, only touched by record()
+    private byte m_lastKeyState;
+    private byte m_lastSpeed;
+
+    private Thread m_writerThread;
+    private String m_fileName;
+    private volatile String m_error;
+    private volatile long m_stepsWritten;
+
+    public SequenceRecorder(RCController controller) {
+        m_controller = controller;
+    }
+
+    // Start recording to fileName, beginning in the given state
+    // Returns an error message on failure, null on success
+    public synchronized String start(String fileName, byte keyState, byte speed) {
+        if (m_recording) {
+            return "Already recording to " + m_fileName;
+        }
+
+        final Writer out;
+        try {
+            out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(fileName)));
+        } catch (IOException e) {
+            return e.toString();
+        }
+
+        m_fileName = fileName;
+        m_head.set(0);
+        m_tail.set(0);
+        m_dropped = 0;
+        m_stepsWritten = 0;
+        m_error = null;
+
+        m_lastKeyState = keyState;
+        m_lastSpeed = speed;
+        put(System.nanoTime(), keyState, speed);
+        m_recording = true;
+
+        m_writerThread = new Thread(new Runnable() {
+            public void run() {
+                writeUntilStopped(out);
+            }
+        }, "SequenceRecorder");
+        m_writerThread.setDaemon(true);
+        m_writerThread.start();
+        return null;
+    }
+
+    // Stop recording and wait until everything is in the file
+    // Returns a summary of the recording, or the error that stopped it
+    public String stop() {
+        Thread writer;
+        synchronized (this) {
+            if (!m_recording) {
+                return "Not recording";
+            }
+            m_stopNs = System.nanoTime();
+            m_recording = false;
+            writer = m_writerThread;
+            m_writerThread = null;
+        }
+        LockSupport.unpark(writer);
+        try {
+            writer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        if (m_error != null) {
+            return "Recording to " + m_fileName + " failed: " + m_error;
+        }
+        return "Recorded " + m_stepsWritten + " steps to " + m_fileName
+                + (m_dropped > 0 ? " (" + m_dropped + " changes dropped)" : "");
+    }
+
+    public boolean isRecording() {
+        return m_recording;
+    }
+
+    // Record a change of direction or speed
+    // Must be called by one thread at a time (RCController calls it with its lock held)
+    public void record(byte keyState, byte speed) {
+        if (!m_recording || (keyState == m_lastKeyState && speed == m_lastSpeed)) {
+            return;
+        }
+        if (put(System.nanoTime(), keyState, speed)) {
+            m_lastKeyState = keyState;
+            m_lastSpeed = speed;
+        }
+    }
+
+    // Add an event to the ring, returns false if it is full
+    private boolean put(long timeNs, byte keyState, byte speed) {
+        long tail = m_tail.get();
+        if (tail - m_head.get() == CAPACITY) {
+            m_dropped++;
+            return false;
+        }
+        int slot = (int) (tail & MASK);
+        m_timesNs[slot] = timeNs;
+        m_keyStates[slot] = keyState;
+        m_speeds[slot] = speed;
+        m_tail.lazySet(tail + 1); // Publish
+        return true;
+    }
+
+    // Writer thread body
+    // A step's duration is only known when the next change arrives, so one event is held back
+    private void writeUntilStopped(Writer out) {
+        long startNs = m_timesNs[0];
+        long pendingMs = -1; // Start of the held back step, ms since startNs
+        byte pendingKeyState = 0;
+        byte pendingSpeed = 0;
+
+        try {
+            out.write("# Recorded " + new Date() + "\n");
+            out.write("# Direction, speed, duration (ms)\n");
+
+            boolean stopped = false;
+            while (!stopped) {
+                stopped = !m_recording;
+
+                long head = m_head.get();
+                long tail = m_tail.get();
+                for (; head < tail; head++) {
+                    int slot = (int) (head & MASK);
+                    // Rounding the absolute times keeps the durations from drifting
+                    long timeMs = (m_timesNs[slot] - startNs + 500000L) / 1000000L;
+                    if (pendingMs >= 0 && timeMs > pendingMs) {
+                        writeStep(out, pendingKeyState, pendingSpeed, timeMs - pendingMs);
+                    }
+                    // A change less than a millisecond after the previous one replaces it
+                    if (pendingMs < 0 || timeMs > pendingMs) {
+                        pendingMs = timeMs;
+                    }
+                    pendingKeyState = m_keyStates[slot];
+                    pendingSpeed = m_speeds[slot];
+                }
+                m_head.lazySet(head); // Free the slots
+
+                if (!stopped) {
+                    LockSupport.parkNanos(DRAIN_INTERVAL_NS);
+                }
+            }
+
+            // The last state lasts until recording stopped
+            long stopMs = (m_stopNs - startNs + 500000L) / 1000000L;
+            if (pendingMs >= 0 && stopMs > pendingMs) {
+                writeStep(out, pendingKeyState, pendingSpeed, stopMs - pendingMs);
+            }
+        } catch (IOException e) {
+            m_error = e.toString();
+        } finally {
+            try {
+                out.close();
+            } catch (IOException e) {
+                if (m_error == null) {
+                    m_error = e.toString();
+                }
+            }
+        }
+    }
+
+    private void writeStep(Writer out, byte keyState, byte speed, long durationMs) throws IOException {
+        out.write(SequenceTable.directionName(m_controller, keyState));
+        out.write(", ");
+        out.write(Integer.toString(speed & 0xFF));
+        out.write(", ");
+        out.write(Long.toString(durationMs));
+        out.write("\n");
+        m_stepsWritten++;
+    }
+}
@@ -0,0 +1,338 @@
+////////////////////////////////////////////////////////////////////////////////////////////////
+//    Copyright (C) 2012 Jon Bennett
+//
+//    This file is part of Programmable RC Car Controller.
+//
+//    http://www.jbprojects.net/articles/programmable-rc/
+//
+//    Programmable RC Car Controller is free software: you can redistribute it and/or modify
+//    it under the terms of the GNU General Public License as published by
+//    the Free Software Foundation, either version 3 of the License, or
+//    (at your option) any later version.
+//
+//    Programmable RC Car Controller is distributed in the hope that it will be useful,
+//    but WITHOUT ANY WARRANTY; without even the implied warranty of
+//    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+//    GNU General Public License for more details.
+//
+//    You should have received a copy of the GNU General Public License
+//    along with Programmable RC Car Controller.  If not, see <http://www.gnu.org/licenses/>.
+////////////////////////////////////////////////////////////////////////////////////////////////
+
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ArrayBlockingQueue;
+
+// Streams a sequence file to the player instead of loading it all first.
+// The file is memory-mapped and parsed byte by byte on a background thread without
+// creating Strings.  Steps reach the player in SequenceTable chunks through a bounded
+// queue and played chunks are recycled, so memory use does not depend on the file size
+// and playback starts as soon as the first step is parsed.
+//
+// Lines are plain steps: "direction, speed, duration", anything after '#' is a comment and
+// other lines without three fields are skipped.  Directions and speeds are checked like
+// SequenceCompiler checks them.  Repeat blocks, macros and variables need the whole
+// file and are only available when it is compiled (see SequenceCompiler).
+public class SequenceStream {
+    // Steps per chunk and number of chunks, at most CHUNK_STEPS * NUM_CHUNKS steps are held
+    private static final int CHUNK_STEPS = 1024;
+    private static final int NUM_CHUNKS = 4;
+
+    // How much of the file is mapped at a time
+    private static final long MAP_WINDOW = 64L << 20; // 64 MB
+
+    // Marks the end of the sequence in the queue of filled chunks
+    private static final SequenceTable END = new SequenceTable(0);
+
+    private final RCController m_controller;
+    private final String m_fileName;
+
+    private final ArrayBlockingQueue<SequenceTable> m_filled = new ArrayBlockingQueue<SequenceTable>(NUM_CHUNKS + 1);
+    private final ArrayBlockingQueue<SequenceTable> m_free = new ArrayBlockingQueue<SequenceTable>(NUM_CHUNKS);
+
+    private FileChannel m_channel;
+    private Thread m_parserThread;
+
+    // Set when a line could not be parsed, the sequence ends before it
+    private volatile String m_error;
+    private volatile long m_stepsParsed;
+    private int m_lineNumber;
+
+    public SequenceStream(RCController controller, String fileName) {
+        m_controller = controller;
+        m_fileName = fileName;
+        for (int i = 0; i < NUM_CHUNKS; i++) {
+            m_free.add(new SequenceTable(CHUNK_STEPS));
+        }
+    }
+
+    // Open the file and start parsing in the background
+    // Returns an error message if the file can't be opened, null on success
+    public synchronized String start() {
+        try {
+            m_channel = FileChannel.open(Paths.get(m_fileName), StandardOpenOption.READ);
+        } catch (IOException e) {
+            return e.toString();
+        }
+
+        m_parserThread = new Thread(new Runnable() {
+            public void run() {
+                try {
+                    parseFile();
+                } catch (InterruptedException e) {
+                    // Closed before the end of the file
+                } finally {
+                    try {
+                        m_channel.close();
+                    } catch (IOException e) {
+                        // Only read from it
+                    }
+                }
+            }
+        }, "SequenceStream");
+        m_parserThread.setDaemon(true);
+        m_parserThread.start();
+        return null;
+    }
+
+    // Stop parsing, e.g. when playback is cancelled
+    public synchronized void close() {
+        if (m_parserThread != null) {
+            m_parserThread.interrupt();
+            m_parserThread = null;
+        }
+    }
+
+    // The next chunk of steps, waiting until it has been parsed
+    // Returns null at the end of the sequence
+    public SequenceTable take() throws InterruptedException {
+        SequenceTable chunk = m_filled.take();
+        if (chunk == END) {
+            m_filled.put(END); // Stay at the end for later calls
+            return null;
+        }
+        return chunk;
+    }
+
+    // Hand a played chunk back so it can be filled again
+    public void recycle(SequenceTable chunk) {
+        chunk.clear();
+        m_free.offer(chunk);
+    }
+
+    // Returns the reason parsing stopped early, or null
+    public String getError() {
+        return m_error;
+    }
+
+    // Number of steps parsed so far
+    public long getStepsParsed() {
+        return m_stepsParsed;
+    }
+
+    private void parseFile() throws InterruptedException {
+        SequenceTable chunk = m_free.take();
+        try {
+            long size = m_channel.size();
+            long position = 0;
+            while (position < size && m_error == null) {
+                long length = Math.min(MAP_WINDOW, size - position);
+                boolean lastWindow = position + length == size;
+                MappedByteBuffer map = m_channel.map(FileChannel.MapMode.READ_ONLY, position, length);
+
+                int limit = (int) length;
+                int lineStart = 0;
+                while (lineStart < limit && m_error == null) {
+                    int lineEnd = lineStart;
+                    while (lineEnd < limit && map.get(lineEnd) != '\n' && map.get(lineEnd) != '\r') {
+                        lineEnd++;
+                    }
+                    // A CR LF pair ends one line, so look at the byte after a CR too
+                    int nextLine = lineEnd + 1;
+                    if (lineEnd < limit && map.get(lineEnd) == '\r') {
+                        if (nextLine == limit && !lastWindow) {
+                            break; // The LF may be in the next window
+                        }
+                        if (nextLine < limit && map.get(nextLine) == '\n') {
+                            nextLine++;
+                        }
+                    }
+                    if (lineEnd == limit && !lastWindow) {
+                        break; // The line continues past the window, map again from its start
+                    }
+
+                    m_lineNumber++;
+                    if (parseLine(map, lineStart, lineEnd, chunk)) {
+                        m_stepsParsed++;
+                        // Hand the chunk over when it is full, or right away if the player is waiting
+                        if (chunk.getStepCount() == CHUNK_STEPS || m_filled.isEmpty()) {
+                            m_filled.put(chunk);
+                            chunk = null;
+                            chunk = m_free.take();
+                        }
+                    }
+                    lineStart = nextLine;
+                }
+
+                if (lineStart == 0 && !lastWindow) {
+                    m_error = "Line " + (m_lineNumber + 1) + " is too long";
+                }
+                position += Math.min(lineStart, limit);
+            }
+        } catch (IOException e) {
+            m_error = e.toString();
+        } finally {
+            // There is always room: NUM_CHUNKS chunks plus END
+            if (chunk != null && chunk.getStepCount() > 0) {
+                m_filled.offer(chunk);
+            }
+            m_filled.offer(END);
+        }
+    }
+
+    // True if the line starts with a word of the SequenceCompiler language
+    private static boolean startsWithKeyword(MappedByteBuffer map, int start, int end) {
+        start = skipSpace(map, start, end);
+        int wordEnd = start;
+        while (wordEnd < end && Character.isLetter((char) map.get(wordEnd))) {
+            wordEnd++;
+        }
+        return isWord(map, start, wordEnd, "repeat") || isWord(map, start, wordEnd, "define")
+                || isWord(map, start, wordEnd, "call") || isWord(map, start, wordEnd, "let")
+                || isWord(map, start, wordEnd, "end");
+    }
+
+    // True if the bytes from start to end spell word, ignoring case
+    private static boolean isWord(MappedByteBuffer map, int start, int end, String word) {
+        if (end - start != word.length()) {
+            return false;
+        }
+        for (int i = 0; i < word.length(); i++) {
+            if (Character.toLowerCase((char) map.get(start + i)) != word.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // Parse one line and add it to chunk if it is a step
+    // Returns false for comments and lines that aren't steps, sets m_error if a step is malformed
+    private boolean parseLine(MappedByteBuffer map, int start, int end, SequenceTable chunk) {
+        // Find the three comma separated fields, skipping comments
+        int comma1 = -1;
+        int comma2 = -1;
+        int comma3 = -1;
+        for (int i = start; i < end; i++) {
+            byte b = map.get(i);
+            if (b == '#') {
+                end = i; // The rest of the line is a comment
+                break;
+            }
+            if (b == ',') {
+                if (comma1 < 0) {
+                    comma1 = i;
+                } else if (comma2 < 0) {
+                    comma2 = i;
+                } else if (comma3 < 0) {
+                    comma3 = i;
+                }
+            }
+        }
+        if (comma2 < 0) {
+            if (startsWithKeyword(map, start, end)) {
+                // Files over 1 MB are streamed everywhere, SequenceFile.textToBinary included
+                m_error = "Line " + m_lineNumber + ": repeat, define, call and let can't be streamed,"
+                        + " keep the file under 1 MB and don't set rc.sequence.stream";
+            }
+            return false;
+        }
+        // Like String.split, empty fields at the end don't count
+        int fieldsEnd = end;
+        if (comma3 >= 0) {
+            // More than three fields is only allowed if the extra ones are empty
+            for (int i = comma3; i < end; i++) {
+                if (map.get(i) != ',') {
+                    return false;
+                }
+            }
+            fieldsEnd = comma3;
+        }
+        if (fieldsEnd == comma2 + 1) {
+            return false; // Only two fields
+        }
+
+        // Direction, parseDirection returns STOP for anything it doesn't know so only SS may stop
+        int dirStart = skipSpace(map, start, comma1);
+        int dirEnd = trimSpace(map, dirStart, comma1);
+        byte keyState = dirEnd - dirStart == 2
+                ? SequenceTable.parseDirection(m_controller, (char) map.get(dirStart), (char) map.get(dirStart + 1))
+                : m_controller.STOP;
+        if (keyState == m_controller.STOP && !isWord(map, dirStart, dirEnd, "ss")) {
+            m_error = "Line " + m_lineNumber + ": unknown direction (use FF, FR, FL, BB, BL, BR, LL, RR or SS)";
+            return false;
+        }
+
+        long speed = parseNumber(map, comma1 + 1, comma2);
+        long durationMs = parseNumber(map, comma2 + 1, fieldsEnd);
+        if (speed == Long.MIN_VALUE) {
+            m_error = "Line " + m_lineNumber + ": bad speed";
+            return false;
+        }
+        if (speed < 0 || speed > 255) {
+            m_error = "Line " + m_lineNumber + ": speed " + speed + " is out of range 0 - 255";
+            return false;
+        }
+        if (durationMs == Long.MIN_VALUE || durationMs < 0 || durationMs > SequenceTable.MAX_DURATION_MS) {
+            m_error = "Line " + m_lineNumber + ": bad duration";
+            return false;
+        }
+
+        chunk.addStep(m_controller, keyState, (byte) speed, durationMs);
+        return true;
+    }
+
+    // Parse a decimal number surrounded by optional white space
+    // Returns Long.MIN_VALUE if the field is not a number
+    private static long parseNumber(MappedByteBuffer map, int start, int end) {
+        start = skipSpace(map, start, end);
+        end = trimSpace(map, start, end);
+
+        boolean negative = false;
+        if (start < end && (map.get(start) == '-' || map.get(start) == '+')) {
+            negative = map.get(start) == '-';
+            start++;
+        }
+        if (start == end || end - start > 18) {
+            return Long.MIN_VALUE;
+        }
+
+        long value = 0;
+        for (int i = start; i < end; i++) {
+            int digit = map.get(i) - '0';
+            if (digit < 0 || digit > 9) {
+                return Long.MIN_VALUE;
+            }
+            value = value * 10 + digit;
+        }
+        return negative ? -value : value;
+    }
+
+    // First index at or after start that isn't white space (as in String.trim)
+    private static int skipSpace(MappedByteBuffer map, int start, int end) {
+        while (start < end && (map.get(start) & 0xFF) <= ' ') {
+            start++;
+        }
+        return start;
+    }
+
+    // End index after removing trailing white space
+    private static int trimSpace(MappedByteBuffer map, int start, int end) {
+        while (end > start && (map.get(end - 1) & 0xFF) <= ' ') {
+            end--;
+        }
+        return end;
+    }
+}
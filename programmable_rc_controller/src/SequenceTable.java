@@ -0,0 +1,256 @@
+////////////////////////////////////////////////////////////////////////////////////////////////
+//    Copyright (C) 2012 Jon Bennett
+//
+//    This file is part of Programmable RC Car Controller.
+//
+//    http://www.jbprojects.net/articles/programmable-rc/
+//
+//    Programmable RC Car Controller is free software: you can redistribute it and/or modify
+//    it under the terms of the GNU General Public License as published by
+//    the Free Software Foundation, either version 3 of the License, or
+//    (at your option) any later version.
+//
+//    Programmable RC Car Controller is distributed in the hope that it will be useful,
+//    but WITHOUT ANY WARRANTY; without even the implied warranty of
+//    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+//    GNU General Public License for more details.
+//
+//    You should have received a copy of the GNU General Public License
+//    along with Programmable RC Car Controller.  If not, see <http://www.gnu.org/licenses/>.
+////////////////////////////////////////////////////////////////////////////////////////////////
+
+import java.nio.ByteBuffer;
+import java.nio.LongBuffer;
+
+// This class holds a sequence that has been compiled before playback starts.
+// Every step is stored as a ready-to-write DRIVE frame (ID, DATA1, DATA2, CHECKSUM)
+// together with its duration, so the playback loop does no parsing, string handling
+// or allocation between steps.
+// The records have the same layout as in a binary sequence file (see SequenceFile),
+// so a table can also sit directly on top of a memory-mapped file.
+public final class SequenceTable {
+    // Each step is one DRIVE frame, see RCController.sendCommand for the format
+    public static final int FRAME_SIZE = 4;
+
+    // A record is the frame followed by the duration in milliseconds (unsigned 32 bits)
+    public static final int RECORD_SIZE = 8;
+
+    // Longest duration a single step can have
+    public static final long MAX_DURATION_MS = 0xFFFFFFFFL;
+
+    // The time index holds the start time of every INDEX_INTERVAL'th step
+    public static final int INDEX_INTERVAL = 256;
+
+    // Records for all steps, back to back (step i starts at i * RECORD_SIZE)
+    private final ByteBuffer m_records;
+
+    // Start time in milliseconds of steps 0, INDEX_INTERVAL, 2 * INDEX_INTERVAL, ...
+    private final LongBuffer m_timeIndex;
+
+    // Steps in use, less than the capacity for a partly filled streaming chunk
+    private int m_numSteps;
+
+    private long m_totalDurationMs;
+
+    // An empty table that is filled one step at a time with addStep()
+    // Used by compile() and by SequenceStream for the chunks it hands to the player
+    SequenceTable(int capacity) {
+        m_records = ByteBuffer.allocate(capacity * RECORD_SIZE);
+        m_timeIndex = LongBuffer.allocate(indexSize(capacity));
+    }
+
+    // A table over records and an index that already exist, e.g. in a mapped file
+    SequenceTable(ByteBuffer records, LongBuffer timeIndex, int numSteps, long totalDurationMs) {
+        m_records = records;
+        m_timeIndex = timeIndex;
+        m_numSteps = numSteps;
+        m_totalDurationMs = totalDurationMs;
+    }
+
+    // Number of time index entries for numSteps steps
+    static int indexSize(int numSteps) {
+        return (numSteps + INDEX_INTERVAL - 1) / INDEX_INTERVAL;
+    }
+
+    // Compiles the direction, speed, duration triplets returned by TextFileParser.getSequence
+    // Returns null if the commands could not be parsed
+    public static SequenceTable compile(RCController controller, String[] cmds) {
+        if (cmds == null || cmds.length % 3 > 0) {
+            return null; // Not a multiple of 3?  Can't compile.
+        }
+
+        int numSteps = cmds.length / 3;
+        SequenceTable table = new SequenceTable(numSteps);
+
+        try {
+            for (int step = 0; step < numSteps; step++) {
+                // A command sequence is made up of a direction, speed, and duration.
+                byte keyState = parseDirection(controller, cmds[step * 3]);
+                byte speed = (byte) Integer.parseInt(cmds[step * 3 + 1]);
+                long durationMs = Long.parseLong(cmds[step * 3 + 2]);
+                if (durationMs < 0 || durationMs > MAX_DURATION_MS) {
+                    return null;
+                }
+
+                table.addStep(controller, keyState, speed, durationMs);
+            }
+        } catch (NumberFormatException e) {
+            System.err.println("Error: " + e.getMessage());
+            return null;
+        }
+
+        return table;
+    }
+
+    // Convert a direction string (FF, FR, BL, SS, ...) to a keyState
+    // Unknown directions are treated as STOP
+    static byte parseDirection(RCController controller, String direction) {
+        if (direction.length() != 2) {
+            return controller.STOP;
+        }
+        return parseDirection(controller, direction.charAt(0), direction.charAt(1));
+    }
+
+    // Same as parseDirection(String) for the two characters of a direction
+    static byte parseDirection(RCController controller, char first, char second) {
+        first = Character.toUpperCase(first);
+        second = Character.toUpperCase(second);
+        if (first == 'F') {
+            if (second == 'F') {
+                return controller.FORWARD_BIT;
+            } else if (second == 'R') {
+                return (byte) (controller.FORWARD_BIT + controller.RIGHT_BIT);
+            } else if (second == 'L') {
+                return (byte) (controller.FORWARD_BIT + controller.LEFT_BIT);
+            }
+        } else if (first == 'B') {
+            if (second == 'B') {
+                return controller.BACKWARD_BIT;
+            } else if (second == 'L') {
+                return (byte) (controller.BACKWARD_BIT + controller.LEFT_BIT);
+            } else if (second == 'R') {
+                return (byte) (controller.BACKWARD_BIT + controller.RIGHT_BIT);
+            }
+        } else if (first == 'L' && second == 'L') {
+            return controller.LEFT_BIT;
+        } else if (first == 'R' && second == 'R') {
+            return controller.RIGHT_BIT;
+        }
+        return controller.STOP;
+    }
+
+    // Convert a keyState back to its direction string, the reverse of parseDirection
+    static String directionName(RCController controller, byte keyState) {
+        String[] names = { "FF", "FR", "FL", "BB", "BL", "BR", "LL", "RR" };
+        for (int i = 0; i < names.length; i++) {
+            if (parseDirection(controller, names[i]) == keyState) {
+                return names[i];
+            }
+        }
+        return "SS";
+    }
+
+    // Number of steps in the sequence
+    public int getStepCount() {
+        return m_numSteps;
+    }
+
+    // Offset of a step's frame in the record buffer
+    public int getFrameOffset(int step) {
+        return step * RECORD_SIZE;
+    }
+
+    // Direction bits sent for a step
+    public byte getKeyState(int step) {
+        return m_records.get(step * RECORD_SIZE + 1);
+    }
+
+    // Speed sent for a step (0 - 255 as an unsigned byte)
+    public byte getSpeed(int step) {
+        return m_records.get(step * RECORD_SIZE + 2);
+    }
+
+    // How long a step lasts before the next one is sent
+    public long getDurationMs(int step) {
+        return m_records.getInt(step * RECORD_SIZE + FRAME_SIZE) & MAX_DURATION_MS;
+    }
+
+    // Sum of all step durations
+    public long getTotalDurationMs() {
+        return m_totalDurationMs;
+    }
+
+    // Milliseconds from the start of the sequence until a step is sent
+    // getStepCount() and later steps start when the sequence ends
+    public long getStartTimeMs(int step) {
+        if (step >= m_numSteps) {
+            return m_totalDurationMs;
+        }
+        int indexed = step - step % INDEX_INTERVAL;
+        long time = m_timeIndex.get(indexed / INDEX_INTERVAL);
+        for (int i = indexed; i < step; i++) {
+            time += getDurationMs(i);
+        }
+        return time;
+    }
+
+    // The step that is playing timeMs after the start of the sequence
+    // Returns getStepCount() if the sequence is over by then
+    // Binary search in the time index, then at most INDEX_INTERVAL steps are scanned
+    public int findStep(long timeMs) {
+        if (m_numSteps == 0 || timeMs >= m_totalDurationMs) {
+            return m_numSteps;
+        }
+        int low = 0;
+        int high = indexSize(m_numSteps) - 1;
+        while (low < high) {
+            int mid = (low + high + 1) >>> 1;
+            if (m_timeIndex.get(mid) <= timeMs) {
+                low = mid;
+            } else {
+                high = mid - 1;
+            }
+        }
+
+        int step = low * INDEX_INTERVAL;
+        long end = m_timeIndex.get(low) + getDurationMs(step);
+        while (end <= timeMs && step + 1 < m_numSteps) {
+            step++;
+            end += getDurationMs(step);
+        }
+        return step;
+    }
+
+    // Append a step to a table created with SequenceTable(capacity)
+    // Returns false if the table is full
+    boolean addStep(RCController controller, byte keyState, byte speed, long durationMs) {
+        if (m_numSteps * RECORD_SIZE == m_records.capacity()) {
+            return false;
+        }
+        if (m_numSteps % INDEX_INTERVAL == 0) {
+            m_timeIndex.put(m_numSteps / INDEX_INTERVAL, m_totalDurationMs);
+        }
+        int offset = m_numSteps * RECORD_SIZE;
+        controller.encodeDriveCommand(m_records.array(), m_records.arrayOffset() + offset, keyState, speed);
+        m_records.putInt(offset + FRAME_SIZE, (int) durationMs);
+        m_numSteps++;
+        m_totalDurationMs += durationMs;
+        return true;
+    }
+
+    // Empty the table so it can be filled again
+    void clear() {
+        m_numSteps = 0;
+        m_totalDurationMs = 0;
+    }
+
+    // Records for all steps.  Callers must not modify them or change the position.
+    ByteBuffer getRecords() {
+        return m_records;
+    }
+
+    // Start times of every INDEX_INTERVAL'th step
+    LongBuffer getTimeIndex() {
+        return m_timeIndex;
+    }
+}
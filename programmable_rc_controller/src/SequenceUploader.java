@@ -0,0 +1,208 @@
+////////////////////////////////////////////////////////////////////////////////////////////////
+//    Copyright (C) 2012 Jon Bennett
+//
+//    This file is part of Programmable RC Car Controller.
+//
+//    http://www.jbprojects.net/articles/programmable-rc/
+//
+//    Programmable RC Car Controller is free software: you can redistribute it and/or modify
+//    it under the terms of the GNU General Public License as published by
+//    the Free Software Foundation, either version 3 of the License, or
+//    (at your option) any later version.
+//
+//    Programmable RC Car Controller is distributed in the hope that it will be useful,
+//    but WITHOUT ANY WARRANTY; without even the implied warranty of
+//    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+//    GNU General Public License for more details.
+//
+//    You should have received a copy of the GNU General Public License
+//    along with Programmable RC Car Controller.  If not, see <http://www.gnu.org/licenses/>.
+////////////////////////////////////////////////////////////////////////////////////////////////
+
+// This class uploads a compiled sequence to the car so it can be timed on the car itself.
+// The sequence is sent in one burst: UPLOAD_BEGIN with the step count, then an
+// UPLOAD_STEP (direction, speed) and UPLOAD_TIME (duration) frame per step.
+// The car confirms with STATUS_UPLOADED and runs the steps against millis() when it
+// receives RUN_ROUTINE, reporting STATUS_PROGRESS as each step starts.
+// The host only sends start/abort, so step timing no longer depends on the link.
+// One sequence at a time: claim() the uploader first, it stays busy until the car
+// reports that the sequence finished, it is aborted, or release() is called.
+public class SequenceUploader extends TelemetryAdapter {
+    // Command ids, see arduino code for more info
+    public static final byte UPLOAD_BEGIN_CMD = 15;
+    public static final byte UPLOAD_STEP_CMD = 16;
+    public static final byte UPLOAD_TIME_CMD = 17;
+    public static final byte RUN_ROUTINE_CMD = 18;
+    public static final byte ABORT_ROUTINE_CMD = 19;
+
+    // Steps the car can store, must match MAX_ROUTINE_STEPS in the arduino code
+    public static final int MAX_STEPS = 150;
+
+    // Longest step duration a single UPLOAD_TIME frame can carry
+    private static final long MAX_STEP_MS = 0xFFFF;
+
+    private static final int FRAME_SIZE = 4;
+    private static final int MAX_ATTEMPTS = 3;
+    private static final long REPLY_TIMEOUT_MS = 500;
+
+    private final RCCom m_rcCom;
+    private final byte[] m_frame = new byte[FRAME_SIZE];
+
+    // Replies from the car
+    private int m_storedSteps = -1;
+    private boolean m_uploadFailed;
+    private boolean m_uploading;
+    private volatile boolean m_running;
+
+    // Claimed for a sequence, guarded by the lock on this object
+    private boolean m_busy;
+
+    public SequenceUploader(RCCom rcCom) {
+        m_rcCom = rcCom;
+    }
+
+    // Number of steps the car needs for a table
+    // Steps longer than 65535 ms are split into several steps
+    public static int countCarSteps(SequenceTable table) {
+        int count = 0;
+        for (int i = 0; i < table.getStepCount(); i++) {
+            count += stepsFor(table.getDurationMs(i));
+        }
+        return count;
+    }
+
+    private static int stepsFor(long durationMs) {
+        return (int) Math.max(1, (durationMs + MAX_STEP_MS - 1) / MAX_STEP_MS);
+    }
+
+    // Send the table to the car and wait until it confirms the step count
+    // Returns an error message on failure, null on success
+    public String upload(SequenceTable table) {
+        int carSteps = countCarSteps(table);
+        if (carSteps > MAX_STEPS) {
+            return "Sequence has " + carSteps + " steps, the car can store " + MAX_STEPS + ".";
+        }
+
+        for (int attempt = 0; attempt < MAX_ATTEMPTS; attempt++) {
+            synchronized (this) {
+                m_storedSteps = -1;
+                m_uploadFailed = false;
+                m_uploading = true;
+            }
+
+            sendCommand(UPLOAD_BEGIN_CMD, (byte) carSteps, (byte) (carSteps >> 8));
+            for (int i = 0; i < table.getStepCount(); i++) {
+                long remainingMs = table.getDurationMs(i);
+                do {
+                    long durationMs = Math.min(remainingMs, MAX_STEP_MS);
+                    sendCommand(UPLOAD_STEP_CMD, table.getKeyState(i), table.getSpeed(i));
+                    sendCommand(UPLOAD_TIME_CMD, (byte) durationMs, (byte) (durationMs >> 8));
+                    remainingMs -= durationMs;
+                } while (remainingMs > 0);
+            }
+
+            // 8 bytes per step at 10 bits per byte on the wire
+            long sendMs = carSteps * 2L * FRAME_SIZE * 10 * 1000 / m_rcCom.getDataRate();
+            boolean stored = awaitStored(carSteps, sendMs + REPLY_TIMEOUT_MS);
+            synchronized (this) {
+                m_uploading = false;
+            }
+            if (stored) {
+                return null;
+            }
+        }
+        return "The car did not confirm the upload.";
+    }
+
+    // Reserve the uploader for one sequence
+    // Returns false if another sequence is being uploaded or is running on the car
+    public synchronized boolean claim() {
+        if (m_busy) {
+            return false;
+        }
+        m_busy = true;
+        return true;
+    }
+
+    // Give up a claim without running the sequence, e.g. after a failed upload
+    public synchronized void release() {
+        m_busy = false;
+    }
+
+    // True from claim() until the sequence finished, was aborted or released
+    public synchronized boolean isBusy() {
+        return m_busy;
+    }
+
+    // Start the uploaded sequence on the car
+    // Returns false if it was aborted while it was being uploaded
+    public boolean run() {
+        synchronized (this) {
+            if (!m_busy) {
+                return false;
+            }
+            m_running = true;
+        }
+        sendCommand(RUN_ROUTINE_CMD, (byte) 0, (byte) 0);
+        return true;
+    }
+
+    // Stop the sequence running on the car, or keep an upload in progress from starting
+    public void abort() {
+        release();
+        sendCommand(ABORT_ROUTINE_CMD, (byte) 0, (byte) 0);
+    }
+
+    // True between run() and the car reporting that the sequence finished
+    public boolean isRunning() {
+        return m_running;
+    }
+
+    private synchronized boolean awaitStored(int steps, long timeoutMs) {
+        long deadline = System.currentTimeMillis() + timeoutMs;
+        while (m_storedSteps != steps && !m_uploadFailed) {
+            long remaining = deadline - System.currentTimeMillis();
+            if (remaining <= 0) {
+                return false;
+            }
+            try {
+                wait(remaining);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+        }
+        return !m_uploadFailed;
+    }
+
+    private void sendCommand(byte commandId, byte data1, byte data2) {
+        synchronized (m_frame) {
+            m_frame[0] = commandId;
+            m_frame[1] = data1;
+            m_frame[2] = data2;
+            m_frame[3] = (byte) (commandId + data1 + data2);
+            m_rcCom.sendData(m_frame);
+        }
+    }
+
+    @Override
+    public synchronized void routineStored(int steps) {
+        m_storedSteps = steps;
+        notifyAll();
+    }
+
+    @Override
+    public synchronized void checksumFailed(int commandId, int checksum) {
+        // A corrupted upload frame leaves a hole in the routine, start over
+        if (m_uploading) {
+            m_uploadFailed = true;
+            notifyAll();
+        }
+    }
+
+    @Override
+    public void routineFinished(boolean aborted) {
+        m_running = false;
+        release();
+    }
+}
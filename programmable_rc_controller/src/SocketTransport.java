@@ -0,0 +1,60 @@
+////////////////////////////////////////////////////////////////////////////////////////////////
+//    Copyright (C) 2012 Jon Bennett
+//
+//    This file is part of Programmable RC Car Controller.
+//
+//    http://www.jbprojects.net/articles/programmable-rc/
+//
+//    Programmable RC Car Controller is free software: you can redistribute it and/or modify
+//    it under the terms of the GNU General Public License as published by
+//    the Free Software Foundation, either version 3 of the License, or
+//    (at your option) any later version.
+//
+//    Programmable RC Car Controller is distributed in the hope that it will be useful,
+//    but WITHOUT ANY WARRANTY; without even the implied warranty of
+//    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+//    GNU General Public License for more details.
+//
+//    You should have received a copy of the GNU General Public License
+//    along with Programmable RC Car Controller.  If not, see <http://www.gnu.org/licenses/>.
+////////////////////////////////////////////////////////////////////////////////////////////////
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.WritableByteChannel;
+
+// Talks to the car through a TCP serial-over-network bridge (e.g. ser2net in raw mode).
+// The bridge owns the serial line settings, so the data rate can't be changed from here.
+public class SocketTransport extends ChannelTransport {
+    private final String m_host;
+    private final int m_port;
+    private SocketChannel m_channel;
+
+    public SocketTransport(String host, int port) {
+        m_host = host;
+        m_port = port;
+    }
+
+    @Override
+    protected ReadableByteChannel openInput() throws IOException {
+        m_channel = SocketChannel.open(new InetSocketAddress(m_host, m_port));
+        // Frames are tiny, send them right away
+        m_channel.socket().setTcpNoDelay(true);
+        return m_channel;
+    }
+
+    @Override
+    protected WritableByteChannel openOutput() {
+        return m_channel;
+    }
+
+    public String setDataRate(int dataRate) {
+        return "The data rate is set on the network bridge.";
+    }
+
+    public String getName() {
+        return "tcp:" + m_host + ":" + m_port;
+    }
+}
@@ -0,0 +1,54 @@
+////////////////////////////////////////////////////////////////////////////////////////////////
+//    Copyright (C) 2012 Jon Bennett
+//
+//    This file is part of Programmable RC Car Controller.
+//
+//    http://www.jbprojects.net/articles/programmable-rc/
+//
+//    Programmable RC Car Controller is free software: you can redistribute it and/or modify
+//    it under the terms of the GNU General Public License as published by
+//    the Free Software Foundation, either version 3 of the License, or
+//    (at your option) any later version.
+//
+//    Programmable RC Car Controller is distributed in the hope that it will be useful,
+//    but WITHOUT ANY WARRANTY; without even the implied warranty of
+//    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+//    GNU General Public License for more details.
+//
+//    You should have received a copy of the GNU General Public License
+//    along with Programmable RC Car Controller.  If not, see <http://www.gnu.org/licenses/>.
+////////////////////////////////////////////////////////////////////////////////////////////////
+
+// An implementation of TelemetryListener that ignores every event.
+// Extend it and override only the events you are interested in.
+public class TelemetryAdapter implements TelemetryListener {
+    public void commandAcknowledged(int commandId) {
+    }
+
+    public void checksumFailed(int commandId, int checksum) {
+    }
+
+    public void invalidCommand(int commandId) {
+    }
+
+    public void stateApplied(int keyState, int speed) {
+    }
+
+    public void sequenceAcknowledged(int seq) {
+    }
+
+    public void pongReceived(int data1, int data2) {
+    }
+
+    public void routineStored(int steps) {
+    }
+
+    public void routineProgress(int step, int keyState) {
+    }
+
+    public void routineFinished(boolean aborted) {
+    }
+
+    public void failsafeTriggered() {
+    }
+}
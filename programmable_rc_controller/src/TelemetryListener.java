@@ -0,0 +1,55 @@
+////////////////////////////////////////////////////////////////////////////////////////////////
+//    Copyright (C) 2012 Jon Bennett
+//
+//    This file is part of Programmable RC Car Controller.
+//
+//    http://www.jbprojects.net/articles/programmable-rc/
+//
+//    Programmable RC Car Controller is free software: you can redistribute it and/or modify
+//    it under the terms of the GNU General Public License as published by
+//    the Free Software Foundation, either version 3 of the License, or
+//    (at your option) any later version.
+//
+//    Programmable RC Car Controller is distributed in the hope that it will be useful,
+//    but WITHOUT ANY WARRANTY; without even the implied warranty of
+//    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+//    GNU General Public License for more details.
+//
+//    You should have received a copy of the GNU General Public License
+//    along with Programmable RC Car Controller.  If not, see <http://www.gnu.org/licenses/>.
+////////////////////////////////////////////////////////////////////////////////////////////////
+
+// Receives the binary status frames decoded by TelemetryParser.
+// Called on the serial port's event thread, so implementations should return quickly.
+public interface TelemetryListener {
+    // The car accepted a command
+    void commandAcknowledged(int commandId);
+
+    // The car received a frame whose checksum didn't match
+    void checksumFailed(int commandId, int checksum);
+
+    // The car received a frame with an unknown command id
+    void invalidCommand(int commandId);
+
+    // The car applied a drive state to its pins
+    // keyState is after the car's own error correction (forward beats backward, left beats right)
+    void stateApplied(int keyState, int speed);
+
+    // The car received a DRIVE_SEQ frame with this sequence number (see ReliableLink)
+    void sequenceAcknowledged(int seq);
+
+    // The car answered a PING command, echoing its two data bytes
+    void pongReceived(int data1, int data2);
+
+    // The car stored an uploaded sequence with this many steps (see SequenceUploader)
+    void routineStored(int steps);
+
+    // The car started a step of the uploaded sequence
+    void routineProgress(int step, int keyState);
+
+    // The uploaded sequence finished or was aborted
+    void routineFinished(boolean aborted);
+
+    // No valid frame arrived within the failsafe window, so the car stopped itself (see LinkMonitor)
+    void failsafeTriggered();
+}
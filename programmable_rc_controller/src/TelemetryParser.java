@@ -0,0 +1,167 @@
+////////////////////////////////////////////////////////////////////////////////////////////////
+//    Copyright (C) 2012 Jon Bennett
+//
+//    This file is part of Programmable RC Car Controller.
+//
+//    http://www.jbprojects.net/articles/programmable-rc/
+//
+//    Programmable RC Car Controller is free software: you can redistribute it and/or modify
+//    it under the terms of the GNU General Public License as published by
+//    the Free Software Foundation, either version 3 of the License, or
+//    (at your option) any later version.
+//
+//    Programmable RC Car Controller is distributed in the hope that it will be useful,
+//    but WITHOUT ANY WARRANTY; without even the implied warranty of
+//    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+//    GNU General Public License for more details.
+//
+//    You should have received a copy of the GNU General Public License
+//    along with Programmable RC Car Controller.  If not, see <http://www.gnu.org/licenses/>.
+////////////////////////////////////////////////////////////////////////////////////////////////
+
+import java.nio.ByteBuffer;
+
+// This class decodes the binary status frames sent back by the car.
+// Status frames have the same layout as commands: ID, DATA1, DATA2, CHECKSUM
+// (see arduino code for more info).  Bytes are read straight into a reusable
+// ByteBuffer and decoded incrementally, so nothing is allocated per event.
+// If a frame is corrupt the parser skips one byte at a time until it finds
+// the next valid frame.
+public class TelemetryParser {
+    // Status ids, must match STATUS_IDS in the arduino code
+    public static final int STATUS_ACK = 100;          // DATA1 = command id
+    public static final int STATUS_BAD_CHECKSUM = 101; // DATA1 = command id, DATA2 = received checksum
+    public static final int STATUS_INVALID_CMD = 102;  // DATA1 = command id
+    public static final int STATUS_STATE = 103;        // DATA1 = applied keyState, DATA2 = speed
+    public static final int STATUS_ACK_SEQ = 104;      // DATA1 = sequence number
+    public static final int STATUS_PONG = 105;         // DATA1, DATA2 = echoed from the PING command
+    public static final int STATUS_PROGRESS = 106;     // DATA1 = step of the uploaded sequence, DATA2 = keyState
+    public static final int STATUS_DONE = 107;         // DATA1 = 1 if aborted, 0 if finished
+    public static final int STATUS_UPLOADED = 108;     // DATA1, DATA2 = steps stored (low byte first)
+    public static final int STATUS_FAILSAFE = 109;     // The car stopped because the host went quiet
+
+    public static final int FRAME_SIZE = 4;
+
+    private final ByteBuffer m_buffer;
+    // Replaced under the lock, read without it by the receiving thread
+    private volatile TelemetryListener[] m_listeners = new TelemetryListener[0];
+
+    private long m_framesDecoded;
+    private long m_bytesSkipped;
+
+    public TelemetryParser() {
+        m_buffer = ByteBuffer.allocate(256);
+    }
+
+    // Listeners are kept in an array so dispatching doesn't allocate an iterator
+    public synchronized void addListener(TelemetryListener listener) {
+        TelemetryListener[] listeners = new TelemetryListener[m_listeners.length + 1];
+        System.arraycopy(m_listeners, 0, listeners, 0, m_listeners.length);
+        listeners[m_listeners.length] = listener;
+        m_listeners = listeners;
+    }
+
+    public synchronized void removeListener(TelemetryListener listener) {
+        for (int i = 0; i < m_listeners.length; i++) {
+            if (m_listeners[i] == listener) {
+                TelemetryListener[] listeners = new TelemetryListener[m_listeners.length - 1];
+                System.arraycopy(m_listeners, 0, listeners, 0, i);
+                System.arraycopy(m_listeners, i + 1, listeners, i, listeners.length - i);
+                m_listeners = listeners;
+                return;
+            }
+        }
+    }
+
+    // The buffer to read incoming bytes into.  Its position marks the end of the
+    // received data; call parse() after writing to it.
+    public ByteBuffer getBuffer() {
+        return m_buffer;
+    }
+
+    // Copy received bytes into the buffer and decode them
+    public void feed(byte[] src, int offset, int length) {
+        while (length > 0) {
+            int n = Math.min(length, m_buffer.remaining());
+            m_buffer.put(src, offset, n);
+            offset += n;
+            length -= n;
+            parse();
+        }
+    }
+
+    // Decode all complete frames in the buffer and dispatch them to the listeners
+    public void parse() {
+        m_buffer.flip();
+        while (m_buffer.remaining() >= FRAME_SIZE) {
+            int pos = m_buffer.position();
+            int id = m_buffer.get(pos) & 0xFF;
+            int data1 = m_buffer.get(pos + 1) & 0xFF;
+            int data2 = m_buffer.get(pos + 2) & 0xFF;
+            int checksum = m_buffer.get(pos + 3) & 0xFF;
+
+            if (isStatusId(id) && ((id + data1 + data2) & 0xFF) == checksum) {
+                m_buffer.position(pos + FRAME_SIZE);
+                m_framesDecoded++;
+                dispatch(id, data1, data2);
+            } else {
+                // Out of sync, try again one byte later
+                m_buffer.position(pos + 1);
+                m_bytesSkipped++;
+            }
+        }
+        m_buffer.compact();
+    }
+
+    private boolean isStatusId(int id) {
+        return id >= STATUS_ACK && id <= STATUS_FAILSAFE;
+    }
+
+    private void dispatch(int id, int data1, int data2) {
+        TelemetryListener[] listeners = m_listeners;
+        for (int i = 0; i < listeners.length; i++) {
+            switch (id) {
+            case STATUS_ACK:
+                listeners[i].commandAcknowledged(data1);
+                break;
+            case STATUS_BAD_CHECKSUM:
+                listeners[i].checksumFailed(data1, data2);
+                break;
+            case STATUS_INVALID_CMD:
+                listeners[i].invalidCommand(data1);
+                break;
+            case STATUS_STATE:
+                listeners[i].stateApplied(data1, data2);
+                break;
+            case STATUS_ACK_SEQ:
+                listeners[i].sequenceAcknowledged(data1);
+                break;
+            case STATUS_PONG:
+                listeners[i].pongReceived(data1, data2);
+                break;
+            case STATUS_PROGRESS:
+                listeners[i].routineProgress(data1, data2);
+                break;
+            case STATUS_DONE:
+                listeners[i].routineFinished(data1 != 0);
+                break;
+            case STATUS_UPLOADED:
+                listeners[i].routineStored(data1 | (data2 << 8));
+                break;
+            case STATUS_FAILSAFE:
+                listeners[i].failsafeTriggered();
+                break;
+            }
+        }
+    }
+
+    // Number of valid status frames decoded
+    public long getFramesDecoded() {
+        return m_framesDecoded;
+    }
+
+    // Number of bytes thrown away while looking for a valid frame
+    public long getBytesSkipped() {
+        return m_bytesSkipped;
+    }
+}
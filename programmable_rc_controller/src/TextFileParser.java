@@ -60,13 +60,26 @@ public class TextFileParser {
         return m_portName;
     }
     
+    // Name of the file holding the programmed sequence
+    // -Drc.sequence.file=route.rcs plays another file, text or binary (see SequenceFile)
+    public String getSequenceFileName()
+    {
+        return System.getProperty("rc.sequence.file", SEQUENCE_FILENAME);
+    }
+    
     // Returns an array of strings that contain the commands to program the car
     public String[] getSequence()
+    {
+        return getSequence(getSequenceFileName());
+    }
+    
+    // Same as getSequence(), reading the commands from any file
+    public String[] getSequence(String fileName)
     {
         List<String> sequenceCmds = new ArrayList<String>();
         
         try{
-              m_fStream = new FileInputStream(SEQUENCE_FILENAME);
+              m_fStream = new FileInputStream(fileName);
               m_dataInStream = new DataInputStream(m_fStream);
               m_reader = new BufferedReader(new InputStreamReader(m_dataInStream));
               
@@ -0,0 +1,417 @@
+////////////////////////////////////////////////////////////////////////////////////////////////
+//    Copyright (C) 2012 Jon Bennett
+//
+//    This file is part of Programmable RC Car Controller.
+//
+//    http://www.jbprojects.net/articles/programmable-rc/
+//
+//    Programmable RC Car Controller is free software: you can redistribute it and/or modify
+//    it under the terms of the GNU General Public License as published by
+//    the Free Software Foundation, either version 3 of the License, or
+//    (at your option) any later version.
+//
+//    Programmable RC Car Controller is distributed in the hope that it will be useful,
+//    but WITHOUT ANY WARRANTY; without even the implied warranty of
+//    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+//    GNU General Public License for more details.
+//
+//    You should have received a copy of the GNU General Public License
+//    along with Programmable RC Car Controller.  If not, see <http://www.gnu.org/licenses/>.
+////////////////////////////////////////////////////////////////////////////////////////////////
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+// This class drives the car along a trajectory: a list of segments that each give a
+// direction and how the speed changes over time, e.g.
+//
+//   ramp FF, 0, 255, 1500       Speed up linearly from 0 to 255 over 1.5 s
+//   hold FF, 255, 2000          Keep 255 for 2 s
+//   easeout FL, 255, 60, 800    Slow down from 255 to 60, fast at first, gently at the end
+//
+// Unlike a sequence, which only changes the speed between steps, the speed is computed
+// in real time on a control loop that ticks at a fixed rate (-Drc.trajectory.hz, 100 by
+// default).  Ticks are absolute deadlines (see DeadlineScheduler) so the loop doesn't drift.
+//
+// A tick only sends a DRIVE frame when the direction or the speed rounded to the car's
+// 0 - 255 PWM value differs from the last frame sent, so a slow ramp or a hold costs
+// no bandwidth.  Frames are also budgeted to what the link can carry at its current data
+// rate (10 bits per byte on the wire): a tick that is over budget sends nothing and the
+// next tick sends the newest value instead, so the send queue never grows behind the loop.
+// Part of the link is left for heartbeats and key presses.
+public class TrajectoryEngine implements Runnable {
+    // Range of control loop rates
+    public static final int MIN_RATE_HZ = 10;
+    public static final int MAX_RATE_HZ = 1000;
+    public static final int DEFAULT_RATE_HZ = 100;
+
+    // Share of the link's frames per second the loop may use
+    private static final double LINK_SHARE = 0.8;
+
+    // Frames that may be sent back to back after a quiet period
+    private static final double MAX_BURST_FRAMES = 2.0;
+
+    // Bits on the wire per byte: start bit, 8 data bits, stop bit
+    private static final int BITS_PER_BYTE = 10;
+
+    public enum Shape { RAMP, HOLD, EASE_OUT }
+
+    // One part of a trajectory
+    public static class Segment {
+        private final Shape m_shape;
+        private final byte m_keyState;
+        private final int m_fromSpeed;
+        private final int m_toSpeed;
+        private final long m_durationMs;
+
+        private Segment(Shape shape, byte keyState, int fromSpeed, int toSpeed, long durationMs) {
+            m_shape = shape;
+            m_keyState = keyState;
+            m_fromSpeed = fromSpeed;
+            m_toSpeed = toSpeed;
+            m_durationMs = durationMs;
+        }
+
+        // Change the speed linearly from fromSpeed to toSpeed over durationMs
+        public static Segment ramp(byte keyState, int fromSpeed, int toSpeed, long durationMs) {
+            return new Segment(Shape.RAMP, keyState, fromSpeed, toSpeed, durationMs);
+        }
+
+        // Keep one speed for durationMs
+        public static Segment hold(byte keyState, int speed, long durationMs) {
+            return new Segment(Shape.HOLD, keyState, speed, speed, durationMs);
+        }
+
+        // Change the speed from fromSpeed to toSpeed over durationMs, slowing the change down towards the end
+        public static Segment easeOut(byte keyState, int fromSpeed, int toSpeed, long durationMs) {
+            return new Segment(Shape.EASE_OUT, keyState, fromSpeed, toSpeed, durationMs);
+        }
+
+        public byte getKeyState() {
+            return m_keyState;
+        }
+
+        public long getDurationMs() {
+            return m_durationMs;
+        }
+
+        // Speed elapsedMs into the segment
+        double speedAt(double elapsedMs) {
+            if (m_durationMs <= 0 || elapsedMs >= m_durationMs) {
+                return m_toSpeed;
+            }
+            double u = elapsedMs / m_durationMs;
+            if (m_shape == Shape.EASE_OUT) {
+                u = 1 - (1 - u) * (1 - u);
+            }
+            return m_fromSpeed + (m_toSpeed - m_fromSpeed) * u;
+        }
+    }
+
+    private final RCController m_controller;
+    private final RCCom m_rcCom;
+    private final Thread m_thread;
+    private final int m_rateHz;
+
+    // Guarded by the lock on this object
+    private List<Segment> m_segments;
+    private RCControllerGUI m_gui;
+    private boolean m_active;
+
+    // Set by cancel(), the loop stops at its next tick
+    private volatile boolean m_cancelled;
+
+    // Counters of the last run, read while it runs
+    private volatile long m_ticks;
+    private volatile long m_framesSent;
+    private volatile long m_framesUnchanged;
+    private volatile long m_framesDeferred;
+    private volatile long m_ticksSkipped;
+
+    public TrajectoryEngine(RCController controller, RCCom rcCom, int rateHz) {
+        m_controller = controller;
+        m_rcCom = rcCom;
+        m_rateHz = Math.max(MIN_RATE_HZ, Math.min(MAX_RATE_HZ, rateHz));
+        m_thread = new Thread(this, "TrajectoryEngine");
+        m_thread.setDaemon(true);
+        m_thread.start();
+    }
+
+    // Ticks per second of the control loop
+    public int getRateHz() {
+        return m_rateHz;
+    }
+
+    // Frames per second the loop may send at the link's current data rate
+    public double getFrameBudget() {
+        return m_rcCom.getDataRate() * LINK_SHARE / (BITS_PER_BYTE * SequenceTable.FRAME_SIZE);
+    }
+
+    // Start driving along a trajectory
+    // Returns an error message if one is already running, null on success
+    public synchronized String play(List<Segment> segments, RCControllerGUI gui) {
+        if (m_active) {
+            return "A trajectory is already running. Stop it first.";
+        }
+        if (segments.isEmpty()) {
+            return "The trajectory has no segments.";
+        }
+        m_segments = new ArrayList<Segment>(segments);
+        m_gui = gui;
+        m_cancelled = false;
+        m_active = true;
+        notifyAll();
+        return null;
+    }
+
+    // Stop the running trajectory, the loop notices within a tick and sends STOP
+    // Returns false if nothing was running
+    public synchronized boolean cancel() {
+        if (!m_active) {
+            return false;
+        }
+        // Not an interrupt: one still pending when the loop ends would make the STOP fail to send
+        m_cancelled = true;
+        return true;
+    }
+
+    public synchronized boolean isActive() {
+        return m_active;
+    }
+
+    // Wait until no trajectory is running and its final STOP has been sent
+    // Returns false if interrupted
+    public synchronized boolean awaitIdle() {
+        while (m_active) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // Counters of the last run
+    public String getSummary() {
+        return String.format("Trajectory: rate=%d Hz budget=%.0f frames/s ticks=%d sent=%d unchanged=%d deferred=%d skippedTicks=%d",
+                m_rateHz, getFrameBudget(), m_ticks, m_framesSent, m_framesUnchanged, m_framesDeferred, m_ticksSkipped);
+    }
+
+    // Control loop thread body
+    public void run() {
+        while (true) {
+            List<Segment> segments;
+            RCControllerGUI gui;
+            synchronized (this) {
+                while (m_segments == null) {
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        // Only play() wakes this thread
+                    }
+                }
+                segments = m_segments;
+                gui = m_gui;
+                m_segments = null;
+            }
+
+            DeadlineScheduler lateness = drive(segments, gui);
+            m_controller.sendDirectionCommand(m_controller.STOP);
+            if (gui != null) {
+                gui.remoteUpdateGUI(m_controller.STOP);
+            }
+            synchronized (this) {
+                m_active = false;
+                m_gui = null;
+                notifyAll();
+            }
+            System.out.println(lateness.getLatenessSummary());
+            System.out.println(getSummary());
+        }
+    }
+
+    // Tick until every segment has been driven and its final value sent, or until cancelled
+    private DeadlineScheduler drive(List<Segment> segments, RCControllerGUI gui) {
+        long totalMs = 0;
+        for (Segment segment : segments) {
+            totalMs += segment.getDurationMs();
+        }
+        long periodNs = 1000000000L / m_rateHz;
+        DeadlineScheduler clock = new DeadlineScheduler((int) Math.min(1 << 20, totalMs * m_rateHz / 1000 + 2));
+        m_ticks = 0;
+        m_framesSent = 0;
+        m_framesUnchanged = 0;
+        m_framesDeferred = 0;
+        m_ticksSkipped = 0;
+
+        int segment = 0;
+        long segmentStartMs = 0;
+        int lastKeyState = -1;
+        int lastSpeed = -1;
+        double credit = 1.0; // The first frame goes out at once
+        long tick = 0;
+        long lastTick = 0;
+        clock.start();
+        while (!m_cancelled) {
+            long offsetNs = tick * periodNs;
+            if (!clock.awaitOffset(offsetNs) || m_cancelled) {
+                break;
+            }
+            m_ticks++;
+
+            // Refill the frame budget for the time since the last tick
+            credit = Math.min(MAX_BURST_FRAMES, credit + getFrameBudget() * (tick - lastTick) * periodNs / 1e9);
+            lastTick = tick;
+
+            // Where the trajectory is now
+            double nowMs = offsetNs / 1e6;
+            while (segment < segments.size() - 1 && nowMs >= segmentStartMs + segments.get(segment).getDurationMs()) {
+                segmentStartMs += segments.get(segment).getDurationMs();
+                segment++;
+            }
+            Segment current = segments.get(segment);
+            int keyState = current.getKeyState() & 0xFF;
+            int speed = (int) Math.round(current.speedAt(nowMs - segmentStartMs));
+            speed = Math.max(0, Math.min(255, speed));
+            boolean ended = nowMs >= totalMs;
+
+            if (keyState == lastKeyState && speed == lastSpeed) {
+                m_framesUnchanged++;
+                if (ended) {
+                    break;
+                }
+            } else if (credit >= 1.0) {
+                credit -= 1.0;
+                m_controller.sendDirectionCommand((byte) keyState, (byte) speed);
+                m_framesSent++;
+                if (gui != null && keyState != lastKeyState) {
+                    gui.remoteUpdateGUI((byte) keyState);
+                }
+                lastKeyState = keyState;
+                lastSpeed = speed;
+                if (ended) {
+                    break;
+                }
+            } else {
+                // Over budget, a later tick sends whatever the value is then
+                m_framesDeferred++;
+            }
+
+            // If the loop fell behind by more than a tick, continue from now instead of catching up
+            long nextTick = tick + 1;
+            long behind = (System.nanoTime() - clock.getStartNs()) / periodNs;
+            if (behind > nextTick) {
+                m_ticksSkipped += behind - nextTick;
+                nextTick = behind;
+            }
+            tick = nextTick;
+        }
+        return clock;
+    }
+
+    // Files ending in .traj are trajectories, anything else is a sequence
+    public static boolean isTrajectoryFile(String fileName) {
+        return fileName.toLowerCase().endsWith(".traj");
+    }
+
+    // Read a trajectory file, one segment per line:
+    //   ramp <direction>, <from speed>, <to speed>, <duration ms>
+    //   easeout <direction>, <from speed>, <to speed>, <duration ms>
+    //   hold <direction>, <speed>, <duration ms>
+    // Anything after '#' is a comment.
+    // Returns null on failure after putting the reason in error[0] as "file:line: message"
+    public static List<Segment> parseFile(RCController controller, String fileName, String[] error) {
+        List<Segment> segments = new ArrayList<Segment>();
+        BufferedReader reader = null;
+        int line = 0;
+        try {
+            reader = new BufferedReader(new FileReader(fileName));
+            String text;
+            while ((text = reader.readLine()) != null) {
+                line++;
+                int comment = text.indexOf('#');
+                if (comment >= 0) {
+                    text = text.substring(0, comment);
+                }
+                text = text.trim();
+                if (text.length() == 0) {
+                    continue;
+                }
+                String message = parseSegment(controller, text, segments);
+                if (message != null) {
+                    error[0] = fileName + ":" + line + ": " + message;
+                    return null;
+                }
+            }
+        } catch (IOException e) {
+            error[0] = fileName + ": " + e.getMessage();
+            return null;
+        } finally {
+            if (reader != null) {
+                try {
+                    reader.close();
+                } catch (IOException e) {
+                    // Nothing more we can do
+                }
+            }
+        }
+        if (segments.isEmpty()) {
+            error[0] = fileName + ": No segments";
+            return null;
+        }
+        return segments;
+    }
+
+    // Parse one line and add its segment
+    // Returns an error message, null on success
+    private static String parseSegment(RCController controller, String text, List<Segment> segments) {
+        String[] words = text.split("\\s+", 2);
+        String shape = words[0].toLowerCase();
+        boolean hold = shape.equals("hold");
+        if (!hold && !shape.equals("ramp") && !shape.equals("easeout")) {
+            return "Unknown segment " + words[0] + " (use ramp, easeout or hold)";
+        }
+        String[] args = words.length > 1 ? words[1].split("\\s*,\\s*") : new String[0];
+        int expected = hold ? 3 : 4;
+        if (args.length != expected) {
+            return hold ? "Usage: hold <direction>, <speed>, <duration ms>"
+                    : "Usage: " + shape + " <direction>, <from speed>, <to speed>, <duration ms>";
+        }
+
+        String direction = args[0].toUpperCase();
+        byte keyState = SequenceTable.parseDirection(controller, direction);
+        if (keyState == controller.STOP && !direction.equals("SS")) {
+            return "Unknown direction " + args[0] + " (use FF, FR, FL, BB, BL, BR, LL, RR or SS)";
+        }
+        int[] speeds = new int[expected - 2];
+        long durationMs;
+        try {
+            for (int i = 0; i < speeds.length; i++) {
+                speeds[i] = Integer.parseInt(args[i + 1]);
+                if (speeds[i] < 0 || speeds[i] > 255) {
+                    return "Speed " + speeds[i] + " is out of range 0 - 255";
+                }
+            }
+            durationMs = Long.parseLong(args[expected - 1]);
+        } catch (NumberFormatException e) {
+            return "Bad number in: " + text;
+        }
+        if (durationMs < 0 || durationMs > SequenceTable.MAX_DURATION_MS) {
+            return "Duration " + durationMs + " is out of range 0 - " + SequenceTable.MAX_DURATION_MS;
+        }
+
+        if (hold) {
+            segments.add(Segment.hold(keyState, speeds[0], durationMs));
+        } else if (shape.equals("ramp")) {
+            segments.add(Segment.ramp(keyState, speeds[0], speeds[1], durationMs));
+        } else {
+            segments.add(Segment.easeOut(keyState, speeds[0], speeds[1], durationMs));
+        }
+        return null;
+    }
+}
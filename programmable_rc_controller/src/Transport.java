@@ -0,0 +1,52 @@
+////////////////////////////////////////////////////////////////////////////////////////////////
+//    Copyright (C) 2012 Jon Bennett
+//
+//    This file is part of Programmable RC Car Controller.
+//
+//    http://www.jbprojects.net/articles/programmable-rc/
+//
+//    Programmable RC Car Controller is free software: you can redistribute it and/or modify
+//    it under the terms of the GNU General Public License as published by
+//    the Free Software Foundation, either version 3 of the License, or
+//    (at your option) any later version.
+//
+//    Programmable RC Car Controller is distributed in the hope that it will be useful,
+//    but WITHOUT ANY WARRANTY; without even the implied warranty of
+//    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+//    GNU General Public License for more details.
+//
+//    You should have received a copy of the GNU General Public License
+//    along with Programmable RC Car Controller.  If not, see <http://www.gnu.org/licenses/>.
+////////////////////////////////////////////////////////////////////////////////////////////////
+
+import java.io.IOException;
+
+// A byte link to the car.  RCCom writes frames to it and receives the car's
+// status frames from it, without knowing whether it is a serial port, a tty,
+// a network bridge or an in-memory loopback.
+public interface Transport {
+    // Receives incoming bytes on the transport's own thread
+    // The array is reused by the transport, so copy what you need before returning
+    interface Receiver {
+        void received(byte[] data, int offset, int length);
+    }
+
+    // Open the link and start delivering incoming bytes to receiver
+    // Returns an error message on failure, null on success
+    String open(Receiver receiver);
+
+    void close();
+
+    // Blocking write, only called from RCCom's writer thread
+    void write(byte[] data, int offset, int length) throws IOException;
+
+    // Change the bits per second of the link
+    // Returns an error message on failure, null on success
+    String setDataRate(int dataRate);
+
+    // Human readable name, e.g. "rxtx:/dev/ttyUSB0"
+    String getName();
+
+    // Write latency and throughput measured on this transport
+    TransportStats getStats();
+}
@@ -0,0 +1,90 @@
+////////////////////////////////////////////////////////////////////////////////////////////////
+//    Copyright (C) 2012 Jon Bennett
+//
+//    This file is part of Programmable RC Car Controller.
+//
+//    http://www.jbprojects.net/articles/programmable-rc/
+//
+//    Programmable RC Car Controller is free software: you can redistribute it and/or modify
+//    it under the terms of the GNU General Public License as published by
+//    the Free Software Foundation, either version 3 of the License, or
+//    (at your option) any later version.
+//
+//    Programmable RC Car Controller is distributed in the hope that it will be useful,
+//    but WITHOUT ANY WARRANTY; without even the implied warranty of
+//    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+//    GNU General Public License for more details.
+//
+//    You should have received a copy of the GNU General Public License
+//    along with Programmable RC Car Controller.  If not, see <http://www.gnu.org/licenses/>.
+////////////////////////////////////////////////////////////////////////////////////////////////
+
+// Write latency and throughput of a Transport.
+// Only the writer thread records, anybody may read.
+public class TransportStats {
+    private volatile long m_openedNs = System.nanoTime();
+    private volatile long m_writes;
+    private volatile long m_bytesWritten;
+    private volatile long m_bytesRead;
+    private volatile long m_writeNsTotal;
+    private volatile long m_writeNsMax;
+
+    // Restart the throughput clock, called when the transport opens
+    public void reset() {
+        m_openedNs = System.nanoTime();
+        m_writes = 0;
+        m_bytesWritten = 0;
+        m_bytesRead = 0;
+        m_writeNsTotal = 0;
+        m_writeNsMax = 0;
+    }
+
+    // Record one write() call
+    public void recordWrite(int bytes, long elapsedNs) {
+        m_writes++;
+        m_bytesWritten += bytes;
+        m_writeNsTotal += elapsedNs;
+        if (elapsedNs > m_writeNsMax) {
+            m_writeNsMax = elapsedNs;
+        }
+    }
+
+    public void recordRead(int bytes) {
+        m_bytesRead += bytes;
+    }
+
+    public long getWrites() {
+        return m_writes;
+    }
+
+    public long getBytesWritten() {
+        return m_bytesWritten;
+    }
+
+    public long getBytesRead() {
+        return m_bytesRead;
+    }
+
+    // Mean time spent in write() in nanoseconds
+    public long getMeanWriteNs() {
+        long writes = m_writes;
+        return writes > 0 ? m_writeNsTotal / writes : 0;
+    }
+
+    public long getMaxWriteNs() {
+        return m_writeNsMax;
+    }
+
+    // Bytes written per second since the transport opened
+    public double getWriteThroughput() {
+        double seconds = (System.nanoTime() - m_openedNs) / 1e9;
+        return seconds > 0 ? m_bytesWritten / seconds : 0;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("writes=%d bytesOut=%d bytesIn=%d writeUs mean=%.1f max=%.1f throughput=%.0f B/s",
+                m_writes, m_bytesWritten, m_bytesRead,
+                getMeanWriteNs() / 1e3, m_writeNsMax / 1e3, getWriteThroughput());
+    }
+}
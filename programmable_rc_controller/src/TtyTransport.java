@@ -0,0 +1,82 @@
+////////////////////////////////////////////////////////////////////////////////////////////////
+//    Copyright (C) 2012 Jon Bennett
+//
+//    This file is part of Programmable RC Car Controller.
+//
+//    http://www.jbprojects.net/articles/programmable-rc/
+//
+//    Programmable RC Car Controller is free software: you can redistribute it and/or modify
+//    it under the terms of the GNU General Public License as published by
+//    the Free Software Foundation, either version 3 of the License, or
+//    (at your option) any later version.
+//
+//    Programmable RC Car Controller is distributed in the hope that it will be useful,
+//    but WITHOUT ANY WARRANTY; without even the implied warranty of
+//    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+//    GNU General Public License for more details.
+//
+//    You should have received a copy of the GNU General Public License
+//    along with Programmable RC Car Controller.  If not, see <http://www.gnu.org/licenses/>.
+////////////////////////////////////////////////////////////////////////////////////////////////
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+
+// Talks to a Linux tty or pty (e.g. /dev/ttyUSB0, /dev/pts/3) through an NIO FileChannel.
+// No native library is needed; line settings are applied with stty.
+public class TtyTransport extends ChannelTransport {
+    private final String m_device;
+
+    public TtyTransport(String device) {
+        m_device = device;
+    }
+
+    @Override
+    public synchronized String open(Receiver receiver) {
+        // Raw 8N1 at the base rate, before anything is written
+        String error = setDataRate(RCCom.DATA_RATE);
+        if (error != null) {
+            return error;
+        }
+        return super.open(receiver);
+    }
+
+    // Reads and writes use separate channels: a FileChannel serializes read() and write()
+    // on its position lock, so a write would wait for the blocked reader to get a byte
+    @Override
+    protected ReadableByteChannel openInput() throws IOException {
+        return FileChannel.open(Paths.get(m_device), StandardOpenOption.READ);
+    }
+
+    @Override
+    protected WritableByteChannel openOutput() throws IOException {
+        return FileChannel.open(Paths.get(m_device), StandardOpenOption.WRITE);
+    }
+
+    public String setDataRate(int dataRate) {
+        ProcessBuilder stty = new ProcessBuilder("stty", "-F", m_device, Integer.toString(dataRate),
+                "raw", "-echo", "cs8", "-cstopb", "-parenb", "-hupcl");
+        stty.redirectErrorStream(true);
+        try {
+            Process process = stty.start();
+            process.getInputStream().close();
+            if (process.waitFor() != 0) {
+                return "stty could not set " + m_device + " to " + dataRate + " baud";
+            }
+        } catch (IOException e) {
+            return e.toString();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return e.toString();
+        }
+        return null;
+    }
+
+    public String getName() {
+        return "tty:" + m_device;
+    }
+}